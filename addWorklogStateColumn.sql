@@ -0,0 +1,13 @@
+-- Add the state column of update tracker 1.12 to an existing update tracker worklog.
+-- Run it once, before starting fedora with the 1.12 fedora hook, which refuses to start without the column. Run with
+--   psql -v ON_ERROR_STOP=1 -f addWorklogStateColumn.sql <fedora database>
+-- The column is added without a default first, so postgres does not rewrite the table, and the existing rows get no
+-- state, which counts as committed. A worklog created by the 1.12 hook, or migrated with
+-- migrateWorklogToCompactSchema.sql, has the column already.
+
+BEGIN;
+
+ALTER TABLE updateTrackerLogs ADD COLUMN state SMALLINT;
+ALTER TABLE updateTrackerLogs ALTER COLUMN state SET DEFAULT 1;
+
+COMMIT;
@@ -0,0 +1,68 @@
+-- Migrate the update tracker worklog to the compact version, with the method and param coded.
+-- Stop fedora and the update tracker first. Fedora must have run with update tracker 1.12 once, so the log table has
+-- the state column. Run with
+--   psql -v ON_ERROR_STOP=1 -f migrateWorklogToCompactSchema.sql <fedora database>
+-- The rows are copied to a new table, which is faster than rewriting the columns in place, and leaves no dead rows.
+-- The original table is kept as updateTrackerLogsOriginal. Drop it when the update tracker runs on the new one.
+-- A retention archive table must be migrated the same way, or recreated like the new table.
+
+BEGIN;
+
+CREATE TABLE updateTrackerMethods (
+    code SMALLINT PRIMARY KEY NOT NULL,
+    name VARCHAR(64) NOT NULL
+);
+-- The codes of dk.statsbiblioteket.doms.updatetracker.LogMethod
+INSERT INTO updateTrackerMethods (code, name) VALUES
+    (1, 'ingest'),
+    (2, 'modifyObject'),
+    (3, 'purgeObject'),
+    (4, 'addDatastream'),
+    (5, 'modifyDatastreamByReference'),
+    (6, 'modifyDatastreamByValue'),
+    (7, 'purgeDatastream'),
+    (8, 'setDatastreamState'),
+    (9, 'setDatastreamVersionable'),
+    (10, 'addRelationship'),
+    (11, 'purgeRelationship');
+-- Methods logged by older hooks get codes after the known ones
+INSERT INTO updateTrackerMethods (code, name)
+    SELECT 100 + row_number() OVER (ORDER BY method), method
+    FROM (SELECT DISTINCT method FROM updateTrackerLogs
+          WHERE method NOT IN (SELECT name FROM updateTrackerMethods)) AS unknown;
+
+CREATE TABLE updateTrackerParams (
+    code SERIAL PRIMARY KEY NOT NULL,
+    param VARCHAR(255) NOT NULL UNIQUE
+);
+INSERT INTO updateTrackerParams (param)
+    SELECT DISTINCT param FROM updateTrackerLogs WHERE param IS NOT NULL ORDER BY param;
+
+CREATE TABLE updateTrackerLogsCompact (
+    key BIGINT PRIMARY KEY NOT NULL,
+    pid VARCHAR(64) NOT NULL,
+    happened TIMESTAMPTZ NOT NULL,
+    method SMALLINT NOT NULL,
+    param INTEGER,
+    state SMALLINT DEFAULT 1
+);
+INSERT INTO updateTrackerLogsCompact (key, pid, happened, method, param, state)
+    SELECT l.key, l.pid, l.happened, m.code, p.code, l.state
+    FROM updateTrackerLogs l
+    JOIN updateTrackerMethods m ON m.name = l.method
+    LEFT JOIN updateTrackerParams p ON p.param = l.param
+    ORDER BY l.key;
+
+-- The new table takes over the key sequence, so the keys go on from where they were
+ALTER TABLE updateTrackerLogs ALTER COLUMN key DROP DEFAULT;
+ALTER SEQUENCE updatetrackerlogs_key_seq OWNED BY updateTrackerLogsCompact.key;
+ALTER TABLE updateTrackerLogsCompact ALTER COLUMN key SET DEFAULT nextval('updatetrackerlogs_key_seq');
+
+ALTER TABLE updateTrackerLogs RENAME TO updateTrackerLogsOriginal;
+ALTER TABLE updateTrackerLogsCompact RENAME TO updateTrackerLogs;
+CREATE INDEX ON updateTrackerLogs (pid);
+CREATE INDEX ON updateTrackerLogs (happened);
+
+COMMIT;
+
+ANALYZE updateTrackerLogs;
@@ -14,26 +14,117 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 
 /**
- * This is the database access object. Use it to add and remove log entries from the update tracker log database
+ * This is the database access object. Use it to add log entries to the update tracker log database, and mark them
+ * failed if the operation failed
+ *
+ * The log table comes in two versions. The original stores the method and param as strings. The compact stores the
+ * method as the smallint code of the LogMethod, and the param as an integer code from the updateTrackerParams table,
+ * which makes the rows much smaller. The version is told by the type of the method column, so an existing table is
+ * used as it is, until it is migrated with migrateWorklogToCompactSchema.sql.
+ *
+ * If the dirty summary is enabled, the updateTrackerDirtyPids table is kept next to the log table, with a row per
+ * changed object: the key and timestamp of the latest log entry for the object, and the classes of the operations
+ * since the update tracker last consumed the row. The row is updated in the same transaction as the log entries are
+ * added, so it is never ahead of or behind the log.
  */
 public class Database implements Closeable {
 
     public static final Calendar tzUTC = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
 
+    /** The state of a log entry added before the operation was invoked, and not known to have failed */
+    public static final short STATE_PENDING = 0;
+    /** The state of a log entry added after the operation completed. Log entries from before the state column was
+     * added have no state, which the update tracker takes as committed */
+    public static final short STATE_COMMITTED = 1;
+    /** The state of a log entry for an operation that failed. The update tracker skips these */
+    public static final short STATE_FAILED = 2;
+
+    /** The class of the operations changing the state of an object, in the dirty summary */
+    public static final int DIRTY_STATE = 1;
+    /** The class of the operations changing the structure of an object: ingest, relations and the VIEW datastream */
+    public static final int DIRTY_STRUCTURAL = 2;
+    /** The class of the operations changing other datastreams of an object */
+    public static final int DIRTY_DATASTREAM = 4;
+    /** The class of the operations purging an object */
+    public static final int DIRTY_PURGE = 8;
+
     private static Logger logger = LoggerFactory.getLogger(Database.class);
     private final ConnectionPool cPool;
+    private final String notifyChannel;
+    private final boolean compact;
+    private final boolean dirtySummary;
+
+    /** The codes of the params in the compact log table. The params are dsids, states and relations, so few. */
+    private final ConcurrentMap<String, Integer> paramCodes = new ConcurrentHashMap<>();
+
+    /**
+     * For subclasses which do not use a database, like in the benchmark of the hook
+     */
+    Database() {
+        this.cPool = null;
+        this.notifyChannel = null;
+        this.compact = false;
+        this.dirtySummary = false;
+    }
 
     public Database(ConnectionPool cPool) throws InitializationException {
+        this(cPool, null);
+    }
+
+    public Database(ConnectionPool cPool, String notifyChannel) throws InitializationException {
+        this(cPool, notifyChannel, false);
+    }
+
+    public Database(ConnectionPool cPool, String notifyChannel, boolean compactSchema)
+            throws InitializationException {
+        this(cPool, notifyChannel, compactSchema, false);
+    }
+
+    /**
+     * @param cPool the connection pool
+     * @param notifyChannel if not null, a postgres NOTIFY with the key as payload is sent on this channel for each
+     *                      log entry added, so listening update trackers can wake up at once
+     * @param compactSchema if true, the log table is created in the compact version, if it does not exist
+     * @param dirtySummary if true, the updateTrackerDirtyPids table is created if it does not exist, and updated with
+     *                     each log entry
+     * @throws InitializationException
+     */
+    public Database(ConnectionPool cPool, String notifyChannel, boolean compactSchema, boolean dirtySummary)
+            throws InitializationException {
         this.cPool = cPool;
-        createUpdateTrackingLogTable(cPool);
+        this.notifyChannel = notifyChannel;
+        this.dirtySummary = dirtySummary;
+        String dbSpec = compactSchema ? "dk/statsbiblioteket/doms/updatetracker/updateTrackerCompactLogTable.dbspec"
+                                      : "dk/statsbiblioteket/doms/updatetracker/updateTrackerLogTable.dbspec";
+        createUpdateTrackingLogTable(cPool, dbSpec);
+        checkStateColumn(cPool);
+        compact = isCompact(cPool);
+        if (compact) {
+            addMethodCodes(cPool);
+        }
+        if (dirtySummary) {
+            createUpdateTrackingLogTable(cPool, "dk/statsbiblioteket/doms/updatetracker/updateTrackerDirtyPidsTable.dbspec");
+        }
     }
 
 
@@ -41,13 +132,13 @@ public class Database implements Closeable {
      * Create the update tracker log table
      *
      * @param cPool the connection pool
+     * @param dbSpec the resource with the spec of the tables
      *
      * @throws org.fcrepo.server.errors.ModuleInitializationException
      */
-    private void createUpdateTrackingLogTable(ConnectionPool cPool) throws InitializationException {
+    private void createUpdateTrackingLogTable(ConnectionPool cPool, String dbSpec) throws InitializationException {
     /*Create the table, as this is not created by Fedora default*/
         try {
-            String dbSpec = "dk/statsbiblioteket/doms/updatetracker/updateTrackerLogTable.dbspec";
             InputStream specIn = this.getClass()
                                      .getClassLoader()
                                      .getResourceAsStream(dbSpec);
@@ -64,37 +155,246 @@ public class Database implements Closeable {
         }
     }
 
+    /**
+     * Check that the update tracker log table has the state column. A table created before the column was introduced
+     * must be upgraded with addWorklogStateColumn.sql first. This is not done here, as several fedoras might start
+     * on the same database at once.
+     *
+     * @param cPool the connection pool
+     *
+     * @throws InitializationException if the column is missing
+     */
+    private void checkStateColumn(ConnectionPool cPool) throws InitializationException {
+        try {
+            Connection conn = cPool.getReadWriteConnection();
+            try {
+                try (ResultSet columns = conn.getMetaData().getColumns(null, null, "updatetrackerlogs", "state")) {
+                    if (!columns.next()) {
+                        throw new InitializationException("The update tracker log table has no state column. Add " +
+                                                          "it with addWorklogStateColumn.sql");
+                    }
+                }
+            } finally {
+                try {
+                    conn.close();
+                } finally {
+                    cPool.free(conn);
+                }
+            }
+        } catch (SQLException e) {
+            throw new InitializationException("Error while attempting to read the columns of the update tracker log " +
+                                              "table: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Tell if the log table is the compact version, with the method as a smallint code
+     *
+     * @param cPool the connection pool
+     *
+     * @return true if the log table is the compact version
+     * @throws InitializationException
+     */
+    private boolean isCompact(ConnectionPool cPool) throws InitializationException {
+        try {
+            Connection conn = cPool.getReadWriteConnection();
+            try {
+                try (ResultSet columns = conn.getMetaData().getColumns(null, null, "updatetrackerlogs", "method")) {
+                    if (!columns.next()) {
+                        throw new InitializationException("The update tracker log table has no method column");
+                    }
+                    return columns.getInt("DATA_TYPE") == Types.SMALLINT;
+                }
+            } finally {
+                try {
+                    conn.close();
+                } finally {
+                    cPool.free(conn);
+                }
+            }
+        } catch (SQLException e) {
+            throw new InitializationException("Error while attempting to read the version of the update tracker log " +
+                                              "table: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Write the codes of the logged methods to the updateTrackerMethods table, if they are not there already
+     *
+     * @param cPool the connection pool
+     *
+     * @throws InitializationException
+     */
+    private void addMethodCodes(ConnectionPool cPool) throws InitializationException {
+        try {
+            Connection conn = cPool.getReadWriteConnection();
+            try {
+                try (PreparedStatement statement = conn.prepareStatement("INSERT INTO updateTrackerMethods(code,name) " +
+                                                                         "SELECT ?,? WHERE NOT EXISTS " +
+                                                                         "(SELECT 1 FROM updateTrackerMethods " +
+                                                                         "WHERE code = ?)")) {
+                    for (LogMethod logMethod : LogMethod.values()) {
+                        statement.setShort(1, logMethod.getCode());
+                        statement.setString(2, logMethod.getMethodName());
+                        statement.setShort(3, logMethod.getCode());
+                        statement.executeUpdate();
+                    }
+                }
+            } finally {
+                try {
+                    conn.close();
+                } finally {
+                    cPool.free(conn);
+                }
+            }
+        } catch (SQLException e) {
+            throw new InitializationException("Error while attempting to add the method codes to the update tracker " +
+                                              "database: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Set the method and param of a log entry in an insert statement, coded if the log table is compact. The code of
+     * the param must have been allocated with {@link #allocateParamCodes(Collection)} first.
+     * @param statement the insert statement
+     * @param index the index of the method parameter. The param parameter comes next.
+     * @param name the name of the method
+     * @param param the param, or null
+     * @throws SQLException
+     */
+    private void setMethodAndParam(PreparedStatement statement, int index, String name, String param)
+            throws SQLException {
+        if (!compact) {
+            statement.setString(index, name);
+            statement.setString(index + 1, param);
+            return;
+        }
+        LogMethod logMethod = LogMethod.forMethodName(name);
+        if (logMethod == null) {
+            throw new SQLException("The method '" + name + "' has no code in the compact update tracker log table");
+        }
+        statement.setShort(index, logMethod.getCode());
+        if (param == null) {
+            statement.setNull(index + 1, Types.INTEGER);
+        } else {
+            Integer code = paramCodes.get(param);
+            if (code == null) {
+                throw new SQLException("The param '" + param + "' has no code in the update tracker database");
+            }
+            statement.setInt(index + 1, code);
+        }
+    }
+
+    /**
+     * Make sure the params have codes, adding the new ones to the updateTrackerParams table. This is done on a
+     * connection of its own in autocommit mode, before the log entries are added, so a code is only cached once it is
+     * committed, and a failed log transaction cannot leave a code in the cache which is not in the table. Another
+     * fedora might add the same param at the same time, so if the insert fails, the code is looked up again.
+     * @param params the params, which may include null
+     * @throws SQLException
+     */
+    private void allocateParamCodes(Collection<String> params) throws SQLException {
+        if (!compact) {
+            return;
+        }
+        Set<String> newParams = new LinkedHashSet<>();
+        for (String param : params) {
+            if (param != null && !paramCodes.containsKey(param)) {
+                newParams.add(param);
+            }
+        }
+        if (newParams.isEmpty()) {
+            return;
+        }
+        Connection conn = cPool.getReadWriteConnection();
+        try {
+            conn.setAutoCommit(true);
+            for (String param : newParams) {
+                Integer code = findParamCode(conn, param);
+                if (code == null) {
+                    try (PreparedStatement statement = conn.prepareStatement("INSERT INTO updateTrackerParams(param) " +
+                                                                             "VALUES (?) RETURNING code")) {
+                        statement.setString(1, param);
+                        try (ResultSet resultSet = statement.executeQuery()) {
+                            resultSet.next();
+                            code = resultSet.getInt("code");
+                        }
+                    } catch (SQLException e) {
+                        code = findParamCode(conn, param);
+                        if (code == null) {
+                            throw e;
+                        }
+                    }
+                }
+                paramCodes.putIfAbsent(param, code);
+            }
+        } finally {
+            try {
+                conn.close();
+            } finally {
+                cPool.free(conn);
+            }
+        }
+    }
+
+    private Integer findParamCode(Connection conn, String param) throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement("SELECT code FROM updateTrackerParams WHERE param = ?")) {
+            statement.setString(1, param);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getInt("code") : null;
+            }
+        }
+    }
+
     /**
      * Add a log entry to the database
      * @param pid the pid of the object on which the method was invoked
      * @param timestamp the timestamp of the invocation
      * @param name the name of the method
      * @param param the first parameter (after pid) of the method, or null. This will most often be datastream id or state
+     * @param state the state of the log entry, STATE_PENDING if the method has not been invoked yet, otherwise
+     *              STATE_COMMITTED
      * @return the autogenerated key of the log entry in the database
      * @throws IOException
      */
-    public Long addLogEntry(String pid, Date timestamp, String name, String param) throws IOException {
+    public Long addLogEntry(String pid, Date timestamp, String name, String param, short state) throws IOException {
 
 
         try {
+            allocateParamCodes(Collections.singletonList(param));
             Connection conn = cPool.getReadWriteConnection();
             try {
+                if (dirtySummary) {
+                    conn.setAutoCommit(false);
+                }
                 try (PreparedStatement statement = conn.prepareStatement("INSERT INTO updateTrackerLogs(pid,happened," +
-                                                                         "method,param) VALUES (?,?,?,?)",
+                                                                         "method,param,state) VALUES (?,?,?,?,?)",
                                                                          Statement.RETURN_GENERATED_KEYS)) {
                     statement.setString(1, pid);
                     statement.setTimestamp(2, new Timestamp(timestamp.getTime()), tzUTC);
-                    statement.setString(3, name);
-                    statement.setString(4, param);
+                    setMethodAndParam(statement, 3, name, param);
+                    statement.setShort(5, state);
                     statement.executeUpdate();
                     ResultSet generatedKeys = statement.getGeneratedKeys();
                     generatedKeys.next();
                     long key;
                     key = generatedKeys.getLong("key");
 
+                    if (dirtySummary) {
+                        updateDirtySummary(conn,
+                                           Collections.singletonList(new LogEntry(pid, timestamp, name, param, state)),
+                                           Collections.singletonList(key));
+                    }
+                    if (notifyChannel != null) {
+                        notify(conn, key);
+                    }
+                    if (dirtySummary) {
+                        conn.commit();
+                    }
                     return key;
                 }
             } finally {
+                resetAutoCommit(conn);
                 try {
                     conn.close();
                 } finally {
@@ -107,7 +407,185 @@ public class Database implements Closeable {
                                   "' to update tracker database", e);
         }
     }
-    public void removeLogEntry(Long key) throws IOException {
+
+    /**
+     * Add a batch of log entries to the database, with a single multi row insert and commit
+     * @param entries the log entries
+     * @return the autogenerated keys of the log entries in the database, in the order of the entries
+     * @throws IOException
+     * @see GroupCommitWriter
+     */
+    public List<Long> addLogEntries(List<LogEntry> entries) throws IOException {
+        StringBuilder insert = new StringBuilder("INSERT INTO updateTrackerLogs(pid,happened,method,param,state) VALUES ");
+        for (int i = 0; i < entries.size(); i++) {
+            insert.append(i == 0 ? "(?,?,?,?,?)" : ",(?,?,?,?,?)");
+        }
+        insert.append(" RETURNING key");
+        try {
+            List<String> params = new ArrayList<>(entries.size());
+            for (LogEntry entry : entries) {
+                params.add(entry.getParam());
+            }
+            allocateParamCodes(params);
+            Connection conn = cPool.getReadWriteConnection();
+            try {
+                if (dirtySummary) {
+                    conn.setAutoCommit(false);
+                }
+                List<Long> keys = new ArrayList<>(entries.size());
+                try (PreparedStatement statement = conn.prepareStatement(insert.toString())) {
+                    int parameter = 1;
+                    for (LogEntry entry : entries) {
+                        statement.setString(parameter++, entry.getPid());
+                        statement.setTimestamp(parameter++, new Timestamp(entry.getTimestamp().getTime()), tzUTC);
+                        setMethodAndParam(statement, parameter, entry.getMethod(), entry.getParam());
+                        parameter += 2;
+                        statement.setShort(parameter++, entry.getState());
+                    }
+                    //Postgres returns the rows of a multi row VALUES insert in the order of the VALUES
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            keys.add(resultSet.getLong("key"));
+                        }
+                    }
+                }
+                if (keys.size() != entries.size()) {
+                    throw new IOException("Got " + keys.size() + " keys for " + entries.size() + " log entries");
+                }
+                if (dirtySummary) {
+                    updateDirtySummary(conn, entries, keys);
+                }
+                if (notifyChannel != null && !keys.isEmpty()) {
+                    notify(conn, keys.get(keys.size() - 1));
+                }
+                if (dirtySummary) {
+                    conn.commit();
+                }
+                return keys;
+            } finally {
+                resetAutoCommit(conn);
+                try {
+                    conn.close();
+                } finally {
+                    cPool.free(conn);
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException("Failed to add " + entries.size() + " log entries, from " + entries.get(0) +
+                                  ", to update tracker database", e);
+        }
+    }
+
+    /**
+     * Update the rows of the objects of the log entries in the dirty summary. The entries are folded per object first,
+     * so each object is updated once. Ingest and purge reset the classes of an object, unless a later log entry for the
+     * object is already in the summary. Must be called in the transaction adding the log entries.
+     * @param conn the connection the log entries were added with
+     * @param entries the log entries
+     * @param keys the keys of the log entries, in the same order
+     * @throws SQLException
+     */
+    private void updateDirtySummary(Connection conn, List<LogEntry> entries, List<Long> keys) throws SQLException {
+        Map<String, DirtyObject> objects = new LinkedHashMap<>();
+        for (int i = 0; i < entries.size(); i++) {
+            LogEntry entry = entries.get(i);
+            LogMethod logMethod = LogMethod.forMethodName(entry.getMethod());
+            if (logMethod == null) {
+                continue;
+            }
+            String pid = entry.getPid().split("/")[0];
+            DirtyObject object = objects.get(pid);
+            if (object == null) {
+                object = new DirtyObject();
+                objects.put(pid, object);
+            }
+            object.add(keys.get(i), entry.getTimestamp(), logMethod.getDirtyClasses(entry.getPid(), entry.getParam()),
+                       logMethod.resetsDirtyClasses());
+        }
+        try (PreparedStatement update = conn.prepareStatement("UPDATE updateTrackerDirtyPids " +
+                                                              "SET classes = CASE WHEN ? AND lastKey < ? THEN ? " +
+                                                              "ELSE classes | ? END, " +
+                                                              "lastHappened = CASE WHEN lastKey < ? THEN ? " +
+                                                              "ELSE lastHappened END, " +
+                                                              "lastKey = GREATEST(lastKey, ?) " +
+                                                              "WHERE pid = ?");
+             PreparedStatement insert = conn.prepareStatement("INSERT INTO updateTrackerDirtyPids" +
+                                                              "(pid,lastKey,lastHappened,classes) " +
+                                                              "VALUES (?,?,?,?)")) {
+            for (Map.Entry<String, DirtyObject> entry : objects.entrySet()) {
+                String pid = entry.getKey();
+                DirtyObject object = entry.getValue();
+                Timestamp happened = new Timestamp(object.lastHappened.getTime());
+                update.setBoolean(1, object.reset);
+                update.setLong(2, object.lastKey);
+                update.setInt(3, object.classes);
+                update.setInt(4, object.classes);
+                update.setLong(5, object.lastKey);
+                update.setTimestamp(6, happened, tzUTC);
+                update.setLong(7, object.lastKey);
+                update.setString(8, pid);
+                if (update.executeUpdate() > 0) {
+                    continue;
+                }
+                //Another fedora might add the row at the same time, so if the insert fails, update the row instead
+                Savepoint savepoint = conn.setSavepoint();
+                try {
+                    insert.setString(1, pid);
+                    insert.setLong(2, object.lastKey);
+                    insert.setTimestamp(3, happened, tzUTC);
+                    insert.setInt(4, object.classes);
+                    insert.executeUpdate();
+                    conn.releaseSavepoint(savepoint);
+                } catch (SQLException e) {
+                    conn.rollback(savepoint);
+                    if (update.executeUpdate() == 0) {
+                        throw e;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Roll back what was not committed, and put the connection back in autocommit mode, before it is returned to the
+     * pool
+     * @param conn the connection
+     */
+    private void resetAutoCommit(Connection conn) {
+        try {
+            if (!conn.getAutoCommit()) {
+                try {
+                    conn.rollback();
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+            }
+        } catch (SQLException e) {
+            logger.warn("Failed to reset the update tracker database connection to autocommit", e);
+        }
+    }
+
+    /**
+     * Notify the listeners on the notify channel that a new log entry have been added.
+     * @param conn the connection the log entry was added with
+     * @param key the key of the log entry
+     * @throws SQLException
+     */
+    private void notify(Connection conn, long key) throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement("SELECT pg_notify(?,?)")) {
+            statement.setString(1, notifyChannel);
+            statement.setString(2, Long.toString(key));
+            statement.execute();
+        }
+    }
+
+    /**
+     * Mark a log entry as failed, as the operation failed. The entry is kept, so the keys have no holes, but the
+     * update tracker skips it.
+     * @param key the key of the log entry
+     * @throws IOException
+     */
+    public void markLogEntryFailed(Long key) throws IOException {
         if (key == null || key <= 0) {
             return;
         }
@@ -115,8 +593,10 @@ public class Database implements Closeable {
         try {
             Connection conn = cPool.getReadWriteConnection();
             try {
-                try (PreparedStatement statement = conn.prepareStatement("DELETE FROM updateTrackerLogs WHERE key = ?")) {
-                    statement.setLong(1, key);
+                try (PreparedStatement statement = conn.prepareStatement("UPDATE updateTrackerLogs SET state = ? " +
+                                                                         "WHERE key = ?")) {
+                    statement.setShort(1, STATE_FAILED);
+                    statement.setLong(2, key);
                     statement.executeUpdate();
                 }
             } finally {
@@ -127,7 +607,30 @@ public class Database implements Closeable {
                 }
             }
         } catch (SQLException e) {
-            throw new IOException("Failed to remove log entry with key '"+key+"' from update tracker database",e);
+            throw new IOException("Failed to mark log entry with key '"+key+"' as failed in update tracker database",e);
+        }
+    }
+
+    /**
+     * The log entries for an object, folded for the dirty summary
+     */
+    private static class DirtyObject {
+        private long lastKey = Long.MIN_VALUE;
+        private Date lastHappened;
+        private int classes;
+        private boolean reset;
+
+        private void add(long key, Date happened, int entryClasses, boolean resets) {
+            if (key > lastKey) {
+                lastKey = key;
+                lastHappened = happened;
+            }
+            if (resets) {
+                classes = entryClasses;
+                reset = true;
+            } else {
+                classes |= entryClasses;
+            }
         }
     }
 
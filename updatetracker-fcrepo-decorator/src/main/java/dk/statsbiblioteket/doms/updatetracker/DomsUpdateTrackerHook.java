@@ -6,12 +6,14 @@ import org.fcrepo.server.Context;
 import org.fcrepo.server.Server;
 import org.fcrepo.server.errors.ConnectionPoolNotFoundException;
 import org.fcrepo.server.errors.InitializationException;
+import org.fcrepo.server.management.Management;
 import org.fcrepo.server.management.ManagementModule;
 import org.fcrepo.server.proxy.AbstractInvocationHandler;
 import org.fcrepo.server.proxy.ModuleConfiguredInvocationHandler;
 import org.fcrepo.server.storage.ConnectionPool;
 import org.fcrepo.server.storage.ConnectionPoolManager;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
@@ -19,13 +21,29 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * The update tracker fedora hook. This hook stores information about all changing methods in a database, for later
  * replay in the update tracker.
  * The database is chosen via the fedora ConnectionPoolManager. Set the variable updateTrackerPoolName alongside the
  * decorator to specify which pool should be used.
- * Only changing operations are hooked.
+ * Set the variable updateTrackerNotifyChannel to have a postgres NOTIFY sent on this channel for each log entry, so the
+ * update tracker can be woken up at once instead of waiting for the next poll.
+ * Set the variable updateTrackerGroupCommit to true to have the log entries written in batches by a single writer
+ * thread, with one commit per batch, instead of one insert and commit per operation. The size of the queue, the max
+ * batch size and the max time in milliseconds to wait for an entry to be written are set with
+ * updateTrackerGroupCommitQueueSize, updateTrackerGroupCommitBatchSize and updateTrackerGroupCommitTimeout.
+ * Set the variable updateTrackerCompactSchema to true to have a new log table created in the compact version, with the
+ * method and param coded. An existing log table is used in the version it has.
+ * Set the variable updateTrackerSpoolFile to a local file, to have the log entries spooled to this file when the
+ * database fails, or is slower than updateTrackerSpoolLatencyBudget milliseconds. The spooled entries are added to the
+ * database, every updateTrackerSpoolDrainInterval milliseconds, when it is back.
+ * Set the variable updateTrackerDirtySummary to true to have the updateTrackerDirtyPids table kept with each log entry,
+ * with a row per changed object, for update trackers consuming the summary instead of the log.
+ * Only changing operations are hooked. The methods are classified once, so the read only methods, which are most of the
+ * calls, are passed on to fedora without further work.
  */
 public class DomsUpdateTrackerHook extends AbstractInvocationHandler implements ModuleConfiguredInvocationHandler {
 
@@ -33,7 +51,55 @@ public class DomsUpdateTrackerHook extends AbstractInvocationHandler implements
     private static Log logger = LogFactory.getLog(DomsUpdateTrackerHook.class);
     private static Log replayableLog = LogFactory.getLog("dk.statsbiblioteket.doms.updatetracker.ReplayLog");
 
+    /** What the hook does with a method */
+    enum MethodKind {
+        /** Read only, passed on without logging */
+        READ,
+        /** Ingest, logged after the invocation, as the pid is not known before */
+        INGEST,
+        /** Changing, logged before the invocation */
+        LOGGED,
+        /** Not known to the hook, passed on with a warning */
+        UNKNOWN;
+
+        static MethodKind of(String methodName) {
+            if (ManagementReads.isRead(methodName)) {
+                return READ;
+            }
+            LogMethod logMethod = LogMethod.forMethodName(methodName);
+            if (logMethod == LogMethod.INGEST) {
+                return INGEST;
+            }
+            if (logMethod != null) {
+                return LOGGED;
+            }
+            return UNKNOWN;
+        }
+    }
+
+    /** A method, with its kind, and for the read only methods of Management, the direct invoker */
+    private static class ClassifiedMethod {
+        private final MethodKind kind;
+        private final ManagementReads.Invoker invoker;
+
+        private ClassifiedMethod(Method method) {
+            this.kind = MethodKind.of(method.getName());
+            this.invoker = kind == MethodKind.READ ? ManagementReads.getInvoker(method) : null;
+        }
+    }
+
+    /** The methods, classified when the class is loaded. Methods from other interfaces are added on use */
+    private static final ConcurrentMap<Method, ClassifiedMethod> classifiedMethods = new ConcurrentHashMap<>();
+
+    static {
+        for (Method method : Management.class.getMethods()) {
+            classifiedMethods.put(method, new ClassifiedMethod(method));
+        }
+    }
+
     private Database database;
+    private GroupCommitWriter groupCommitWriter;
+    private LogSpool logSpool;
 
     @Override
     public void init(Server server) throws InitializationException {
@@ -65,14 +131,77 @@ public class DomsUpdateTrackerHook extends AbstractInvocationHandler implements
         } catch (ConnectionPoolNotFoundException e) {
             throw new InitializationException("Failed to find specified connection '" + cPoolName + "'", e);
         }
+        String notifyChannel = managementModule.getParameter("updateTrackerNotifyChannel");
+        if (notifyChannel != null) {
+            logger.debug("Notifying on channel: " + notifyChannel);
+        }
         try {
-            database = new Database(cPool);
+            boolean compactSchema = Boolean.parseBoolean(managementModule.getParameter("updateTrackerCompactSchema"));
+            boolean dirtySummary = Boolean.parseBoolean(managementModule.getParameter("updateTrackerDirtySummary"));
+            database = new Database(cPool, notifyChannel, compactSchema, dirtySummary);
         } catch (Exception e) {
             cPool.close();
             final StringWriter out = new StringWriter();
             e.printStackTrace(new PrintWriter(out));
             throw new InitializationException("Failed to open connection: " + out.toString(), e);
         }
+        if (Boolean.parseBoolean(managementModule.getParameter("updateTrackerGroupCommit"))) {
+            int queueSize = getIntParameter(managementModule, "updateTrackerGroupCommitQueueSize", 1000);
+            int batchSize = getIntParameter(managementModule, "updateTrackerGroupCommitBatchSize", 100);
+            int timeout = getIntParameter(managementModule, "updateTrackerGroupCommitTimeout", 30000);
+            logger.debug("Writing log entries in batches of up to " + batchSize + " entries");
+            groupCommitWriter = new GroupCommitWriter(database, queueSize, batchSize, timeout);
+        }
+        String spoolFile = managementModule.getParameter("updateTrackerSpoolFile");
+        if (spoolFile != null) {
+            int latencyBudget = getIntParameter(managementModule, "updateTrackerSpoolLatencyBudget", 1000);
+            int drainInterval = getIntParameter(managementModule, "updateTrackerSpoolDrainInterval", 1000);
+            logger.debug("Spooling log entries to " + spoolFile + " when the database is down or slow");
+            try {
+                logSpool = new LogSpool(database, new File(spoolFile), latencyBudget, 100, drainInterval);
+            } catch (IOException e) {
+                throw new InitializationException("Failed to open the log spool " + spoolFile, e);
+            }
+        }
+    }
+
+    /**
+     * Write the log entries waiting in the group commit writer, and close the spool, when fedora shuts down
+     */
+    @Override
+    public void close() {
+        if (groupCommitWriter != null) {
+            groupCommitWriter.close();
+        }
+        if (logSpool != null) {
+            try {
+                logSpool.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close the log spool", e);
+            }
+        }
+        super.close();
+    }
+
+    /**
+     * Use this database, instead of the one set up by init
+     * @param database the database
+     */
+    void setDatabase(Database database) {
+        this.database = database;
+    }
+
+    private static int getIntParameter(ManagementModule managementModule, String name, int defaultValue)
+            throws InitializationException {
+        String value = managementModule.getParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new InitializationException("The parameter " + name + " must be a number, not '" + value + "'", e);
+        }
     }
 
     public static String toUri(String pid) {
@@ -105,70 +234,61 @@ public class DomsUpdateTrackerHook extends AbstractInvocationHandler implements
     public Object invoke(Object proxy, Method method, Object[] args) throws
                                                                      Throwable {
         try {
-            final String methodName = method.getName();
-            switch (methodName) {
-                case "getObjectXML":
-                case "export":
-                case "getDatastream":
-                case "getDatastreams":
-                case "getDatastreamHistory":
-                case "compareDatastreamChecksum":
-                case "getNextPID":
-                case "getRelationships":
-                case "validate":
-                case "getTempStream":
-                case "putTempStream":
-                    //These methods should not be hooked, so go on immediately
-                    return method.invoke(target, args);
+            ClassifiedMethod classified = classifiedMethods.get(method);
+            if (classified == null) {
+                classified = new ClassifiedMethod(method);
+                classifiedMethods.putIfAbsent(method, classified);
             }
-
-            String pid;
-            Date now;
-            String param;
-            try {
-                Context context = (Context) args[0];
-                now = Server.getCurrentDate(context);
-                pid = toPid(args[1].toString());
-                param = null;
-                if (args.length > 2 && args[2] != null) {
-                    param = args[2].toString();
+            if (classified.kind == MethodKind.READ) {
+                //These methods should not be hooked, so go on immediately
+                if (classified.invoker != null) {
+                    return classified.invoker.invoke((Management) target, args);
                 }
-            } catch (Exception e) {
-                final String message = "Failed to parse params for method '" + methodName + "': " + Arrays.toString(args) +
-                                       "'";
-                logger.error(message, e);
-                throw new InvocationTargetException(e, message);
-            }
-
-            switch (methodName) {
-                case "ingest":
-                    param = null;
-                    pid = invokeIngestHook(method, args, now);
-                    replayableLog.info("Method: " + methodName + "(" + pid + ", " + now.getTime() + ", " + param + ")");
-                    return pid;
-                case "modifyObject":
-                case "purgeObject":
-                case "addDatastream":
-                case "modifyDatastreamByReference":
-                case "modifyDatastreamByValue":
-                case "purgeDatastream":
-                case "setDatastreamState":
-                case "setDatastreamVersionable":
-                case "addRelationship":
-                case "purgeRelationship":
-                    replayableLog.info("Method: " + methodName + "(" + pid + ", " + now.getTime() + ", " + param + ")");
-                    return invokeHook(method, args, methodName, pid, now, param);
-                default:
-                    logger.warn("Unknown method invoked: " + methodName + "(" + pid + ", " + now.getTime() + ", " +
-                                param +
-                                ")");
-                    return method.invoke(target, args);
+                return method.invoke(target, args);
             }
+            return invokeLogged(method, args, classified.kind);
         } catch (InvocationTargetException e){
             throw e.getCause();
         }
     }
 
+    private Object invokeLogged(Method method, Object[] args, MethodKind kind) throws Throwable {
+        final String methodName = method.getName();
+        String pid;
+        Date now;
+        String param;
+        try {
+            Context context = (Context) args[0];
+            now = Server.getCurrentDate(context);
+            pid = toPid(args[1].toString());
+            param = null;
+            if (args.length > 2 && args[2] != null) {
+                param = args[2].toString();
+            }
+        } catch (Exception e) {
+            final String message = "Failed to parse params for method '" + methodName + "': " + Arrays.toString(args) +
+                                   "'";
+            logger.error(message, e);
+            throw new InvocationTargetException(e, message);
+        }
+
+        switch (kind) {
+            case INGEST:
+                param = null;
+                pid = invokeIngestHook(method, args, now);
+                replayableLog.info("Method: " + methodName + "(" + pid + ", " + now.getTime() + ", " + param + ")");
+                return pid;
+            case LOGGED:
+                replayableLog.info("Method: " + methodName + "(" + pid + ", " + now.getTime() + ", " + param + ")");
+                return invokeHook(method, args, methodName, pid, now, param);
+            default:
+                logger.warn("Unknown method invoked: " + methodName + "(" + pid + ", " + now.getTime() + ", " +
+                            param +
+                            ")");
+                return method.invoke(target, args);
+        }
+    }
+
     /**
      * For ingest, we do not know the pid until after the operation completes
      *
@@ -186,12 +306,14 @@ public class DomsUpdateTrackerHook extends AbstractInvocationHandler implements
         String methodName = "ingest";
 
         String pid = (String) method.invoke(target, args);
-        addLogEntry(methodName, pid, now, null);
+        addLogEntry(methodName, pid, now, null, Database.STATE_COMMITTED);
         return pid;
     }
 
     /**
-     * First, add the log entry. Then invoke the method. Should the method fail, remove the log entry
+     * First, add the log entry as pending. Then invoke the method. Should the method fail, mark the log entry failed.
+     * A successful method leaves the entry pending, as marking it committed would cost another round trip to the
+     * database for every operation. The update tracker handles pending and committed entries alike.
      *
      * @param method     the method
      * @param args       args for the method
@@ -207,7 +329,7 @@ public class DomsUpdateTrackerHook extends AbstractInvocationHandler implements
     private Object invokeHook(Method method, Object[] args, String methodName, String pid, Date now,
                               String param) throws IllegalAccessException, InvocationTargetException {
         Long logkey;
-        logkey = addLogEntry(methodName, pid, now, param);
+        logkey = addLogEntry(methodName, pid, now, param, Database.STATE_PENDING);
 
         try {
             return method.invoke(target, args);
@@ -215,34 +337,65 @@ public class DomsUpdateTrackerHook extends AbstractInvocationHandler implements
             logger.info("Caught exception while invoking method " + methodName + "(" + pid + ", " + now.getTime() +
                         ", " +
                         param +
-                        ")" + " . Now attempting to remove log entry from database", e);
+                        ")" + " . Now attempting to mark log entry as failed in database", e);
 
-            removeLogEntry(methodName, pid, now, param, logkey);
+            markLogEntryFailed(methodName, pid, now, param, logkey);
             throw e;
         }
     }
 
-    private void removeLogEntry(String methodName, String pid, Date now, String param, Long logkey) {
+    private void markLogEntryFailed(String methodName, String pid, Date now, String param, Long logkey) {
         try {
-            database.removeLogEntry(logkey);
+            if (logkey != null && logkey < 0) {
+                logSpool.markFailed(-logkey);
+            } else {
+                database.markLogEntryFailed(logkey);
+            }
 
             logger.info("For method" + "" + methodName + "(" + pid + ", " + now.getTime() + ", " +
                         param +
-                        ")" + ", we removed logKey '" + logkey + "' from the database");
+                        ")" + ", we marked logKey '" + logkey + "' as failed in the database");
         } catch (IOException e) {
 
             logger.error("For method" + "" + methodName + "(" + pid + ", " + now.getTime() + ", " +
                          param +
-                         ")" + ", we failed to remove logKey '" + logkey + "' from the database", e);
+                         ")" + ", we failed to mark logKey '" + logkey + "' as failed in the database", e);
         }
     }
 
-    private Long addLogEntry(String methodName, String pid, Date now, String param) throws InvocationTargetException {
+    /**
+     * Add the log entry to the database, or to the spool, if it is in use
+     * @return the key of the log entry, or the negated sequence number if the log entry was spooled
+     * @throws InvocationTargetException
+     */
+    private Long addLogEntry(String methodName, String pid, Date now, String param, short state)
+            throws InvocationTargetException {
         Long logkey;
         try {
             logger.debug("For method" + "" + methodName + "(" + pid + ", " + now.getTime() + ", " + param +
                          ")" + ", add a log entry to the database");
-            logkey = database.addLogEntry(pid, now, methodName, param);
+            LogEntry entry = new LogEntry(pid, now, methodName, param, state);
+            if (logSpool != null && logSpool.isSpooling()) {
+                return -logSpool.append(entry);
+            }
+            long before = System.currentTimeMillis();
+            try {
+                if (groupCommitWriter != null) {
+                    logkey = groupCommitWriter.addLogEntry(entry);
+                } else {
+                    logkey = database.addLogEntry(pid, now, methodName, param, state);
+                }
+            } catch (IOException e) {
+                if (logSpool == null) {
+                    throw e;
+                }
+                logger.warn("For method" + "" + methodName + "(" + pid + ", " + now.getTime() + ", " + param +
+                            ")" + ", we failed to add log to database, so it is spooled", e);
+                return -logSpool.append(entry);
+            }
+            if (logSpool != null) {
+                logSpool.writeTook(System.currentTimeMillis() - before);
+            }
         } catch (IOException e) {
             final String message = "For method" + "" + methodName + "(" + pid + ", " + now.getTime() + ", " + param +
                                    ")" + ", we failed to add log to database";
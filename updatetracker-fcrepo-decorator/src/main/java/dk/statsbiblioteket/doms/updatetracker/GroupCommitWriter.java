@@ -0,0 +1,260 @@
+package dk.statsbiblioteket.doms.updatetracker;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adds log entries to the database in batches, with one commit per batch. The fedora request threads put their
+ * entries in a bounded queue, and wait for the batch their entry is written in. A single writer thread takes all the
+ * entries waiting in the queue, up to batchSize, and writes them with one multi row insert. While a batch is
+ * written, the next one gathers in the queue, so under load each request thread waits for about one commit, shared
+ * with the other requests in its batch.
+ *
+ * If a batch fails, all the entries in it fail, and the request threads get the failure, as with a single insert.
+ *
+ * A request thread that times out gives up its entry, so the fedora operation can be aborted without leaving a log
+ * entry behind. If the entry is still in the queue, it is taken out and never written. If the writer has already
+ * taken it, it is marked failed when written, so the update tracker skips it.
+ *
+ * Entries with STATE_COMMITTED are never given up on. They are written after the fedora operation succeeded, so it
+ * cannot be aborted, and marking the entry failed would lose the operation. Their request threads wait for the write
+ * however long it takes, as with a single insert.
+ */
+public class GroupCommitWriter implements Closeable {
+
+    private static Log logger = LogFactory.getLog(GroupCommitWriter.class);
+
+    private final Database database;
+    private final int batchSize;
+    private final long timeout;
+    private final BlockingQueue<PendingEntry> queue;
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    /**
+     * @param database the database to write to
+     * @param queueSize the max number of entries waiting to be written
+     * @param batchSize the max number of entries to write in one batch
+     * @param timeout the max time in milliseconds a request thread waits for its entry to be written
+     */
+    public GroupCommitWriter(Database database, int queueSize, int batchSize, long timeout) {
+        this.database = database;
+        this.batchSize = batchSize;
+        this.timeout = timeout;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "UpdateTracker-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Add a log entry, and wait for the batch it is in to be committed
+     * @param entry the log entry
+     * @return the autogenerated key of the log entry in the database
+     * @throws IOException if the entry could not be written, or was not written in time
+     */
+    public long addLogEntry(LogEntry entry) throws IOException {
+        if (closed) {
+            throw new IOException("The log writer is closed");
+        }
+        PendingEntry pending = new PendingEntry(entry);
+        if (entry.getState() == Database.STATE_COMMITTED) {
+            return addCommittedLogEntry(pending);
+        }
+        try {
+            if (!queue.offer(pending, timeout, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out waiting for room in the log writer queue for " + entry);
+            }
+            if (!pending.written.await(timeout, TimeUnit.MILLISECONDS) && giveUp(pending)) {
+                throw new IOException("Timed out waiting for the log entry " + entry + " to be written");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (giveUp(pending)) {
+                throw new IOException("Interrupted while waiting for the log entry " + entry + " to be written", e);
+            }
+        }
+        if (pending.failure != null) {
+            throw pending.failure;
+        }
+        return pending.key;
+    }
+
+    /**
+     * Add a log entry for an operation that has already happened, and wait for it to be written without a timeout.
+     * An interrupt is kept for the caller, but does not stop the wait.
+     * @param pending the entry
+     * @return the autogenerated key of the log entry in the database
+     * @throws IOException if the entry could not be written
+     */
+    private long addCommittedLogEntry(PendingEntry pending) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    queue.put(pending);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            while (true) {
+                try {
+                    pending.written.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (pending.failure != null) {
+            throw pending.failure;
+        }
+        return pending.key;
+    }
+
+    /**
+     * Give up on an entry that was not written in time. An entry still in the queue is taken out. An entry the writer
+     * is writing is marked failed when written.
+     * @param pending the entry
+     * @return true if the entry was given up on, false if it was written in the meantime
+     */
+    private boolean giveUp(PendingEntry pending) {
+        if (pending.state.compareAndSet(PendingEntry.QUEUED, PendingEntry.CANCELLED)) {
+            queue.remove(pending);
+            return true;
+        }
+        return pending.state.compareAndSet(PendingEntry.WRITING, PendingEntry.ABANDONED);
+    }
+
+    /**
+     * The writer thread. Writes the entries in the queue in batches until closed
+     */
+    private void write() {
+        List<PendingEntry> batch = new ArrayList<>(batchSize);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                PendingEntry first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                //Skip the entries given up on by their request threads
+                for (Iterator<PendingEntry> iterator = batch.iterator(); iterator.hasNext(); ) {
+                    if (!iterator.next().state.compareAndSet(PendingEntry.QUEUED, PendingEntry.WRITING)) {
+                        iterator.remove();
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    write(batch);
+                }
+            } catch (InterruptedException e) {
+                logger.debug("Log writer interrupted", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(List<PendingEntry> batch) {
+        List<LogEntry> entries = new ArrayList<>(batch.size());
+        for (PendingEntry pending : batch) {
+            entries.add(pending.entry);
+        }
+        try {
+            List<Long> keys = database.addLogEntries(entries);
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).key = keys.get(i);
+            }
+            for (PendingEntry pending : batch) {
+                if (!pending.state.compareAndSet(PendingEntry.WRITING, PendingEntry.WRITTEN)) {
+                    markAbandoned(pending);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Failed to write a batch of " + batch.size() + " log entries", e);
+            for (PendingEntry pending : batch) {
+                pending.failure = e;
+            }
+        } catch (RuntimeException e) {
+            logger.error("Failed to write a batch of " + batch.size() + " log entries", e);
+            for (PendingEntry pending : batch) {
+                pending.failure = new IOException(e);
+            }
+        } finally {
+            for (PendingEntry pending : batch) {
+                pending.written.countDown();
+            }
+        }
+    }
+
+    /**
+     * Mark an entry failed, as its request thread gave up while it was written, and the fedora operation was aborted
+     * @param pending the entry
+     */
+    private void markAbandoned(PendingEntry pending) {
+        logger.warn("The log entry " + pending.entry + " was written after its request gave up, marking it failed");
+        try {
+            database.markLogEntryFailed(pending.key);
+        } catch (IOException e) {
+            logger.error("Failed to mark the log entry " + pending.entry + " with key '" + pending.key + "' as failed",
+                         e);
+        }
+    }
+
+    /**
+     * Stop accepting entries, and wait for the entries in the queue to be written
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            writer.join(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A log entry in the queue. The key or failure is set by the writer thread before the latch is released.
+     * The state tells whether the request thread or the writer thread got to the entry first, when it times out.
+     */
+    private static class PendingEntry {
+        private static final int QUEUED = 0;
+        private static final int CANCELLED = 1;
+        private static final int WRITING = 2;
+        private static final int ABANDONED = 3;
+        private static final int WRITTEN = 4;
+
+        private final LogEntry entry;
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+        private final CountDownLatch written = new CountDownLatch(1);
+        private volatile long key;
+        private volatile IOException failure;
+
+        private PendingEntry(LogEntry entry) {
+            this.entry = entry;
+        }
+    }
+}
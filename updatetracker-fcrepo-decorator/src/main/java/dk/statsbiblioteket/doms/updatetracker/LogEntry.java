@@ -0,0 +1,55 @@
+package dk.statsbiblioteket.doms.updatetracker;
+
+import java.util.Date;
+
+/**
+ * A log entry waiting to be added to the update tracker log database
+ */
+public class LogEntry {
+
+    private final String pid;
+    private final Date timestamp;
+    private final String method;
+    private final String param;
+    private final short state;
+
+    /**
+     * @param pid the pid of the object on which the method was invoked
+     * @param timestamp the timestamp of the invocation
+     * @param method the name of the method
+     * @param param the first parameter (after pid) of the method, or null
+     * @param state the state of the log entry, Database.STATE_PENDING or Database.STATE_COMMITTED
+     */
+    public LogEntry(String pid, Date timestamp, String method, String param, short state) {
+        this.pid = pid;
+        this.timestamp = timestamp;
+        this.method = method;
+        this.param = param;
+        this.state = state;
+    }
+
+    public String getPid() {
+        return pid;
+    }
+
+    public Date getTimestamp() {
+        return timestamp;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getParam() {
+        return param;
+    }
+
+    public short getState() {
+        return state;
+    }
+
+    @Override
+    public String toString() {
+        return method + "(" + pid + ", " + timestamp.getTime() + ", " + param + ")";
+    }
+}
@@ -0,0 +1,94 @@
+package dk.statsbiblioteket.doms.updatetracker;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The logged fedora methods, with the codes they are stored with in the compact update tracker log table.
+ * The codes are written to the updateTrackerMethods table, which the update tracker decodes the method names with,
+ * so a code must never be changed or reused.
+ */
+public enum LogMethod {
+    INGEST(1, "ingest"),
+    MODIFY_OBJECT(2, "modifyObject"),
+    PURGE_OBJECT(3, "purgeObject"),
+    ADD_DATASTREAM(4, "addDatastream"),
+    MODIFY_DATASTREAM_BY_REFERENCE(5, "modifyDatastreamByReference"),
+    MODIFY_DATASTREAM_BY_VALUE(6, "modifyDatastreamByValue"),
+    PURGE_DATASTREAM(7, "purgeDatastream"),
+    SET_DATASTREAM_STATE(8, "setDatastreamState"),
+    SET_DATASTREAM_VERSIONABLE(9, "setDatastreamVersionable"),
+    ADD_RELATIONSHIP(10, "addRelationship"),
+    PURGE_RELATIONSHIP(11, "purgeRelationship");
+
+    private static final Map<String, LogMethod> byMethodName = new HashMap<>();
+
+    static {
+        for (LogMethod logMethod : values()) {
+            byMethodName.put(logMethod.methodName, logMethod);
+        }
+    }
+
+    private final short code;
+    private final String methodName;
+
+    LogMethod(int code, String methodName) {
+        this.code = (short) code;
+        this.methodName = methodName;
+    }
+
+    public short getCode() {
+        return code;
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    /**
+     * The classes of the operation in the dirty summary. Changes to RELS-EXT and VIEW change the structure, like the
+     * relations of the object itself. Relations of a datastream, in RELS-INT, are logged with the pid of the datastream.
+     * @param pid the pid logged for the operation
+     * @param param the param logged for the operation
+     * @return the classes of the operation, a combination of the Database.DIRTY_ constants
+     */
+    public int getDirtyClasses(String pid, String param) {
+        switch (this) {
+            case INGEST:
+                return Database.DIRTY_STRUCTURAL;
+            case MODIFY_OBJECT:
+                return Database.DIRTY_STATE;
+            case PURGE_OBJECT:
+                return Database.DIRTY_PURGE;
+            case ADD_DATASTREAM:
+            case MODIFY_DATASTREAM_BY_REFERENCE:
+            case MODIFY_DATASTREAM_BY_VALUE:
+            case PURGE_DATASTREAM:
+                if ("RELS-EXT".equals(param) || "VIEW".equals(param)) {
+                    return Database.DIRTY_STRUCTURAL;
+                }
+                return Database.DIRTY_DATASTREAM;
+            case ADD_RELATIONSHIP:
+            case PURGE_RELATIONSHIP:
+                return pid.contains("/") ? Database.DIRTY_DATASTREAM : Database.DIRTY_STRUCTURAL;
+            default:
+                return Database.DIRTY_DATASTREAM;
+        }
+    }
+
+    /**
+     * @return true if the operation makes the earlier operations on the object irrelevant, so it resets the classes
+     * of the object in the dirty summary
+     */
+    public boolean resetsDirtyClasses() {
+        return this == INGEST || this == PURGE_OBJECT;
+    }
+
+    /**
+     * @param methodName the name of the fedora method
+     * @return the logged method, or null if the method is not logged
+     */
+    public static LogMethod forMethodName(String methodName) {
+        return byMethodName.get(methodName);
+    }
+}
@@ -0,0 +1,423 @@
+package dk.statsbiblioteket.doms.updatetracker;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * A local, append only spool file for log entries, used when the update tracker log database is down or slow.
+ *
+ * When an entry could not be added to the database, or the database was slower than the latency budget, the spool is
+ * started, and all entries go to the spool file until it has been drained. This keeps the entries in order, as no
+ * entry is written to the database before the spooled entries. The appends are forced to disk in groups, so
+ * concurrent requests share the fsync.
+ *
+ * A drainer thread adds the spooled entries to the database in order, and truncates the spool when it has caught up
+ * and the database is within the latency budget again. A spooled entry has no key until it is drained, so the
+ * spool hands out a sequence number instead. If the operation of a spooled entry fails, the entry is marked failed in
+ * the spool, or in the database if it has been drained already. The keys of the drained entries are remembered until
+ * the spool has been truncated twice, so a failure must be reported before that.
+ *
+ * Entries left in the spool when fedora stops are drained when it starts again. A record cut short, or with a bad
+ * checksum, at the end of the spool is cut off then, so new entries are not appended after it. The drained position
+ * is advanced after each batch added to the database, so a failing batch is retried without adding the batches
+ * before it again. If fedora stops in the middle of a drain, the entries of that drain are added again, which the
+ * update tracker handles like repeated operations.
+ */
+public class LogSpool implements Closeable {
+
+    private static Log logger = LogFactory.getLog(LogSpool.class);
+
+    private static final byte ENTRY = 1;
+    private static final byte FAILED = 2;
+
+    private final Database database;
+    private final File file;
+    private final FileChannel channel;
+    private final long latencyBudget;
+    private final int batchSize;
+    private final Thread drainer;
+
+    /** Guards the spool file position, the sequence numbers and the spooling state */
+    private final Object lock = new Object();
+    /** Guards the fsync of the spool file */
+    private final Object syncLock = new Object();
+
+    private boolean spooling;
+    private long nextSequence = 1;
+    private long drainedPosition = 0;
+    private volatile long written = 0;
+    private volatile long synced = 0;
+    private volatile boolean closed = false;
+
+    /**
+     * The keys of the entries drained from the spool file, by sequence number, so they can be marked failed. Kept
+     * until the spool file is truncated, and then for one more spooling, for the operations still running.
+     */
+    private Map<Long, Long> drainedKeys = new HashMap<>();
+    private Map<Long, Long> truncatedKeys = new HashMap<>();
+    /** The entries before this sequence number have been drained, and their keys forgotten */
+    private long forgottenSequence = 1;
+
+    /**
+     * @param database the database to drain the spool to
+     * @param file the spool file. Entries left in it are drained.
+     * @param latencyBudget the max time in milliseconds a database write may take, before entries are spooled
+     * @param batchSize the max number of entries to add to the database in one insert when draining
+     * @param drainInterval the time in milliseconds between attempts to drain the spool
+     * @throws IOException if the spool file could not be opened
+     */
+    public LogSpool(Database database, File file, long latencyBudget, int batchSize, final long drainInterval)
+            throws IOException {
+        this.database = database;
+        this.file = file;
+        this.latencyBudget = latencyBudget;
+        this.batchSize = batchSize;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                        StandardOpenOption.WRITE);
+        written = channel.size();
+        synced = written;
+        spooling = written > 0;
+        if (spooling) {
+            logger.warn("Found " + written + " bytes of log entries in the spool file " + file + ", to be drained");
+            Records records = readRecords(0, written);
+            nextSequence = records.nextSequence;
+            if (records.end < written) {
+                logger.warn("Cutting the log spool " + file + " off at " + records.end + " of " + written + " bytes");
+                channel.truncate(records.end);
+                channel.force(false);
+                written = records.end;
+                synced = written;
+                spooling = written > 0;
+            }
+        }
+        this.drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!closed) {
+                    try {
+                        Thread.sleep(drainInterval);
+                        drain();
+                    } catch (InterruptedException e) {
+                        logger.debug("Spool drainer interrupted", e);
+                    } catch (IOException | RuntimeException e) {
+                        logger.warn("Failed to drain the log spool " + LogSpool.this.file + ", retrying", e);
+                    }
+                }
+            }
+        }, "UpdateTracker-spool-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * @return true if new entries must be spooled, to stay behind the entries already in the spool
+     */
+    public boolean isSpooling() {
+        synchronized (lock) {
+            return spooling;
+        }
+    }
+
+    /**
+     * Tell the spool how long a database write took. If it was over the latency budget, the following entries are
+     * spooled until the spool has been drained.
+     * @param millis the time in milliseconds the write took
+     */
+    public void writeTook(long millis) {
+        if (millis > latencyBudget) {
+            synchronized (lock) {
+                if (!spooling) {
+                    logger.warn("Adding a log entry took " + millis + " ms, spooling the log entries to " + file);
+                    spooling = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Append a log entry to the spool, and wait for it to be on disk
+     * @param entry the log entry
+     * @return the sequence number of the entry in the spool
+     * @throws IOException if the entry could not be written to the spool
+     */
+    public long append(LogEntry entry) throws IOException {
+        long sequence;
+        long end;
+        synchronized (lock) {
+            if (!spooling) {
+                logger.warn("Spooling the log entries to " + file);
+                spooling = true;
+            }
+            sequence = nextSequence++;
+            end = write(ENTRY, sequence, entry);
+        }
+        sync(end);
+        return sequence;
+    }
+
+    /**
+     * Mark a spooled entry failed, as the operation failed
+     * @param sequence the sequence number of the entry
+     * @throws IOException if the entry could not be marked failed, also if it was drained before the last spooling
+     */
+    public void markFailed(long sequence) throws IOException {
+        Long key;
+        long end;
+        synchronized (lock) {
+            key = getDrainedKey(sequence);
+            if (key == null && sequence < forgottenSequence) {
+                throw new IOException("The spooled log entry " + sequence + " was drained too long ago to be marked " +
+                                      "failed");
+            }
+            if (key == null) {
+                end = write(FAILED, sequence, null);
+            } else {
+                end = -1;
+            }
+        }
+        if (key != null) {
+            database.markLogEntryFailed(key);
+        } else {
+            sync(end);
+        }
+    }
+
+    /**
+     * Get the key of a drained entry. Must be called with the lock held.
+     * @return the key, or null if the entry has not been drained, or was drained too long ago
+     */
+    private Long getDrainedKey(long sequence) {
+        Long key = drainedKeys.get(sequence);
+        return key != null ? key : truncatedKeys.get(sequence);
+    }
+
+    /**
+     * Write a record at the end of the spool file. Must be called with the lock held.
+     * @return the position after the record
+     */
+    private long write(byte type, long sequence, LogEntry entry) throws IOException {
+        if (closed) {
+            throw new IOException("The log spool " + file + " is closed");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        out.writeLong(sequence);
+        if (entry != null) {
+            out.writeUTF(entry.getPid());
+            out.writeLong(entry.getTimestamp().getTime());
+            out.writeUTF(entry.getMethod());
+            out.writeBoolean(entry.getParam() != null);
+            if (entry.getParam() != null) {
+                out.writeUTF(entry.getParam());
+            }
+            out.writeShort(entry.getState());
+        }
+        out.flush();
+        byte[] record = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + record.length + 8);
+        buffer.putInt(record.length).put(record).putLong(crc.getValue());
+        buffer.flip();
+        long position = written;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        written = position;
+        return position;
+    }
+
+    /**
+     * Force the spool file to disk, up to a position. Threads waiting for the same fsync share it.
+     */
+    private void sync(long position) throws IOException {
+        if (synced >= position) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (synced >= position) {
+                return;
+            }
+            long upTo = written;
+            channel.force(false);
+            synced = upTo;
+        }
+    }
+
+    /**
+     * Add the spooled entries to the database, in order. When the spool has been drained, and the database was within
+     * the latency budget, the spool file is truncated and new entries go to the database again.
+     * @throws IOException if the entries could not be added to the database
+     */
+    void drain() throws IOException {
+        long from;
+        long to;
+        synchronized (lock) {
+            if (!spooling) {
+                return;
+            }
+            from = drainedPosition;
+            to = written;
+        }
+        Records records = readRecords(from, to);
+        //Entries drained before the failure was spooled are marked failed in the database
+        for (Long sequence : records.failed) {
+            Long key;
+            synchronized (lock) {
+                key = getDrainedKey(sequence);
+            }
+            if (key != null) {
+                database.markLogEntryFailed(key);
+            } else if (!records.sequences.contains(sequence)) {
+                logger.error("The spooled log entry " + sequence + " is marked failed in the spool " + file +
+                             ", but its key is forgotten, so it can not be marked failed in the database");
+            }
+        }
+        long slowest = 0;
+        for (int start = 0; start < records.entries.size(); start += batchSize) {
+            List<Long> sequences = records.sequences.subList(start,
+                                                             Math.min(start + batchSize, records.entries.size()));
+            List<LogEntry> batch = new ArrayList<>(sequences.size());
+            for (int i = start; i < start + sequences.size(); i++) {
+                LogEntry entry = records.entries.get(i);
+                if (records.failed.contains(records.sequences.get(i))) {
+                    entry = new LogEntry(entry.getPid(), entry.getTimestamp(), entry.getMethod(), entry.getParam(),
+                                         Database.STATE_FAILED);
+                }
+                batch.add(entry);
+            }
+            long before = System.currentTimeMillis();
+            List<Long> keys = database.addLogEntries(batch);
+            slowest = Math.max(slowest, System.currentTimeMillis() - before);
+            synchronized (lock) {
+                for (int i = 0; i < keys.size(); i++) {
+                    drainedKeys.put(sequences.get(i), keys.get(i));
+                }
+                drainedPosition = records.ends.get(start + sequences.size() - 1);
+            }
+        }
+        if (!records.entries.isEmpty()) {
+            logger.info("Drained " + records.entries.size() + " log entries from the spool " + file);
+        }
+        synchronized (lock) {
+            drainedPosition = to;
+            if (written == to && slowest <= latencyBudget) {
+                channel.truncate(0);
+                channel.force(false);
+                written = 0;
+                synced = 0;
+                drainedPosition = 0;
+                spooling = false;
+                truncatedKeys = drainedKeys;
+                drainedKeys = new HashMap<>();
+                forgottenSequence = truncatedKeys.isEmpty() ? nextSequence : Collections.min(truncatedKeys.keySet());
+                logger.info("The log spool " + file + " is drained, adding log entries to the database again");
+            }
+        }
+    }
+
+    /**
+     * Read the records in a range of the spool file. A record cut short by a crash ends the range.
+     */
+    private Records readRecords(long from, long to) throws IOException {
+        Records records = new Records();
+        records.end = from;
+        InputStream stream = Channels.newInputStream(channel.position(from));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        long position = from;
+        try {
+            while (position < to) {
+                int length = in.readInt();
+                byte[] record = new byte[length];
+                in.readFully(record);
+                long checksum = in.readLong();
+                CRC32 crc = new CRC32();
+                crc.update(record);
+                if (crc.getValue() != checksum) {
+                    logger.error("Corrupt record at " + position + " in the log spool " + file + ", skipping the rest");
+                    break;
+                }
+                position += 4 + length + 8;
+                readRecord(new DataInputStream(new ByteArrayInputStream(record)), records, position);
+                records.end = position;
+            }
+        } catch (EOFException e) {
+            logger.warn("Incomplete record at " + position + " in the log spool " + file + ", skipping it");
+        }
+        return records;
+    }
+
+    private void readRecord(DataInputStream in, Records records, long end) throws IOException {
+        byte type = in.readByte();
+        long sequence = in.readLong();
+        records.nextSequence = Math.max(records.nextSequence, sequence + 1);
+        if (type == FAILED) {
+            records.failed.add(sequence);
+            return;
+        }
+        String pid = in.readUTF();
+        Date timestamp = new Date(in.readLong());
+        String method = in.readUTF();
+        String param = in.readBoolean() ? in.readUTF() : null;
+        short state = in.readShort();
+        records.sequences.add(sequence);
+        records.entries.add(new LogEntry(pid, timestamp, method, param, state));
+        records.ends.add(end);
+    }
+
+    /**
+     * Stop draining, and close the spool file. Entries left in it are drained when the spool is opened again.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        drainer.interrupt();
+        try {
+            drainer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (lock) {
+            channel.close();
+        }
+    }
+
+    /**
+     * The records read from the spool file
+     */
+    private static class Records {
+        private final List<Long> sequences = new ArrayList<>();
+        private final List<LogEntry> entries = new ArrayList<>();
+        /** The position after each entry record */
+        private final List<Long> ends = new ArrayList<>();
+        private final Set<Long> failed = new HashSet<>();
+        private long nextSequence = 1;
+        /** The position after the last complete record */
+        private long end;
+    }
+}
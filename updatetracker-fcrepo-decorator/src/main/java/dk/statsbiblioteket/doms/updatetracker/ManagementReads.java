@@ -0,0 +1,119 @@
+package dk.statsbiblioteket.doms.updatetracker;
+
+import org.fcrepo.server.Context;
+import org.fcrepo.server.management.Management;
+
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The read only methods of the fedora Management API, which the hook passes straight on. Each is called directly on
+ * the target, so the reads, which are most of the calls, do not pay for a reflective invocation.
+ */
+class ManagementReads {
+
+    /**
+     * Invokes a read only method directly on the target
+     */
+    interface Invoker {
+        Object invoke(Management target, Object[] args) throws Exception;
+    }
+
+    private static final Map<String, Invoker> invokers = new HashMap<>();
+
+    static {
+        invokers.put("getObjectXML", new Invoker() {
+            @Override
+            public Object invoke(Management target, Object[] args) throws Exception {
+                return target.getObjectXML((Context) args[0], (String) args[1], (String) args[2]);
+            }
+        });
+        invokers.put("export", new Invoker() {
+            @Override
+            public Object invoke(Management target, Object[] args) throws Exception {
+                return target.export((Context) args[0], (String) args[1], (String) args[2], (String) args[3],
+                                     (String) args[4]);
+            }
+        });
+        invokers.put("getDatastream", new Invoker() {
+            @Override
+            public Object invoke(Management target, Object[] args) throws Exception {
+                return target.getDatastream((Context) args[0], (String) args[1], (String) args[2], (Date) args[3]);
+            }
+        });
+        invokers.put("getDatastreams", new Invoker() {
+            @Override
+            public Object invoke(Management target, Object[] args) throws Exception {
+                return target.getDatastreams((Context) args[0], (String) args[1], (Date) args[2], (String) args[3]);
+            }
+        });
+        invokers.put("getDatastreamHistory", new Invoker() {
+            @Override
+            public Object invoke(Management target, Object[] args) throws Exception {
+                return target.getDatastreamHistory((Context) args[0], (String) args[1], (String) args[2]);
+            }
+        });
+        invokers.put("compareDatastreamChecksum", new Invoker() {
+            @Override
+            public Object invoke(Management target, Object[] args) throws Exception {
+                return target.compareDatastreamChecksum((Context) args[0], (String) args[1], (String) args[2],
+                                                        (Date) args[3]);
+            }
+        });
+        invokers.put("getNextPID", new Invoker() {
+            @Override
+            public Object invoke(Management target, Object[] args) throws Exception {
+                return target.getNextPID((Context) args[0], (Integer) args[1], (String) args[2]);
+            }
+        });
+        invokers.put("getRelationships", new Invoker() {
+            @Override
+            public Object invoke(Management target, Object[] args) throws Exception {
+                return target.getRelationships((Context) args[0], (String) args[1], (String) args[2]);
+            }
+        });
+        invokers.put("validate", new Invoker() {
+            @Override
+            public Object invoke(Management target, Object[] args) throws Exception {
+                return target.validate((Context) args[0], (String) args[1], (Date) args[2]);
+            }
+        });
+        invokers.put("getTempStream", new Invoker() {
+            @Override
+            public Object invoke(Management target, Object[] args) throws Exception {
+                return target.getTempStream((String) args[0]);
+            }
+        });
+        invokers.put("putTempStream", new Invoker() {
+            @Override
+            public Object invoke(Management target, Object[] args) throws Exception {
+                return target.putTempStream((Context) args[0], (InputStream) args[1]);
+            }
+        });
+    }
+
+    private ManagementReads() {
+    }
+
+    /**
+     * @param methodName the name of a method
+     * @return true if the method is a read only method of Management
+     */
+    static boolean isRead(String methodName) {
+        return invokers.containsKey(methodName);
+    }
+
+    /**
+     * @param method the invoked method
+     * @return the direct invoker of the method, or null if the method is not a read only method of Management
+     */
+    static Invoker getInvoker(Method method) {
+        if (method.getDeclaringClass() != Management.class) {
+            return null;
+        }
+        return invokers.get(method.getName());
+    }
+}
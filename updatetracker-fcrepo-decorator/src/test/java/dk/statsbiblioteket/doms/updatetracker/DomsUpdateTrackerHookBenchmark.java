@@ -0,0 +1,118 @@
+package dk.statsbiblioteket.doms.updatetracker;
+
+import org.fcrepo.server.Context;
+import org.fcrepo.server.management.Management;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the cost of the hook per call, for a read and a changing method, against calling fedora directly.
+ * Fedora and the database are stubbed, so only the work of the hook itself is measured.
+ *
+ * Run the main method from the test classpath, after mvn test-compile.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DomsUpdateTrackerHookBenchmark {
+
+    private Management fedora;
+    private Management hooked;
+    private Context context;
+    private Date asOf = new Date();
+
+    @Setup
+    public void setUp() {
+        fedora = stub(Management.class, null);
+        context = stub(Context.class, "2016-01-01T00:00:00.000Z");
+
+        DomsUpdateTrackerHook hook = new DomsUpdateTrackerHook();
+        hook.setTarget(fedora);
+        hook.setDatabase(new StubDatabase());
+        hooked = (Management) Proxy.newProxyInstance(Management.class.getClassLoader(),
+                                                     new Class[]{Management.class}, hook);
+    }
+
+    @Benchmark
+    public Object readDirect() throws Exception {
+        return fedora.getDatastream(context, "doms:benchmark", "DC", asOf);
+    }
+
+    @Benchmark
+    public Object readHooked() throws Exception {
+        return hooked.getDatastream(context, "doms:benchmark", "DC", asOf);
+    }
+
+    @Benchmark
+    public Object writeDirect() throws Exception {
+        return fedora.setDatastreamState(context, "doms:benchmark", "DC", "A", "benchmark");
+    }
+
+    @Benchmark
+    public Object writeHooked() throws Exception {
+        return hooked.setDatastreamState(context, "doms:benchmark", "DC", "A", "benchmark");
+    }
+
+    /**
+     * A stub of an interface, where every method returns the given value, or the default of the primitive type
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type, final Object value) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class[]{type}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                Class<?> returnType = method.getReturnType();
+                if (returnType == boolean.class) {
+                    return false;
+                }
+                if (returnType == String.class) {
+                    return value;
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * A database which only hands out keys
+     */
+    private static class StubDatabase extends Database {
+        private final AtomicLong keys = new AtomicLong();
+
+        @Override
+        public Long addLogEntry(String pid, Date timestamp, String name, String param, short state)
+                throws IOException {
+            return keys.incrementAndGet();
+        }
+
+        @Override
+        public void markLogEntryFailed(Long key) throws IOException {
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(DomsUpdateTrackerHookBenchmark.class.getSimpleName()).build()).run();
+    }
+}
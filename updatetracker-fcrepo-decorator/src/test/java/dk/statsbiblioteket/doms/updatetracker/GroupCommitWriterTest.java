@@ -0,0 +1,197 @@
+package dk.statsbiblioteket.doms.updatetracker;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GroupCommitWriterTest {
+
+    private static LogEntry entry(String pid) {
+        return new LogEntry(pid, new Date(), "modifyDatastreamByValue", "DC", Database.STATE_PENDING);
+    }
+
+    private static LogEntry ingested(String pid) {
+        return new LogEntry(pid, new Date(), "ingest", null, Database.STATE_COMMITTED);
+    }
+
+    /**
+     * A database that hands out keys in order, and holds the first batch until released
+     */
+    private static class BlockingDatabase extends Database {
+        private final CountDownLatch writing = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final List<List<String>> batches = Collections.synchronizedList(new ArrayList<List<String>>());
+        private final List<Long> failed = Collections.synchronizedList(new ArrayList<Long>());
+        private final CountDownLatch markedFailed = new CountDownLatch(1);
+        private long nextKey = 1;
+
+        @Override
+        public List<Long> addLogEntries(List<LogEntry> entries) throws IOException {
+            writing.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            List<String> pids = new ArrayList<>();
+            List<Long> keys = new ArrayList<>();
+            synchronized (this) {
+                for (LogEntry entry : entries) {
+                    pids.add(entry.getPid());
+                    keys.add(nextKey++);
+                }
+            }
+            batches.add(pids);
+            return keys;
+        }
+
+        @Override
+        public void markLogEntryFailed(Long key) throws IOException {
+            failed.add(key);
+            markedFailed.countDown();
+        }
+    }
+
+    private static Future<Long> add(ExecutorService threads, GroupCommitWriter writer, String pid) {
+        return add(threads, writer, entry(pid));
+    }
+
+    private static Future<Long> add(ExecutorService threads, final GroupCommitWriter writer, final LogEntry entry) {
+        return threads.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return writer.addLogEntry(entry);
+            }
+        });
+    }
+
+    @Test
+    public void testEntriesWaitingAreWrittenInOneBatch() throws Exception {
+        BlockingDatabase database = new BlockingDatabase();
+        GroupCommitWriter writer = new GroupCommitWriter(database, 100, 10, 10000);
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        try {
+            Future<Long> first = add(threads, writer, "doms:1");
+            assertTrue(database.writing.await(10, TimeUnit.SECONDS));
+            //These gather in the queue while the first batch is written
+            List<Future<Long>> waiting = new ArrayList<>();
+            for (int i = 2; i <= 4; i++) {
+                waiting.add(add(threads, writer, "doms:" + i));
+            }
+            Thread.sleep(200);
+            database.release.countDown();
+            assertEquals(1L, (long) first.get(10, TimeUnit.SECONDS));
+            List<Long> keys = new ArrayList<>();
+            for (Future<Long> future : waiting) {
+                keys.add(future.get(10, TimeUnit.SECONDS));
+            }
+            Collections.sort(keys);
+            assertEquals(Arrays.asList(2L, 3L, 4L), keys);
+            assertEquals(2, database.batches.size());
+            assertEquals(3, database.batches.get(1).size());
+        } finally {
+            threads.shutdownNow();
+            writer.close();
+        }
+    }
+
+    @Test
+    public void testTimedOutEntryInQueueIsNotWritten() throws Exception {
+        BlockingDatabase database = new BlockingDatabase();
+        GroupCommitWriter writer = new GroupCommitWriter(database, 100, 10, 300);
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        try {
+            Future<Long> first = add(threads, writer, "doms:1");
+            assertTrue(database.writing.await(10, TimeUnit.SECONDS));
+            try {
+                writer.addLogEntry(entry("doms:2"));
+                fail("The entry should time out");
+            } catch (IOException e) {
+                //expected
+            }
+            database.release.countDown();
+            //The first request timed out too, while its entry was written, so its entry is marked failed
+            try {
+                first.get(10, TimeUnit.SECONDS);
+                fail("The entry should time out");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+            assertTrue(database.markedFailed.await(10, TimeUnit.SECONDS));
+            assertEquals(Collections.singletonList(Collections.singletonList("doms:1")), database.batches);
+            assertEquals(Collections.singletonList(1L), database.failed);
+        } finally {
+            threads.shutdownNow();
+            writer.close();
+        }
+    }
+
+    @Test
+    public void testCommittedEntryIsNotGivenUp() throws Exception {
+        BlockingDatabase database = new BlockingDatabase();
+        GroupCommitWriter writer = new GroupCommitWriter(database, 100, 10, 300);
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        try {
+            Future<Long> first = add(threads, writer, ingested("doms:1"));
+            assertTrue(database.writing.await(10, TimeUnit.SECONDS));
+            //Queued behind the batch being written
+            Future<Long> second = add(threads, writer, ingested("doms:2"));
+            //Well past the timeout, both are still waiting
+            Thread.sleep(900);
+            assertFalse(first.isDone());
+            assertFalse(second.isDone());
+            database.release.countDown();
+            assertEquals(1L, (long) first.get(10, TimeUnit.SECONDS));
+            assertEquals(2L, (long) second.get(10, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList(Collections.singletonList("doms:1"), Collections.singletonList("doms:2")),
+                         database.batches);
+            assertEquals(Collections.<Long>emptyList(), database.failed);
+        } finally {
+            threads.shutdownNow();
+            writer.close();
+        }
+    }
+
+    @Test
+    public void testCloseWritesTheQueue() throws Exception {
+        BlockingDatabase database = new BlockingDatabase();
+        GroupCommitWriter writer = new GroupCommitWriter(database, 100, 10, 10000);
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        try {
+            Future<Long> first = add(threads, writer, "doms:1");
+            assertTrue(database.writing.await(10, TimeUnit.SECONDS));
+            Future<Long> second = add(threads, writer, "doms:2");
+            Thread.sleep(200);
+            database.release.countDown();
+            writer.close();
+            assertEquals(1L, (long) first.get(10, TimeUnit.SECONDS));
+            assertEquals(2L, (long) second.get(10, TimeUnit.SECONDS));
+            try {
+                writer.addLogEntry(entry("doms:3"));
+                fail("The writer is closed");
+            } catch (IOException e) {
+                //expected
+            }
+            assertEquals(2, database.batches.size());
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+}
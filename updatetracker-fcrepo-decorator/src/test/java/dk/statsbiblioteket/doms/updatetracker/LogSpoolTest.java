@@ -0,0 +1,229 @@
+package dk.statsbiblioteket.doms.updatetracker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LogSpoolTest {
+
+    /** Long enough for the drainer thread to stay out of the way, the tests drain themselves */
+    private static final long DRAIN_INTERVAL = 3600000;
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("updatetracker", ".spool");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    private static LogEntry entry(String pid) {
+        return new LogEntry(pid, new Date(), "modifyDatastreamByValue", "DC", Database.STATE_PENDING);
+    }
+
+    /**
+     * A database that remembers the entries added, and can be told to fail
+     */
+    private static class StubDatabase extends Database {
+        private final List<LogEntry> entries = new ArrayList<>();
+        private final List<Long> failed = new ArrayList<>();
+        private int failAtBatch = -1;
+        private int batches = 0;
+
+        @Override
+        public synchronized List<Long> addLogEntries(List<LogEntry> batch) throws IOException {
+            if (batches++ == failAtBatch) {
+                throw new IOException("The database is down");
+            }
+            List<Long> keys = new ArrayList<>();
+            for (LogEntry entry : batch) {
+                entries.add(entry);
+                keys.add((long) entries.size());
+            }
+            return keys;
+        }
+
+        @Override
+        public synchronized void markLogEntryFailed(Long key) throws IOException {
+            failed.add(key);
+        }
+
+        private synchronized List<String> pids() {
+            List<String> pids = new ArrayList<>();
+            for (LogEntry entry : entries) {
+                pids.add(entry.getPid());
+            }
+            return pids;
+        }
+    }
+
+    @Test
+    public void testDrainedAfterRestart() throws Exception {
+        StubDatabase database = new StubDatabase();
+        LogSpool spool = new LogSpool(database, file, 1000, 100, DRAIN_INTERVAL);
+        assertEquals(1, spool.append(entry("doms:1")));
+        assertEquals(2, spool.append(entry("doms:2")));
+        spool.close();
+
+        spool = new LogSpool(database, file, 1000, 100, DRAIN_INTERVAL);
+        try {
+            assertTrue(spool.isSpooling());
+            //Sequence numbers continue after the spooled entries
+            assertEquals(3, spool.append(entry("doms:3")));
+            spool.drain();
+            assertEquals(Arrays.asList("doms:1", "doms:2", "doms:3"), database.pids());
+            assertFalse(spool.isSpooling());
+            assertEquals(0, file.length());
+        } finally {
+            spool.close();
+        }
+    }
+
+    @Test
+    public void testTornTailIsCutOff() throws Exception {
+        StubDatabase database = new StubDatabase();
+        LogSpool spool = new LogSpool(database, file, 1000, 100, DRAIN_INTERVAL);
+        spool.append(entry("doms:1"));
+        spool.close();
+        long length = file.length();
+        //A record cut short by a crash
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[]{0, 0, 0, 40, 1, 0, 0});
+        }
+
+        spool = new LogSpool(database, file, 1000, 100, DRAIN_INTERVAL);
+        try {
+            assertEquals(length, file.length());
+            spool.append(entry("doms:2"));
+            spool.drain();
+            assertEquals(Arrays.asList("doms:1", "doms:2"), database.pids());
+        } finally {
+            spool.close();
+        }
+    }
+
+    @Test
+    public void testBadChecksumTailIsCutOff() throws Exception {
+        StubDatabase database = new StubDatabase();
+        LogSpool spool = new LogSpool(database, file, 1000, 100, DRAIN_INTERVAL);
+        spool.append(entry("doms:1"));
+        spool.append(entry("doms:2"));
+        spool.close();
+        //Damage the checksum of the last record
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() - 1);
+            int last = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(last ^ 0xff);
+        }
+
+        spool = new LogSpool(database, file, 1000, 100, DRAIN_INTERVAL);
+        try {
+            spool.append(entry("doms:3"));
+            spool.drain();
+            assertEquals(Arrays.asList("doms:1", "doms:3"), database.pids());
+        } finally {
+            spool.close();
+        }
+    }
+
+    @Test
+    public void testFailingBatchIsRetriedAlone() throws Exception {
+        StubDatabase database = new StubDatabase();
+        database.failAtBatch = 1;
+        LogSpool spool = new LogSpool(database, file, 1000, 2, DRAIN_INTERVAL);
+        try {
+            for (int i = 1; i <= 5; i++) {
+                spool.append(entry("doms:" + i));
+            }
+            try {
+                spool.drain();
+                fail("The second batch should fail");
+            } catch (IOException e) {
+                //expected
+            }
+            assertEquals(Arrays.asList("doms:1", "doms:2"), database.pids());
+            assertTrue(spool.isSpooling());
+
+            spool.drain();
+            assertEquals(Arrays.asList("doms:1", "doms:2", "doms:3", "doms:4", "doms:5"), database.pids());
+            assertFalse(spool.isSpooling());
+        } finally {
+            spool.close();
+        }
+    }
+
+    @Test
+    public void testMarkFailed() throws Exception {
+        StubDatabase database = new StubDatabase();
+        LogSpool spool = new LogSpool(database, file, 1000, 100, DRAIN_INTERVAL);
+        try {
+            long first = spool.append(entry("doms:1"));
+            long second = spool.append(entry("doms:2"));
+            //Failed before it is drained, so it is added as failed
+            spool.markFailed(first);
+            spool.drain();
+            assertEquals(Database.STATE_FAILED, database.entries.get(0).getState());
+            assertEquals(Database.STATE_PENDING, database.entries.get(1).getState());
+            assertEquals(Collections.<Long>emptyList(), database.failed);
+
+            //Failed after it is drained, so it is marked failed in the database
+            spool.markFailed(second);
+            assertEquals(Collections.singletonList(2L), database.failed);
+        } finally {
+            spool.close();
+        }
+    }
+
+    @Test
+    public void testMarkFailedAfterTruncation() throws Exception {
+        StubDatabase database = new StubDatabase();
+        LogSpool spool = new LogSpool(database, file, 1000, 100, DRAIN_INTERVAL);
+        try {
+            long first = spool.append(entry("doms:1"));
+            spool.drain();
+            assertFalse(spool.isSpooling());
+            //The keys of the truncated spool are kept for the operations still running
+            long second = spool.append(entry("doms:2"));
+            spool.markFailed(first);
+            assertEquals(Collections.singletonList(1L), database.failed);
+
+            spool.drain();
+            spool.markFailed(second);
+            assertEquals(Arrays.asList(1L, 2L), database.failed);
+
+            //Forgotten after the next truncation
+            spool.append(entry("doms:3"));
+            spool.drain();
+            try {
+                spool.markFailed(second);
+                fail("The key of the entry should be forgotten");
+            } catch (IOException e) {
+                //expected
+            }
+            assertEquals(Arrays.asList(1L, 2L), database.failed);
+            assertEquals(0, file.length());
+        } finally {
+            spool.close();
+        }
+    }
+}
@@ -37,19 +37,188 @@ public class UpdateTrackingConfig {
      * @see #FEDORA_WORKLOG_DATABASE_URL
      */
     protected static final String FEDORA_WORKLOG_DATABASE_PASSWORD = "fedora.worklog.database.password";
+    /**
+     * If set, the update tracker will LISTEN on this postgres channel, and poll the worklog as soon as it is notified
+     * of new entries. The fedora hook must be configured with the same updateTrackerNotifyChannel. The regular polling
+     * continues as a fallback.
+     */
+    protected static final String FEDORA_WORKLOG_DATABASE_NOTIFY_CHANNEL = "fedora.worklog.database.notifyChannel";
+    /**
+     * The interval in milliseconds between checks for notifications on the notify channel. Each check is a round trip
+     * to the database, as the postgres driver only reads notifications when it talks to the server. Default 1000ms
+     * @see #FEDORA_WORKLOG_DATABASE_NOTIFY_CHANNEL
+     */
+    protected static final String FEDORA_WORKLOG_DATABASE_NOTIFY_INTERVAL = "fedora.worklog.database.notifyInterval";
     /**
      * The delay in starting polling the worklog when starting this service, in
      * milliseconds. Default 1000ms. Also the minimum age of events to work on.
      */
     protected static final String FEDORA_UPDATETRACKER_DELAY = "fedora.updatetracker.delay";
     /**
-     * The frequency in milliseconds, which the worklog should be polled. Default 1000ms
+     * The period in milliseconds between polls of the worklog, when the last poll found events. Default 1000ms
+     * @see #FEDORA_UPDATETRACKER_MAX_PERIOD
      */
     protected static final String FEDORA_UPDATETRACKER_PERIOD = "fedora.updatetracker.period";
+    /**
+     * The max period in milliseconds between polls of the worklog. The period is doubled after each poll that finds
+     * nothing, up to this max, and reset when events are found or a notification arrives. Default 10000ms
+     * @see #FEDORA_UPDATETRACKER_PERIOD
+     */
+    protected static final String FEDORA_UPDATETRACKER_MAX_PERIOD = "fedora.updatetracker.maxPeriod";
     /**
      * The pagesize to get from the worklog. Default 1000
      */
     protected static final String FEDORA_UPDATETRACKER_LIMIT = "fedora.updatetracker.limit";
+    /**
+     * If positive, the worklog is read through a streaming cursor over this many events, and handled in pages of
+     * "limit" events as they arrive, instead of one query per page. This allows very large logical pages with
+     * constant memory use. Default 0, which queries for each page
+     * @see #FEDORA_UPDATETRACKER_LIMIT
+     */
+    protected static final String FEDORA_UPDATETRACKER_STREAM_LIMIT = "fedora.updatetracker.streamLimit";
+    /**
+     * The number of lanes to handle worklog events in. Events for the same object are always handled in order, in
+     * the same lane, but the date changes of different objects are handled concurrently when this is more than 1.
+     * Structural events, which recalculate records shared between objects, are handled alone, in order. Default 1,
+     * which handles all events in order.
+     */
+    protected static final String FEDORA_UPDATETRACKER_LANES = "fedora.updatetracker.lanes";
+    /**
+     * The max number of worklog events to register in a single update tracker transaction. If a transaction fails,
+     * the events in it are registered one at a time, to isolate the failing event. Only used when there is just one
+     * lane. Default 100
+     * @see #FEDORA_UPDATETRACKER_LANES
+     */
+    protected static final String FEDORA_UPDATETRACKER_BATCH_SIZE = "fedora.updatetracker.batchSize";
+    /**
+     * If true, redundant worklog events for the same object are merged within each page, so a run of datastream
+     * changes only updates the records once. Default false
+     * @see dk.statsbiblioteket.doms.updatetracker.improved.worklog.WorkLogCoalescer
+     */
+    protected static final String FEDORA_UPDATETRACKER_COALESCE = "fedora.updatetracker.coalesce";
+    /**
+     * If true, worklog events for objects that are purged later are skipped, and only the purge is handled.
+     * Default false
+     * @see #FEDORA_UPDATETRACKER_PURGE_HORIZON
+     */
+    protected static final String FEDORA_UPDATETRACKER_PURGE_COMPACTION = "fedora.updatetracker.purgeCompaction";
+    /**
+     * The number of worklog keys after each page to look for purges in, when skipping events for purged objects.
+     * Default 0, which only looks in the page itself
+     * @see #FEDORA_UPDATETRACKER_PURGE_COMPACTION
+     */
+    protected static final String FEDORA_UPDATETRACKER_PURGE_HORIZON = "fedora.updatetracker.purgeHorizon";
+    /**
+     * The time in milliseconds to look for worklog keys missing from the pages, as they might be committed after
+     * higher keys when fedora writes to the worklog from many threads. Should be well above the delay, e.g. 60000ms.
+     * Each poll looks up the missing keys, at most {@link #FEDORA_UPDATETRACKER_MAX_GAPS} of them. Default 0, so the
+     * missing keys are not looked for. An event found in a gap that fails is stored in quarantine, so the hibernate
+     * config must map the QuarantinedEvent class.
+     * @see dk.statsbiblioteket.doms.updatetracker.improved.worklog.WorkLogGapTracker
+     */
+    protected static final String FEDORA_UPDATETRACKER_GAP_WINDOW = "fedora.updatetracker.gapWindow";
+    /**
+     * The max number of missing worklog keys to look for at a time. Default 10000
+     * @see #FEDORA_UPDATETRACKER_GAP_WINDOW
+     */
+    protected static final String FEDORA_UPDATETRACKER_MAX_GAPS = "fedora.updatetracker.maxGaps";
+    /**
+     * If true, the updateTrackerDirtyPids summary kept by the fedora hook is consumed instead of the worklog, so each
+     * changed object is handled once, however many events it has. The hook must be set up with
+     * updateTrackerDirtySummary. The coalescing, purge compaction and gap tracking of the worklog are not used.
+     * Default false
+     * @see dk.statsbiblioteket.doms.updatetracker.improved.worklog.WorkLogDirtySummary
+     */
+    protected static final String FEDORA_UPDATETRACKER_CONSUME_SUMMARY = "fedora.updatetracker.consumeSummary";
+    /**
+     * If positive, the objects of each page of the worklog are fetched from fedora by this many threads concurrently,
+     * before the events are handled. Default 0, where the objects are fetched one at a time as the events are handled
+     * @see dk.statsbiblioteket.doms.updatetracker.improved.worklog.WorkLogFedoraPrefetcher
+     */
+    protected static final String FEDORA_UPDATETRACKER_FEDORA_PREFETCH_THREADS = "fedora.updatetracker.fedoraPrefetchThreads";
+    /**
+     * The max number of entries in each of the caches of object profiles and collections from fedora. Default 10000
+     * @see dk.statsbiblioteket.doms.updatetracker.improved.fedora.FedoraCache
+     */
+    protected static final String FEDORA_UPDATETRACKER_FEDORA_CACHE_MAX_SIZE = "fedora.updatetracker.fedoraCacheMaxSize";
+    /**
+     * The max estimated memory footprint in bytes of each of the caches of object profiles and collections from
+     * fedora. Default 33554432, 32 MB
+     * @see dk.statsbiblioteket.doms.updatetracker.improved.fedora.FedoraCache
+     */
+    protected static final String FEDORA_UPDATETRACKER_FEDORA_CACHE_MAX_WEIGHT = "fedora.updatetracker.fedoraCacheMaxWeight";
+    /**
+     * The time in milliseconds the object profiles and collections from fedora are cached. Default 60000
+     * @see dk.statsbiblioteket.doms.updatetracker.improved.fedora.FedoraCache
+     */
+    protected static final String FEDORA_UPDATETRACKER_FEDORA_CACHE_TIME_TO_LIVE = "fedora.updatetracker.fedoraCacheTimeToLive";
+    /**
+     * If true, the entry view angles of the content models are saved in the update tracker database, and preloaded
+     * when starting, so the first events after a restart do not look them all up in fedora. The hibernate config must
+     * then map the ContentModel class. Default false
+     * @see dk.statsbiblioteket.doms.updatetracker.improved.database.datastructures.ContentModel
+     */
+    protected static final String FEDORA_UPDATETRACKER_PERSIST_CONTENT_MODELS = "fedora.updatetracker.persistContentModels";
+    /**
+     * If positive, a failing worklog event is tried this many times, and then set aside in quarantine in the update
+     * tracker database, so the following events can be handled. An event is not quarantined while the update tracker
+     * database or fedora does not answer. The hibernate config must then map the QuarantinedEvent class. Default 0,
+     * which stops at the failing event, and tries it again in the next poll
+     * @see dk.statsbiblioteket.doms.updatetracker.improved.worklog.WorkLogQuarantine
+     */
+    protected static final String FEDORA_UPDATETRACKER_QUARANTINE_ATTEMPTS = "fedora.updatetracker.quarantineAttempts";
+    /**
+     * The delay in milliseconds before the first retry of a failing worklog event. The delay is doubled for each
+     * retry. Default 1000ms
+     * @see #FEDORA_UPDATETRACKER_QUARANTINE_ATTEMPTS
+     */
+    protected static final String FEDORA_UPDATETRACKER_QUARANTINE_BACKOFF = "fedora.updatetracker.quarantineBackoff";
+    /**
+     * The max delay in milliseconds between retries of a failing worklog event. Default 10000ms
+     * @see #FEDORA_UPDATETRACKER_QUARANTINE_ATTEMPTS
+     */
+    protected static final String FEDORA_UPDATETRACKER_QUARANTINE_MAX_BACKOFF
+            = "fedora.updatetracker.quarantineMaxBackoff";
+    /**
+     * The max number of worklog events in a row to quarantine. When reached, the failures are taken to be an outage,
+     * and the events are not quarantined until an event succeeds. Default 10
+     * @see #FEDORA_UPDATETRACKER_QUARANTINE_ATTEMPTS
+     */
+    protected static final String FEDORA_UPDATETRACKER_QUARANTINE_MAX_CONSECUTIVE
+            = "fedora.updatetracker.quarantineMaxConsecutive";
+    /**
+     * If not negative, worklog events more than this number of keys below the latest key handled are removed from
+     * the worklog. The worklog account must then be allowed to delete. Default -1, which keeps the worklog forever.
+     * With a gap window, the events younger than the window, and from the lowest gap still looked for on, are kept.
+     * @see #FEDORA_UPDATETRACKER_RETENTION_ARCHIVE_TABLE
+     */
+    protected static final String FEDORA_UPDATETRACKER_RETENTION_MARGIN = "fedora.updatetracker.retentionMargin";
+    /**
+     * The max number of worklog events to remove in a single transaction. Default 1000
+     * @see #FEDORA_UPDATETRACKER_RETENTION_MARGIN
+     */
+    protected static final String FEDORA_UPDATETRACKER_RETENTION_BATCH_SIZE = "fedora.updatetracker.retentionBatchSize";
+    /**
+     * The pause in milliseconds between the batches of worklog events removed. Default 1000ms
+     * @see #FEDORA_UPDATETRACKER_RETENTION_MARGIN
+     */
+    protected static final String FEDORA_UPDATETRACKER_RETENTION_PAUSE = "fedora.updatetracker.retentionPause";
+    /**
+     * The period in milliseconds between removals of the handled worklog events. Default 3600000ms
+     * @see #FEDORA_UPDATETRACKER_RETENTION_MARGIN
+     */
+    protected static final String FEDORA_UPDATETRACKER_RETENTION_PERIOD = "fedora.updatetracker.retentionPeriod";
+    /**
+     * If set, the removed worklog events are moved to this table, with their state. It must have the columns of the
+     * original updateTrackerLogs, such as a table created with "CREATE TABLE updateTrackerLogsArchive (LIKE
+     * updateTrackerLogs)". With the compact worklog, the method and param are decoded when archived, so the table must
+     * then be created with the original columns, "CREATE TABLE updateTrackerLogsArchive (key BIGINT, pid VARCHAR(64),
+     * happened TIMESTAMPTZ, method VARCHAR(64), param VARCHAR(255), state SMALLINT)". If not set, the events are
+     * deleted.
+     * @see #FEDORA_UPDATETRACKER_RETENTION_MARGIN
+     */
+    protected static final String FEDORA_UPDATETRACKER_RETENTION_ARCHIVE_TABLE
+            = "fedora.updatetracker.retentionArchiveTable";
     /**
      * The hibernate config file for the update tracker database
      */
@@ -79,10 +248,36 @@ public class UpdateTrackingConfig {
     private final String fedoraDatabaseURL;
     private final String fedoraDatabaseUsername;
     private final String fedoraDatabasePassword;
+    private final String fedoraDatabaseNotifyChannel;
+    private final int fedoraDatabaseNotifyInterval;
 
     private final int fedoraUpdatetrackerDelay;
     private final int fedoraUpdatetrackerPeriod;
+    private final int fedoraUpdatetrackerMaxPeriod;
     private final int fedoraUpdatetrackerLimit;
+    private final int fedoraUpdatetrackerStreamLimit;
+    private final int fedoraUpdatetrackerLanes;
+    private final int fedoraUpdatetrackerBatchSize;
+    private final boolean fedoraUpdatetrackerCoalesce;
+    private final boolean fedoraUpdatetrackerPurgeCompaction;
+    private final int fedoraUpdatetrackerPurgeHorizon;
+    private final int fedoraUpdatetrackerGapWindow;
+    private final int fedoraUpdatetrackerMaxGaps;
+    private final boolean fedoraUpdatetrackerConsumeSummary;
+    private final int fedoraUpdatetrackerFedoraPrefetchThreads;
+    private final int fedoraUpdatetrackerFedoraCacheMaxSize;
+    private final long fedoraUpdatetrackerFedoraCacheMaxWeight;
+    private final long fedoraUpdatetrackerFedoraCacheTimeToLive;
+    private final boolean fedoraUpdatetrackerPersistContentModels;
+    private final int fedoraUpdatetrackerQuarantineAttempts;
+    private final int fedoraUpdatetrackerQuarantineBackoff;
+    private final int fedoraUpdatetrackerQuarantineMaxBackoff;
+    private final int fedoraUpdatetrackerQuarantineMaxConsecutive;
+    private final long fedoraUpdatetrackerRetentionMargin;
+    private final int fedoraUpdatetrackerRetentionBatchSize;
+    private final int fedoraUpdatetrackerRetentionPause;
+    private final int fedoraUpdatetrackerRetentionPeriod;
+    private final String fedoraUpdatetrackerRetentionArchiveTable;
     private final File updatetrackerHibernateConfig;
     private final long viewBundleCacheTime;
     private final File updatetrackerHibernateMappings;
@@ -91,7 +286,7 @@ public class UpdateTrackingConfig {
     /**
      * Create a Config object from a java properties.
      *
-     * As it stands, the listener will take at most "limit" workunits from the worklog, and play these against the update tracker for each "period". That means that if doms, on average, do more than limit / period (operations / second), the update tracker will never catch up.
+     * For each "period", the listener will take pages of at most "limit" workunits from the worklog, and play these against the update tracker. As long as the pages come back full, the next page is fetched while the current is played, so a backlog is worked off without waiting for the next "period". When the worklog is idle, the period grows towards "maxPeriod".
      * @param properties
      * @see #FEDORA_UPDATETRACKER_WEB_URL
      * @see #FEDORA_UPDATETRACKER_WEB_USERNAME
@@ -100,10 +295,36 @@ public class UpdateTrackingConfig {
      * @see #FEDORA_WORKLOG_DATABASE_URL
      * @see #FEDORA_WORKLOG_DATABASE_USERNAME
      * @see #FEDORA_WORKLOG_DATABASE_PASSWORD
+     * @see #FEDORA_WORKLOG_DATABASE_NOTIFY_CHANNEL
+     * @see #FEDORA_WORKLOG_DATABASE_NOTIFY_INTERVAL
      * @see #FEDORA_UPDATETRACKER_HIBERNATE_CONFIG_FILE
      * @see #FEDORA_UPDATETRACKER_DELAY
      * @see #FEDORA_UPDATETRACKER_PERIOD
+     * @see #FEDORA_UPDATETRACKER_MAX_PERIOD
      * @see #FEDORA_UPDATETRACKER_LIMIT
+     * @see #FEDORA_UPDATETRACKER_STREAM_LIMIT
+     * @see #FEDORA_UPDATETRACKER_LANES
+     * @see #FEDORA_UPDATETRACKER_BATCH_SIZE
+     * @see #FEDORA_UPDATETRACKER_COALESCE
+     * @see #FEDORA_UPDATETRACKER_PURGE_COMPACTION
+     * @see #FEDORA_UPDATETRACKER_PURGE_HORIZON
+     * @see #FEDORA_UPDATETRACKER_GAP_WINDOW
+     * @see #FEDORA_UPDATETRACKER_MAX_GAPS
+     * @see #FEDORA_UPDATETRACKER_CONSUME_SUMMARY
+     * @see #FEDORA_UPDATETRACKER_FEDORA_PREFETCH_THREADS
+     * @see #FEDORA_UPDATETRACKER_FEDORA_CACHE_MAX_SIZE
+     * @see #FEDORA_UPDATETRACKER_FEDORA_CACHE_MAX_WEIGHT
+     * @see #FEDORA_UPDATETRACKER_FEDORA_CACHE_TIME_TO_LIVE
+     * @see #FEDORA_UPDATETRACKER_PERSIST_CONTENT_MODELS
+     * @see #FEDORA_UPDATETRACKER_QUARANTINE_ATTEMPTS
+     * @see #FEDORA_UPDATETRACKER_QUARANTINE_BACKOFF
+     * @see #FEDORA_UPDATETRACKER_QUARANTINE_MAX_BACKOFF
+     * @see #FEDORA_UPDATETRACKER_QUARANTINE_MAX_CONSECUTIVE
+     * @see #FEDORA_UPDATETRACKER_RETENTION_MARGIN
+     * @see #FEDORA_UPDATETRACKER_RETENTION_BATCH_SIZE
+     * @see #FEDORA_UPDATETRACKER_RETENTION_PAUSE
+     * @see #FEDORA_UPDATETRACKER_RETENTION_PERIOD
+     * @see #FEDORA_UPDATETRACKER_RETENTION_ARCHIVE_TABLE
      */
     public UpdateTrackingConfig(Properties properties) {
 
@@ -114,9 +335,35 @@ public class UpdateTrackingConfig {
         this.fedoraDatabaseURL = properties.getProperty(FEDORA_WORKLOG_DATABASE_URL);
         this.fedoraDatabaseUsername = properties.getProperty(FEDORA_WORKLOG_DATABASE_USERNAME);
         this.fedoraDatabasePassword = properties.getProperty(FEDORA_WORKLOG_DATABASE_PASSWORD);
+        this.fedoraDatabaseNotifyChannel = properties.getProperty(FEDORA_WORKLOG_DATABASE_NOTIFY_CHANNEL);
+        this.fedoraDatabaseNotifyInterval = Integer.parseInt(properties.getProperty(FEDORA_WORKLOG_DATABASE_NOTIFY_INTERVAL, "1000"));
         this.fedoraUpdatetrackerDelay = Integer.parseInt(properties.getProperty(FEDORA_UPDATETRACKER_DELAY, "1000"));
         this.fedoraUpdatetrackerPeriod = Integer.parseInt(properties.getProperty(FEDORA_UPDATETRACKER_PERIOD,"1000"));
+        this.fedoraUpdatetrackerMaxPeriod = Integer.parseInt(properties.getProperty(FEDORA_UPDATETRACKER_MAX_PERIOD,"10000"));
         this.fedoraUpdatetrackerLimit = Integer.parseInt(properties.getProperty(FEDORA_UPDATETRACKER_LIMIT,"1000"));
+        this.fedoraUpdatetrackerStreamLimit = Integer.parseInt(properties.getProperty(FEDORA_UPDATETRACKER_STREAM_LIMIT, "0"));
+        this.fedoraUpdatetrackerLanes = Integer.parseInt(properties.getProperty(FEDORA_UPDATETRACKER_LANES, "1"));
+        this.fedoraUpdatetrackerBatchSize = Integer.parseInt(properties.getProperty(FEDORA_UPDATETRACKER_BATCH_SIZE, "100"));
+        this.fedoraUpdatetrackerCoalesce = Boolean.parseBoolean(properties.getProperty(FEDORA_UPDATETRACKER_COALESCE, "false"));
+        this.fedoraUpdatetrackerPurgeCompaction = Boolean.parseBoolean(properties.getProperty(FEDORA_UPDATETRACKER_PURGE_COMPACTION, "false"));
+        this.fedoraUpdatetrackerPurgeHorizon = Integer.parseInt(properties.getProperty(FEDORA_UPDATETRACKER_PURGE_HORIZON, "0"));
+        this.fedoraUpdatetrackerGapWindow = Integer.parseInt(properties.getProperty(FEDORA_UPDATETRACKER_GAP_WINDOW, "0"));
+        this.fedoraUpdatetrackerMaxGaps = Integer.parseInt(properties.getProperty(FEDORA_UPDATETRACKER_MAX_GAPS, "10000"));
+        this.fedoraUpdatetrackerConsumeSummary = Boolean.parseBoolean(properties.getProperty(FEDORA_UPDATETRACKER_CONSUME_SUMMARY, "false"));
+        this.fedoraUpdatetrackerFedoraPrefetchThreads = Integer.parseInt(properties.getProperty(FEDORA_UPDATETRACKER_FEDORA_PREFETCH_THREADS, "0"));
+        this.fedoraUpdatetrackerFedoraCacheMaxSize = Integer.parseInt(properties.getProperty(FEDORA_UPDATETRACKER_FEDORA_CACHE_MAX_SIZE, "10000"));
+        this.fedoraUpdatetrackerFedoraCacheMaxWeight = Long.parseLong(properties.getProperty(FEDORA_UPDATETRACKER_FEDORA_CACHE_MAX_WEIGHT, "33554432"));
+        this.fedoraUpdatetrackerFedoraCacheTimeToLive = Long.parseLong(properties.getProperty(FEDORA_UPDATETRACKER_FEDORA_CACHE_TIME_TO_LIVE, "60000"));
+        this.fedoraUpdatetrackerPersistContentModels = Boolean.parseBoolean(properties.getProperty(FEDORA_UPDATETRACKER_PERSIST_CONTENT_MODELS, "false"));
+        this.fedoraUpdatetrackerQuarantineAttempts = Integer.parseInt(properties.getProperty(FEDORA_UPDATETRACKER_QUARANTINE_ATTEMPTS, "0"));
+        this.fedoraUpdatetrackerQuarantineBackoff = Integer.parseInt(properties.getProperty(FEDORA_UPDATETRACKER_QUARANTINE_BACKOFF, "1000"));
+        this.fedoraUpdatetrackerQuarantineMaxBackoff = Integer.parseInt(properties.getProperty(FEDORA_UPDATETRACKER_QUARANTINE_MAX_BACKOFF, "10000"));
+        this.fedoraUpdatetrackerQuarantineMaxConsecutive = Integer.parseInt(properties.getProperty(FEDORA_UPDATETRACKER_QUARANTINE_MAX_CONSECUTIVE, "10"));
+        this.fedoraUpdatetrackerRetentionMargin = Long.parseLong(properties.getProperty(FEDORA_UPDATETRACKER_RETENTION_MARGIN, "-1"));
+        this.fedoraUpdatetrackerRetentionBatchSize = Integer.parseInt(properties.getProperty(FEDORA_UPDATETRACKER_RETENTION_BATCH_SIZE, "1000"));
+        this.fedoraUpdatetrackerRetentionPause = Integer.parseInt(properties.getProperty(FEDORA_UPDATETRACKER_RETENTION_PAUSE, "1000"));
+        this.fedoraUpdatetrackerRetentionPeriod = Integer.parseInt(properties.getProperty(FEDORA_UPDATETRACKER_RETENTION_PERIOD, "3600000"));
+        this.fedoraUpdatetrackerRetentionArchiveTable = properties.getProperty(FEDORA_UPDATETRACKER_RETENTION_ARCHIVE_TABLE);
         this.updatetrackerHibernateConfig = new File(properties.getProperty(FEDORA_UPDATETRACKER_HIBERNATE_CONFIG_FILE));
         this.updatetrackerHibernateMappings = new File(properties
                                                              .getProperty(FEDORA_UPDATETRACKER_HIBERNATE_MAPPINGS_FILE));
@@ -150,6 +397,14 @@ public class UpdateTrackingConfig {
         return fedoraDatabasePassword;
     }
 
+    public String getFedoraDatabaseNotifyChannel() {
+        return fedoraDatabaseNotifyChannel;
+    }
+
+    public int getFedoraDatabaseNotifyInterval() {
+        return fedoraDatabaseNotifyInterval;
+    }
+
     public int getFedoraUpdatetrackerDelay() {
         return fedoraUpdatetrackerDelay;
     }
@@ -158,10 +413,106 @@ public class UpdateTrackingConfig {
         return fedoraUpdatetrackerPeriod;
     }
 
+    public int getFedoraUpdatetrackerMaxPeriod() {
+        return fedoraUpdatetrackerMaxPeriod;
+    }
+
     public int getFedoraUpdatetrackerLimit() {
         return fedoraUpdatetrackerLimit;
     }
 
+    public int getFedoraUpdatetrackerStreamLimit() {
+        return fedoraUpdatetrackerStreamLimit;
+    }
+
+    public int getFedoraUpdatetrackerLanes() {
+        return fedoraUpdatetrackerLanes;
+    }
+
+    public int getFedoraUpdatetrackerBatchSize() {
+        return fedoraUpdatetrackerBatchSize;
+    }
+
+    public boolean isFedoraUpdatetrackerCoalesce() {
+        return fedoraUpdatetrackerCoalesce;
+    }
+
+    public boolean isFedoraUpdatetrackerPurgeCompaction() {
+        return fedoraUpdatetrackerPurgeCompaction;
+    }
+
+    public int getFedoraUpdatetrackerPurgeHorizon() {
+        return fedoraUpdatetrackerPurgeHorizon;
+    }
+
+    public int getFedoraUpdatetrackerGapWindow() {
+        return fedoraUpdatetrackerGapWindow;
+    }
+
+    public int getFedoraUpdatetrackerMaxGaps() {
+        return fedoraUpdatetrackerMaxGaps;
+    }
+
+    public boolean isFedoraUpdatetrackerConsumeSummary() {
+        return fedoraUpdatetrackerConsumeSummary;
+    }
+
+    public int getFedoraUpdatetrackerFedoraPrefetchThreads() {
+        return fedoraUpdatetrackerFedoraPrefetchThreads;
+    }
+
+    public int getFedoraUpdatetrackerFedoraCacheMaxSize() {
+        return fedoraUpdatetrackerFedoraCacheMaxSize;
+    }
+
+    public long getFedoraUpdatetrackerFedoraCacheMaxWeight() {
+        return fedoraUpdatetrackerFedoraCacheMaxWeight;
+    }
+
+    public long getFedoraUpdatetrackerFedoraCacheTimeToLive() {
+        return fedoraUpdatetrackerFedoraCacheTimeToLive;
+    }
+
+    public boolean isFedoraUpdatetrackerPersistContentModels() {
+        return fedoraUpdatetrackerPersistContentModels;
+    }
+
+    public int getFedoraUpdatetrackerQuarantineAttempts() {
+        return fedoraUpdatetrackerQuarantineAttempts;
+    }
+
+    public int getFedoraUpdatetrackerQuarantineBackoff() {
+        return fedoraUpdatetrackerQuarantineBackoff;
+    }
+
+    public int getFedoraUpdatetrackerQuarantineMaxBackoff() {
+        return fedoraUpdatetrackerQuarantineMaxBackoff;
+    }
+
+    public int getFedoraUpdatetrackerQuarantineMaxConsecutive() {
+        return fedoraUpdatetrackerQuarantineMaxConsecutive;
+    }
+
+    public long getFedoraUpdatetrackerRetentionMargin() {
+        return fedoraUpdatetrackerRetentionMargin;
+    }
+
+    public int getFedoraUpdatetrackerRetentionBatchSize() {
+        return fedoraUpdatetrackerRetentionBatchSize;
+    }
+
+    public int getFedoraUpdatetrackerRetentionPause() {
+        return fedoraUpdatetrackerRetentionPause;
+    }
+
+    public int getFedoraUpdatetrackerRetentionPeriod() {
+        return fedoraUpdatetrackerRetentionPeriod;
+    }
+
+    public String getFedoraUpdatetrackerRetentionArchiveTable() {
+        return fedoraUpdatetrackerRetentionArchiveTable;
+    }
+
     public String getFedoraDatabaseDriver() {
         return fedoraDatabaseDriver;
     }
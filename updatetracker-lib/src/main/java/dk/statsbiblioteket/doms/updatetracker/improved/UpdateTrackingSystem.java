@@ -8,27 +8,67 @@ import dk.statsbiblioteket.doms.updatetracker.improved.database.UpdateTrackerBac
 import dk.statsbiblioteket.doms.updatetracker.improved.database.UpdateTrackerPersistentStore;
 import dk.statsbiblioteket.doms.updatetracker.improved.database.UpdateTrackerPersistentStoreImpl;
 import dk.statsbiblioteket.doms.updatetracker.improved.database.dao.DBFactory;
+import dk.statsbiblioteket.doms.updatetracker.improved.database.datastructures.ContentModel;
 import dk.statsbiblioteket.doms.updatetracker.improved.fedora.EntryAngleCache;
 import dk.statsbiblioteket.doms.updatetracker.improved.fedora.FedoraForUpdateTracker;
+import dk.statsbiblioteket.doms.updatetracker.improved.worklog.WorkLogCoalescer;
+import dk.statsbiblioteket.doms.updatetracker.improved.worklog.WorkLogDirtySummary;
+import dk.statsbiblioteket.doms.updatetracker.improved.worklog.WorkLogFedoraPrefetcher;
+import dk.statsbiblioteket.doms.updatetracker.improved.worklog.WorkLogGapTracker;
+import dk.statsbiblioteket.doms.updatetracker.improved.worklog.WorkLogLanes;
+import dk.statsbiblioteket.doms.updatetracker.improved.worklog.WorkLogMetrics;
 import dk.statsbiblioteket.doms.updatetracker.improved.worklog.WorkLogPollDAO;
+import dk.statsbiblioteket.doms.updatetracker.improved.worklog.WorkLogPollScheduler;
 import dk.statsbiblioteket.doms.updatetracker.improved.worklog.WorkLogPollTask;
+import dk.statsbiblioteket.doms.updatetracker.improved.worklog.WorkLogPurgeCompactor;
+import dk.statsbiblioteket.doms.updatetracker.improved.worklog.WorkLogQuarantine;
+import dk.statsbiblioteket.doms.updatetracker.improved.worklog.WorkLogRetention;
 import dk.statsbiblioteket.sbutil.webservices.authentication.Credentials;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.Closeable;
-import java.util.Timer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This is the system that starts the persistent store and the jms listener and ties them together
  */
 public class UpdateTrackingSystem implements Closeable {
 
+    private static Logger log = LoggerFactory.getLogger(UpdateTrackingSystem.class);
+
+    /** The JMX name of the worklog metrics */
+    public static final String WORKLOG_METRICS_NAME = "dk.statsbiblioteket.doms.updatetracker:type=WorkLogMetrics";
+    /** The JMX name of the worklog quarantine */
+    public static final String WORKLOG_QUARANTINE_NAME = "dk.statsbiblioteket.doms.updatetracker:type=WorkLogQuarantine";
+    /** The JMX name of the cache of object profiles from fedora */
+    public static final String FEDORA_PROFILE_CACHE_NAME = "dk.statsbiblioteket.doms.updatetracker:type=FedoraProfileCache";
+    /** The JMX name of the cache of object collections from fedora */
+    public static final String FEDORA_COLLECTIONS_CACHE_NAME
+            = "dk.statsbiblioteket.doms.updatetracker:type=FedoraCollectionsCache";
 
     private  UpdateTrackerPersistentStore store;
     private WorkLogPollDAO workLogPollDAO;
-    private  Timer timer;
+    private WorkLogPollScheduler scheduler;
+    private ExecutorService worklogPrefetchThreadPool;
+    private WorkLogLanes workLogLanes;
+    private WorkLogFedoraPrefetcher workLogFedoraPrefetcher;
+    private WorkLogRetention workLogRetention;
+    private WorkLogGapTracker workLogGapTracker;
+    private ScheduledExecutorService workLogRetentionThreadPool;
+    private WorkLogMetrics workLogMetrics;
+    private WorkLogQuarantine workLogQuarantine;
+    private final List<ObjectName> registeredMBeans = new ArrayList<>();
 
 
     public UpdateTrackingSystem(UpdateTrackingConfig updateTrackingConfig) {
@@ -37,7 +77,8 @@ public class UpdateTrackingSystem implements Closeable {
         try {
             Credentials creds = new Credentials(updateTrackingConfig.getFedoraWebUsername(),
                                                 updateTrackingConfig.getFedoraWebPassword());
-            EntryAngleCache cmCache = new EntryAngleCache();
+            final boolean persistContentModels = updateTrackingConfig.isFedoraUpdatetrackerPersistContentModels();
+            EntryAngleCache cmCache = new EntryAngleCache(persistContentModels);
             Fedora fedoraRest = new FedoraRest(creds, updateTrackingConfig.getFedoraWebUrl());
             TripleStoreRest tripleStoreRest = new TripleStoreRest(creds,
                                                                   updateTrackingConfig.getFedoraWebUrl(), fedoraRest);
@@ -47,7 +88,13 @@ public class UpdateTrackingSystem implements Closeable {
             //This thread pool is the number of records we can recalculate simultaneously when an common object (part of all their bundles) change
             final ExecutorService viewBundleRecalcThreadPool = initialiseThreadPool(updateTrackingConfig.getViewBundleMaxThreads());
             //Start up the fedora connection
-            FedoraForUpdateTracker fedora = new FedoraForUpdateTracker(cmCache, fedoraRest, views);
+            FedoraForUpdateTracker fedora = new FedoraForUpdateTracker(
+                    cmCache, fedoraRest, views,
+                    updateTrackingConfig.getFedoraUpdatetrackerFedoraCacheMaxSize(),
+                    updateTrackingConfig.getFedoraUpdatetrackerFedoraCacheMaxWeight(),
+                    updateTrackingConfig.getFedoraUpdatetrackerFedoraCacheTimeToLive());
+            registerMBean(fedora.getProfileCache(), FEDORA_PROFILE_CACHE_NAME);
+            registerMBean(fedora.getCollectionsCache(), FEDORA_COLLECTIONS_CACHE_NAME);
 
             //Start up the database
             final UpdateTrackerBackend updateTrackerBackend = new UpdateTrackerBackend(fedora, updateTrackingConfig.getViewBundleCacheTime(), viewBundleRecalcThreadPool);
@@ -56,9 +103,18 @@ public class UpdateTrackingSystem implements Closeable {
                                                           .getUpdatetrackerHibernateConfig(),
                                                   updateTrackingConfig
                                                           .getUpdatetrackerHibernateMappings());
-            store = new UpdateTrackerPersistentStoreImpl(fedora,
-                                                         updateTrackerBackend,
-                                                         dbfac);
+            final UpdateTrackerPersistentStoreImpl storeImpl =
+                    new UpdateTrackerPersistentStoreImpl(fedora, updateTrackerBackend, dbfac, persistContentModels);
+            store = storeImpl;
+
+            //Start with the content models known when we stopped, instead of looking them all up in fedora again
+            if (persistContentModels) {
+                List<ContentModel> contentModels = store.getContentModels();
+                for (ContentModel contentModel : contentModels) {
+                    cmCache.preload(contentModel.getPid(), contentModel.getEntryAngles());
+                }
+                log.info("Preloaded {} content models from the update tracker database", contentModels.size());
+            }
 
 
             //initialise the connection to the work log
@@ -66,7 +122,51 @@ public class UpdateTrackingSystem implements Closeable {
                                                 updateTrackingConfig.getFedoraDatabaseUsername(),
                                                 updateTrackingConfig.getFedoraDatabasePassword());
 
-            startWorkLogTimerTask(updateTrackingConfig);
+            workLogMetrics = new WorkLogMetrics(workLogPollDAO, store);
+            storeImpl.setWorkLogMetrics(workLogMetrics);
+            registerMBean(workLogMetrics, WORKLOG_METRICS_NAME);
+
+            if (updateTrackingConfig.getFedoraUpdatetrackerQuarantineAttempts() > 0) {
+                workLogQuarantine = new WorkLogQuarantine(store,
+                                                          updateTrackingConfig.getFedoraUpdatetrackerQuarantineAttempts(),
+                                                          updateTrackingConfig.getFedoraUpdatetrackerQuarantineBackoff(),
+                                                          updateTrackingConfig.getFedoraUpdatetrackerQuarantineMaxBackoff(),
+                                                          updateTrackingConfig.getFedoraUpdatetrackerQuarantineMaxConsecutive());
+                registerMBean(workLogQuarantine, WORKLOG_QUARANTINE_NAME);
+            }
+
+            //This thread fetches the next page of the worklog while the current page is being worked on
+            worklogPrefetchThreadPool = Executors.newSingleThreadExecutor(daemonThreadFactory("UpdateTracker-worklog-prefetcher"));
+
+            //These threads handle the events for different objects concurrently, if more than one lane is configured
+            if (updateTrackingConfig.getFedoraUpdatetrackerLanes() > 1) {
+                workLogLanes = new WorkLogLanes(updateTrackingConfig.getFedoraUpdatetrackerLanes(),
+                                                daemonThreadFactory("UpdateTracker-worklog-lane"));
+            }
+
+            //These threads fetch the objects of a page from fedora concurrently, before the events are handled
+            final int fedoraPrefetchThreads = updateTrackingConfig.getFedoraUpdatetrackerFedoraPrefetchThreads();
+            if (fedoraPrefetchThreads > 0) {
+                workLogFedoraPrefetcher = new WorkLogFedoraPrefetcher(fedora, fedoraPrefetchThreads,
+                                                                      daemonThreadFactory("UpdateTracker-fedora-prefetcher"));
+            }
+
+            startWorkLogPollScheduler(updateTrackingConfig);
+
+            if (updateTrackingConfig.getFedoraUpdatetrackerRetentionMargin() >= 0) {
+                startWorkLogRetention(updateTrackingConfig);
+            }
+
+            if (updateTrackingConfig.getFedoraDatabaseNotifyChannel() != null) {
+                workLogPollDAO.listen(updateTrackingConfig.getFedoraDatabaseNotifyChannel(),
+                                      updateTrackingConfig.getFedoraDatabaseNotifyInterval(),
+                                      new Runnable() {
+                                          @Override
+                                          public void run() {
+                                              scheduler.wakeUp();
+                                          }
+                                      });
+            }
         } catch (Exception e){
             close();
             throw new RuntimeException(e);
@@ -75,39 +175,119 @@ public class UpdateTrackingSystem implements Closeable {
 
     private ExecutorService initialiseThreadPool(Integer viewBundleThreadCount) {
 
-        final ThreadFactory threadFactory = new ThreadFactory() {
+        final ThreadFactory threadFactory = daemonThreadFactory("UpdateTracker-viewbundle");
+        //If thread count not correctly specified, make a cached thread pool (creates up to infinity threads as required, and kills them after 60 seconds of idle)
+        if (viewBundleThreadCount == null || viewBundleThreadCount <= 0) {
+            return Executors.newCachedThreadPool(threadFactory);
+        } else {
+            return Executors.newFixedThreadPool(viewBundleThreadCount, threadFactory);
+        }
+    }
+
+
+    private static ThreadFactory daemonThreadFactory(final String name) {
+        return new ThreadFactory() {
             private final ThreadFactory fac = Executors.defaultThreadFactory();
+            private final AtomicInteger threadNumber = new AtomicInteger(1);
             @Override //Hack to make the threads daemon threads so they do not block shutdown
             public Thread newThread(Runnable r) {
                 Thread thread = fac.newThread(r);
                 thread.setDaemon(true);
+                thread.setName(name + "-" + threadNumber.getAndIncrement());
                 return thread;
             }
         };
-        //If thread count not correctly specified, make a cached thread pool (creates up to infinity threads as required, and kills them after 60 seconds of idle)
-        if (viewBundleThreadCount == null || viewBundleThreadCount <= 0) {
-            return Executors.newCachedThreadPool(threadFactory);
-        } else {
-            return Executors.newFixedThreadPool(viewBundleThreadCount, threadFactory);
-        }
     }
 
 
-    private void startWorkLogTimerTask(UpdateTrackingConfig updateTrackingConfig) {
-        final boolean isDaemon = false;
-        timer = new Timer("UpdateTracker-worklog-poller",isDaemon);
-        //The timer thread is NOT a daemon, so it should prevent shutdown until the timer task is completed.
+    private void startWorkLogPollScheduler(UpdateTrackingConfig updateTrackingConfig) {
         //Tie it all together
         final int delay = updateTrackingConfig.getFedoraUpdatetrackerDelay();
         final int period = updateTrackingConfig.getFedoraUpdatetrackerPeriod();
+        final int maxPeriod = updateTrackingConfig.getFedoraUpdatetrackerMaxPeriod();
         final int limit = updateTrackingConfig.getFedoraUpdatetrackerLimit();
-        timer.schedule(new WorkLogPollTask(workLogPollDAO, store, limit, delay), delay, period);
+        final int batchSize = updateTrackingConfig.getFedoraUpdatetrackerBatchSize();
+        final int streamLimit = updateTrackingConfig.getFedoraUpdatetrackerStreamLimit();
+        //The summary has one event per object already, and its keys are not consecutive, so the rest do not apply
+        final boolean consumeSummary = updateTrackingConfig.isFedoraUpdatetrackerConsumeSummary();
+        final WorkLogDirtySummary summary = consumeSummary ? new WorkLogDirtySummary(workLogPollDAO) : null;
+        final WorkLogCoalescer coalescer = updateTrackingConfig.isFedoraUpdatetrackerCoalesce() && !consumeSummary
+                ? new WorkLogCoalescer()
+                : null;
+        final WorkLogPurgeCompactor compactor
+                = updateTrackingConfig.isFedoraUpdatetrackerPurgeCompaction() && !consumeSummary
+                ? new WorkLogPurgeCompactor(workLogPollDAO, updateTrackingConfig.getFedoraUpdatetrackerPurgeHorizon(), delay)
+                : null;
+        workLogGapTracker = updateTrackingConfig.getFedoraUpdatetrackerGapWindow() > 0 && !consumeSummary
+                ? new WorkLogGapTracker(updateTrackingConfig.getFedoraUpdatetrackerGapWindow(),
+                                        updateTrackingConfig.getFedoraUpdatetrackerMaxGaps())
+                : null;
+        final WorkLogPollTask workLogPollTask = new WorkLogPollTask(workLogPollDAO, store, limit, delay, batchSize,
+                                                                    streamLimit, worklogPrefetchThreadPool,
+                                                                    workLogLanes, coalescer, compactor, workLogMetrics,
+                                                                    workLogQuarantine, workLogGapTracker, summary,
+                                                                    workLogFedoraPrefetcher);
+        //The poller thread is NOT a daemon, so it should prevent shutdown until the poll is completed.
+        final ThreadFactory pollerThreadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "UpdateTracker-worklog-poller");
+            }
+        };
+        scheduler = new WorkLogPollScheduler(Executors.newSingleThreadScheduledExecutor(pollerThreadFactory),
+                                             workLogPollTask, period, maxPeriod, delay);
+        scheduler.start(delay);
+    }
+
+    /**
+     * Register the MBean with the platform MBean server. Failing that is not fatal.
+     * @param mbean the MBean
+     * @param name the JMX name of the MBean
+     */
+    private void registerMBean(Object mbean, String name) {
+        try {
+            ObjectName objectName = new ObjectName(name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, objectName);
+            registeredMBeans.add(objectName);
+        } catch (JMException e) {
+            log.warn("Failed to register '" + name + "' with JMX", e);
+        }
+    }
+
+    private void startWorkLogRetention(UpdateTrackingConfig updateTrackingConfig) {
+        final int period = updateTrackingConfig.getFedoraUpdatetrackerRetentionPeriod();
+        workLogRetention = new WorkLogRetention(workLogPollDAO, store,
+                                                updateTrackingConfig.getFedoraUpdatetrackerRetentionMargin(),
+                                                updateTrackingConfig.getFedoraUpdatetrackerRetentionBatchSize(),
+                                                updateTrackingConfig.getFedoraUpdatetrackerRetentionPause(),
+                                                updateTrackingConfig.getFedoraUpdatetrackerRetentionArchiveTable(),
+                                                workLogGapTracker,
+                                                updateTrackingConfig.getFedoraUpdatetrackerGapWindow());
+        workLogRetentionThreadPool = Executors.newSingleThreadScheduledExecutor(
+                daemonThreadFactory("UpdateTracker-worklog-retention"));
+        workLogRetentionThreadPool.scheduleWithFixedDelay(workLogRetention, period, period, TimeUnit.MILLISECONDS);
     }
 
     @Override
     public void close()  {
-        if (timer != null) {
-            timer.cancel();
+        if (workLogRetention != null) {
+            workLogRetention.stop();
+        }
+        if (workLogRetentionThreadPool != null) {
+            workLogRetentionThreadPool.shutdownNow();
+        }
+        if (scheduler != null) {
+            //Waits for the running poll to finish, before we close what it uses
+            scheduler.close();
+        }
+        if (worklogPrefetchThreadPool != null) {
+            worklogPrefetchThreadPool.shutdownNow();
+        }
+        if (workLogLanes != null) {
+            workLogLanes.close();
+        }
+        if (workLogFedoraPrefetcher != null) {
+            workLogFedoraPrefetcher.close();
         }
         if (workLogPollDAO != null) {
             workLogPollDAO.close();
@@ -115,9 +295,25 @@ public class UpdateTrackingSystem implements Closeable {
         if (store != null) {
             store.close();
         }
+        for (ObjectName name : registeredMBeans) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                log.warn("Failed to unregister '" + name + "' from JMX", e);
+            }
+        }
+        registeredMBeans.clear();
     }
 
     public UpdateTrackerPersistentStore getStore() {
         return store;
     }
+
+    public WorkLogMetrics getWorkLogMetrics() {
+        return workLogMetrics;
+    }
+
+    public WorkLogQuarantine getWorkLogQuarantine() {
+        return workLogQuarantine;
+    }
 }
@@ -182,6 +182,11 @@ public class UpdateTrackerBackend {
         return result;
     }
 
+    /**
+     * Get the view bundle of a record at a timestamp. The cache only helps within one event, as it is keyed on the
+     * timestamp. Reusing view bundles across events would gain nothing, as an event only recalculates the records
+     * containing the changed object, which are exactly the view bundles such a change would have to invalidate.
+     */
     protected ViewBundle getViewBundle(Date timestamp, Record record) throws FedoraFailedException {
         final String key = toKey(record, timestamp);
         log.debug("Getting viewbundle for key {}",key);
@@ -1,7 +1,10 @@
 package dk.statsbiblioteket.doms.updatetracker.improved.database;
 
+import dk.statsbiblioteket.doms.updatetracker.improved.database.datastructures.ContentModel;
+import dk.statsbiblioteket.doms.updatetracker.improved.database.datastructures.QuarantinedEvent;
 import dk.statsbiblioteket.doms.updatetracker.improved.database.datastructures.Record;
 import dk.statsbiblioteket.doms.updatetracker.improved.fedora.FedoraFailedException;
+import dk.statsbiblioteket.doms.updatetracker.improved.worklog.WorkLogUnit;
 
 import java.io.Closeable;
 import java.util.Date;
@@ -13,6 +16,13 @@ import java.util.List;
  */
 public interface UpdateTrackerPersistentStore extends Closeable {
 
+    /**
+     * Pass this as the key to the event methods to leave the latest key untouched. Used when the latest key is
+     * maintained separately with setLatestKey, as when several events are handled concurrently.
+     * @see #setLatestKey(long)
+     */
+    long KEY_UNCHANGED = -1;
+
     /**
      * Invoke to register a new object, that has been created
      *
@@ -103,9 +113,78 @@ public interface UpdateTrackerPersistentStore extends Closeable {
         @Override
     void close();
 
+    /**
+     * Invoke to register a page of events from the work log, in a single transaction. The key of the last event
+     * will be persisted in the database as the latest work log key handled. If this fails, the events are registered
+     * one at a time, as with eventHappened, until the failing event.
+     *
+     * @param events the events, in key order
+     */
+    void eventsHappened(List<WorkLogUnit> events) throws UpdateTrackerStorageException, FedoraFailedException;
+
+    /**
+     * Invoke to register a single event from the work log. The method of the event decides which of the other
+     * event methods the event corresponds to.
+     *
+     * @param event the event
+     * @param key the key that will be persisted in the database as the latest work log key handled, or
+     *            KEY_UNCHANGED
+     */
+    void eventHappened(WorkLogUnit event, long key) throws UpdateTrackerStorageException, FedoraFailedException;
+
     /**
      * Get the latest key processed from the work log table.
      * @return The latest key processed from the work log table.
      */
     long getLatestKey();
+
+    /**
+     * Set the latest key processed from the work log table, without handling any event.
+     * @param key the new latest key. All events with this key or lower must have been handled.
+     * @throws UpdateTrackerStorageException
+     */
+    void setLatestKey(long key) throws UpdateTrackerStorageException;
+
+    /**
+     * Set an event from the work log aside in quarantine, as it failed repeatedly.
+     *
+     * @param event the event
+     * @param attempts the number of times the event was tried
+     * @param cause the last failure of the event
+     * @param key the key that will be persisted in the database as the latest work log key handled, or
+     *            KEY_UNCHANGED
+     * @throws UpdateTrackerStorageException
+     */
+    void eventQuarantined(WorkLogUnit event, int attempts, Exception cause, long key)
+            throws UpdateTrackerStorageException;
+
+    /**
+     * Get the events in quarantine
+     * @return the events, in key order
+     * @throws UpdateTrackerStorageException
+     */
+    List<QuarantinedEvent> getQuarantinedEvents() throws UpdateTrackerStorageException;
+
+    /**
+     * Handle an event in quarantine, and release it from quarantine, in a single transaction. The latest key is not
+     * changed.
+     * @param key the key of the event
+     * @return false if the event was not in quarantine
+     * @throws UpdateTrackerStorageException if the event failed again. It remains in quarantine.
+     */
+    boolean quarantinedEventReplayed(long key) throws UpdateTrackerStorageException;
+
+    /**
+     * Check that the update tracker database and fedora answer, to tell an outage from a failing event
+     * @throws UpdateTrackerStorageException if the update tracker database does not answer
+     * @throws FedoraFailedException if fedora does not answer
+     */
+    void checkHealth() throws UpdateTrackerStorageException, FedoraFailedException;
+
+    /**
+     * Get the content models saved in the database, to preload them when starting
+     * @return the content models, with their entry view angles
+     * @throws UpdateTrackerStorageException
+     */
+    List<ContentModel> getContentModels() throws UpdateTrackerStorageException;
 }
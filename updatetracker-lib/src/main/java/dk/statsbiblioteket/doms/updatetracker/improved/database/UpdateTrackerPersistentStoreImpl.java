@@ -2,10 +2,14 @@ package dk.statsbiblioteket.doms.updatetracker.improved.database;
 
 import dk.statsbiblioteket.doms.updatetracker.improved.database.dao.DB;
 import dk.statsbiblioteket.doms.updatetracker.improved.database.dao.DBFactory;
+import dk.statsbiblioteket.doms.updatetracker.improved.database.datastructures.ContentModel;
+import dk.statsbiblioteket.doms.updatetracker.improved.database.datastructures.QuarantinedEvent;
 import dk.statsbiblioteket.doms.updatetracker.improved.database.datastructures.Record;
 import dk.statsbiblioteket.doms.updatetracker.improved.database.datastructures.Record.State;
 import dk.statsbiblioteket.doms.updatetracker.improved.fedora.FedoraFailedException;
 import dk.statsbiblioteket.doms.updatetracker.improved.fedora.FedoraForUpdateTracker;
+import dk.statsbiblioteket.doms.updatetracker.improved.worklog.WorkLogMetrics;
+import dk.statsbiblioteket.doms.updatetracker.improved.worklog.WorkLogUnit;
 import org.hibernate.HibernateException;
 import org.hibernate.Transaction;
 import org.slf4j.Logger;
@@ -14,6 +18,7 @@ import org.slf4j.LoggerFactory;
 import java.io.Closeable;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 
@@ -40,13 +45,36 @@ public class UpdateTrackerPersistentStoreImpl implements UpdateTrackerPersistent
 
     private FedoraForUpdateTracker fedora;
     private UpdateTrackerBackend backend;
+    private final boolean persistContentModels;
+    private volatile WorkLogMetrics workLogMetrics;
 
     public UpdateTrackerPersistentStoreImpl(FedoraForUpdateTracker fedora, UpdateTrackerBackend backend,
                                             DBFactory dbfac) {
+        this(fedora, backend, dbfac, false);
+    }
+
+    /**
+     * @param fedora the fedora to look up the objects in
+     * @param backend the lower level operations
+     * @param dbfac the update tracker database
+     * @param persistContentModels if true, the content models loaded from fedora are saved in the database after the
+     *                             events, and deleted when they change. The hibernate config must then map the
+     *                             ContentModel class.
+     */
+    public UpdateTrackerPersistentStoreImpl(FedoraForUpdateTracker fedora, UpdateTrackerBackend backend,
+                                            DBFactory dbfac, boolean persistContentModels) {
         this.fedora = fedora;
         this.backend = backend;
         this.dbfac = dbfac;
+        this.persistContentModels = persistContentModels;
+    }
 
+    /**
+     * Record the time taken to handle each worklog event in the given metrics. Only events committed are recorded.
+     * @param workLogMetrics the metrics, or null to record nothing
+     */
+    public void setWorkLogMetrics(WorkLogMetrics workLogMetrics) {
+        this.workLogMetrics = workLogMetrics;
     }
 
     /**
@@ -70,24 +98,8 @@ public class UpdateTrackerPersistentStoreImpl implements UpdateTrackerPersistent
         DB db = dbfac.createDBConnection();
         Transaction transaction = db.beginTransaction();
         try {
-            Set<String> collections = fedora.getCollections(pid, timestamp);
-            State ingestState = fedora.getState(pid, timestamp);
-            log.debug("Found collections {} and state {}  for pid {} at timestamp {}",ingestState,collections,pid,timestamp);
-            for (String collection : collections) {
-                backend.modifyState(pid, timestamp, collection, ingestState, db);
-            }
-            log.debug("Starting recalculation of records from pid {} for timestamp {}",pid,timestamp);
-            Set<Record> changedRecords = backend.recalculateRecordsBasedOnThisPid(pid,
-                                                                                  timestamp,
-                                                                                  db,
-                                                                                  collections,
-                                                                                  ingestState);
-            for (Record changedRecord : changedRecords) {
-                db.saveRecord(changedRecord);
-            }
-            backend.updateDates(pid, timestamp, db);
-
-            db.setLatestKey(key);
+            objectCreated(pid, timestamp, db);
+            setLatestKey(db, key);
             transaction.commit();
             log.info("ObjectCreated({},{}) Completed", pid, timestamp);
         } catch (Exception e) {
@@ -102,6 +114,26 @@ public class UpdateTrackerPersistentStoreImpl implements UpdateTrackerPersistent
 
     }
 
+    private void objectCreated(String pid, Date timestamp, DB db) throws UpdateTrackerStorageException,
+                                                                     FedoraFailedException {
+        Set<String> collections = fedora.getCollections(pid, timestamp);
+        State ingestState = fedora.getState(pid, timestamp);
+        log.debug("Found collections {} and state {}  for pid {} at timestamp {}",ingestState,collections,pid,timestamp);
+        for (String collection : collections) {
+            backend.modifyState(pid, timestamp, collection, ingestState, db);
+        }
+        log.debug("Starting recalculation of records from pid {} for timestamp {}",pid,timestamp);
+        Set<Record> changedRecords = backend.recalculateRecordsBasedOnThisPid(pid,
+                                                                              timestamp,
+                                                                              db,
+                                                                              collections,
+                                                                              ingestState);
+        for (Record changedRecord : changedRecords) {
+            db.saveRecord(changedRecord);
+        }
+        backend.updateDates(pid, timestamp, db);
+    }
+
     /**
      * The object was deleted
      *
@@ -132,9 +164,8 @@ public class UpdateTrackerPersistentStoreImpl implements UpdateTrackerPersistent
         DB db = dbfac.createDBConnection();
         Transaction transaction = db.beginTransaction();
         try {
-            backend.modifyState(pid, timestamp, null, DELETED, db);
-            backend.updateDates(pid, timestamp, db);
-            db.setLatestKey(key);
+            objectDeleted(pid, timestamp, db);
+            setLatestKey(db, key);
             transaction.commit();
             log.info("ObjectDeleted({},{}) Completed", pid, timestamp);
         } catch (Exception e) {
@@ -148,6 +179,12 @@ public class UpdateTrackerPersistentStoreImpl implements UpdateTrackerPersistent
         }
     }
 
+    private void objectDeleted(String pid, Date timestamp, DB db) throws UpdateTrackerStorageException,
+                                                                         FedoraFailedException {
+        backend.modifyState(pid, timestamp, null, DELETED, db);
+        backend.updateDates(pid, timestamp, db);
+    }
+
     /**
      * Datastream Changed: The Object datastreams changed. Handled differently depending on whether this is the relations datastream
      *      Fedora operations:
@@ -184,29 +221,8 @@ public class UpdateTrackerPersistentStoreImpl implements UpdateTrackerPersistent
         DB db = dbfac.createDBConnection();
         Transaction transaction = db.beginTransaction();
         try {
-            if (dsid != null) {
-                if ((dsid.equals("VIEW") || dsid.equals("RELS-EXT"))) {
-                    if (fedora.isCurrentlyContentModel(pid)) {
-                        contentModelChangedLogging.warn("Content model {} changed, but records are not recalculated", pid);
-                        fedora.invalidateContentModel(pid);
-                    }
-                    if (dsid.equals("RELS-EXT")) {
-                        Set<String> collections = fedora.getCollections(pid, timestamp);
-                        State state = fedora.getState(pid, timestamp);
-                        log.debug("Found collections {} and state {} for pid {} at timestamp {}",collections,state,pid,timestamp);
-                        Set<Record> changedRecords = backend.recalculateRecordsBasedOnThisPid(pid,
-                                                                                              timestamp,
-                                                                                              db,
-                                                                                              collections,
-                                                                                              state);
-                        for (Record changedRecord : changedRecords) {
-                            db.saveRecord(changedRecord);
-                        }
-                    }
-                }
-            }
-            backend.updateDates(pid, timestamp, db);
-            db.setLatestKey(key);
+            datastreamChanged(pid, timestamp, dsid, db);
+            setLatestKey(db, key);
             transaction.commit();
             log.info("DatastreamChanged({},{},{}) Completed", pid, timestamp, dsid);
         } catch (Exception e) {
@@ -220,6 +236,36 @@ public class UpdateTrackerPersistentStoreImpl implements UpdateTrackerPersistent
         }
     }
 
+    private void datastreamChanged(String pid, Date timestamp, String dsid, DB db) throws
+                                                                               UpdateTrackerStorageException,
+                                                                               FedoraFailedException {
+        if (dsid != null) {
+            if ((dsid.equals("VIEW") || dsid.equals("RELS-EXT"))) {
+                if (fedora.isCurrentlyContentModel(pid)) {
+                    contentModelChangedLogging.warn("Content model {} changed, but records are not recalculated", pid);
+                    fedora.invalidateContentModel(pid);
+                    if (persistContentModels) {
+                        db.deleteContentModel(pid);
+                    }
+                }
+                if (dsid.equals("RELS-EXT")) {
+                    Set<String> collections = fedora.getCollections(pid, timestamp);
+                    State state = fedora.getState(pid, timestamp);
+                    log.debug("Found collections {} and state {} for pid {} at timestamp {}",collections,state,pid,timestamp);
+                    Set<Record> changedRecords = backend.recalculateRecordsBasedOnThisPid(pid,
+                                                                                          timestamp,
+                                                                                          db,
+                                                                                          collections,
+                                                                                          state);
+                    for (Record changedRecord : changedRecords) {
+                        db.saveRecord(changedRecord);
+                    }
+                }
+            }
+        }
+        backend.updateDates(pid, timestamp, db);
+    }
+
     /**
      * The object's relations changed. This can cause a recalculation of the viewStructure.
      *
@@ -252,6 +298,16 @@ public class UpdateTrackerPersistentStoreImpl implements UpdateTrackerPersistent
         }
     }
 
+    private void objectRelationsChanged(String pid, Date timestamp, DB db) throws UpdateTrackerStorageException,
+                                                                                  FedoraFailedException {
+        if (pid.contains("/")) {
+            //This means that the pid is really a datastream ID, i.e. that the relationsship is in RELS-INT
+            datastreamChanged(pid.split("/")[0], timestamp, "RELS-INT", db);
+        } else {
+            datastreamChanged(pid, timestamp, "RELS-EXT", db);
+        }
+    }
+
 
     /**
      * Object State Changed: The Object changed state in DOMS
@@ -276,13 +332,8 @@ public class UpdateTrackerPersistentStoreImpl implements UpdateTrackerPersistent
         DB db = dbfac.createDBConnection();
         Transaction transaction = db.beginTransaction();
         try {
-            Set<String> collections = fedora.getCollections(pid, timestamp);
-            log.debug("Found collections {} for pid {} at timestamp {}",collections,pid,timestamp);
-            for (String collection : collections) {
-                backend.modifyState(pid, timestamp, collection, State.fromName(newstate), db);
-            }
-            backend.updateDates(pid, timestamp, db);
-            db.setLatestKey(key);
+            objectStateChanged(pid, timestamp, newstate, db);
+            setLatestKey(db, key);
             transaction.commit();
             log.info("objectStateChanged({},{},{}) Completed", pid, timestamp, newstate);
         } catch (Exception e) {
@@ -296,6 +347,154 @@ public class UpdateTrackerPersistentStoreImpl implements UpdateTrackerPersistent
         }
     }
 
+    private void objectStateChanged(String pid, Date timestamp, String newstate, DB db) throws
+                                                                                        UpdateTrackerStorageException,
+                                                                                        FedoraFailedException {
+        Set<String> collections = fedora.getCollections(pid, timestamp);
+        log.debug("Found collections {} for pid {} at timestamp {}",collections,pid,timestamp);
+        for (String collection : collections) {
+            backend.modifyState(pid, timestamp, collection, State.fromName(newstate), db);
+        }
+        backend.updateDates(pid, timestamp, db);
+    }
+
+    /**
+     * Handle the events in a single transaction, and register the key of the last event as the latest key.
+     *
+     * The events are flushed to the database one at a time, so each event sees the changes from the events before
+     * it. If anything fails, the transaction is rolled back, and the events are handled again, one transaction per
+     * event, so the events before the failing event are still registered.
+     * @param events the events from the work log, in key order
+     * @throws UpdateTrackerStorageException
+     * @throws FedoraFailedException
+     */
+    @Override
+    public void eventsHappened(List<WorkLogUnit> events) throws UpdateTrackerStorageException,
+                                                                FedoraFailedException {
+        if (events.isEmpty()) {
+            return;
+        }
+        log.info("eventsHappened({} events) Starting", events.size());
+        DB db = dbfac.createDBConnection();
+        Transaction transaction = db.beginTransaction();
+        try {
+            long[] nanos = new long[events.size()];
+            for (int i = 0; i < events.size(); i++) {
+                long start = System.nanoTime();
+                handleEvent(events.get(i), db);
+                //Write the changes, so the queries for the next event sees them, and forget the records again
+                db.flush();
+                db.clear();
+                nanos[i] = System.nanoTime() - start;
+            }
+            setLatestKey(db, events.get(events.size() - 1).getKey());
+            transaction.commit();
+            saveLoadedContentModels();
+            WorkLogMetrics metrics = workLogMetrics;
+            if (metrics != null) {
+                for (long eventNanos : nanos) {
+                    metrics.eventApplied(eventNanos);
+                }
+            }
+            log.info("eventsHappened({} events) Completed", events.size());
+        } catch (Exception e) {
+            try {
+                transaction.rollback();
+            } catch (HibernateException he) {
+                log.error("Failed to rollback transaction", he);
+            }
+            log.warn("Failed to handle " + events.size() + " events in one transaction, handling them one at a time",
+                     e);
+            for (WorkLogUnit event : events) {
+                eventHappened(event, event.getKey());
+            }
+        }
+    }
+
+    @Override
+    public void eventHappened(WorkLogUnit event, long key) throws UpdateTrackerStorageException,
+                                                                   FedoraFailedException {
+        log.info("eventHappened({}) Starting", event);
+        long start = System.nanoTime();
+        DB db = dbfac.createDBConnection();
+        Transaction transaction = db.beginTransaction();
+        try {
+            handleEvent(event, db);
+            setLatestKey(db, key);
+            transaction.commit();
+            saveLoadedContentModels();
+            WorkLogMetrics metrics = workLogMetrics;
+            if (metrics != null) {
+                metrics.eventApplied(System.nanoTime() - start);
+            }
+            log.info("eventHappened({}) Completed", event);
+        } catch (Exception e) {
+            try {
+                transaction.rollback();
+            } catch (HibernateException he) {
+                log.error("Failed to rollback transaction", he);
+            }
+            throw new UpdateTrackerStorageException("Hibernate Failed in handling event '" + event + "'", e);
+        }
+    }
+
+    /**
+     * Handle the event from the work log, in the given database session
+     * @param event the event
+     * @param db the database access object
+     */
+    private void handleEvent(WorkLogUnit event, DB db) throws UpdateTrackerStorageException, FedoraFailedException {
+        final String pid = event.getPid();
+        final Date date = event.getDate();
+        final String param = event.getParam();
+        final String method = event.getMethod();
+        log.debug("Handling the event '{}'", event);
+
+        switch (method) {
+            case "ingest":
+                objectCreated(pid, date, db);
+                break;
+            case "modifyObject":
+                objectStateChanged(pid, date, param, db);
+                break;
+            case "purgeObject":
+                objectDeleted(pid, date, db);
+                break;
+            case "addDatastream":
+            case "modifyDatastreamByReference":
+            case "modifyDatastreamByValue":
+            case "purgeDatastream":
+                datastreamChanged(pid, date, param, db);
+                break;
+            case "setDatastreamState":
+            case "setDatastreamVersionable":
+                //Forget the datastream name, because VIEW and RELS-EXT should not trigger recalculation.
+                datastreamChanged(pid, date, null, db);
+                break;
+            case "addRelationship":
+            case "purgeRelationship":
+                objectRelationsChanged(pid, date, db);
+                break;
+            case "getObjectXML":
+            case "export":
+            case "getDatastream":
+            case "getDatastreams":
+            case "getDatastreamHistory":
+            case "putTempStream":
+            case "getTempStream":
+            case "compareDatastreamChecksum":
+            case "getNextPID":
+            case "getRelationships":
+            case "validate": // Nothing to do
+                log.debug("Got nonchanging event '{}' from worklog", event);
+                break;
+            default:
+                log.warn("Got unknown event '{}' from worklog", event);
+                break;
+        }
+        log.debug("Handling of event {} done",event);
+    }
+
     @Override
     public List<Record> lookup(Date since, String viewAngle, int offset, int limit, String state, String collection) throws UpdateTrackerStorageException {
         log.info("lookup({},{},{},{},{},{}) Starting", since,viewAngle,offset,limit,state,collection);
@@ -333,6 +532,151 @@ public class UpdateTrackerPersistentStoreImpl implements UpdateTrackerPersistent
         dbfac.close();
     }
 
+    /**
+     * Register the key as the latest key handled, unless it is KEY_UNCHANGED
+     * @param db the database access object
+     * @param key the key from the work log table
+     */
+    private void setLatestKey(DB db, long key) {
+        if (key != KEY_UNCHANGED) {
+            db.setLatestKey(key);
+        }
+    }
+
+    @Override
+    public void setLatestKey(long key) throws UpdateTrackerStorageException {
+        log.debug("setLatestKey({}) Starting", key);
+        DB db = dbfac.createDBConnection();
+        Transaction transaction = db.beginTransaction();
+        try {
+            db.setLatestKey(key);
+            transaction.commit();
+        } catch (HibernateException e) {
+            try {
+                transaction.rollback();
+            } catch (HibernateException he) {
+                log.error("Failed to rollback transaction", he);
+            }
+            throw new UpdateTrackerStorageException("Hibernate Failed in setting latest key to '" + key + "'", e);
+        }
+    }
+
+    @Override
+    public void eventQuarantined(WorkLogUnit event, int attempts, Exception cause, long key)
+            throws UpdateTrackerStorageException {
+        log.warn("eventQuarantined({}) after {} attempts", event, attempts);
+        DB db = dbfac.createDBConnection();
+        Transaction transaction = db.beginTransaction();
+        try {
+            db.quarantine(new QuarantinedEvent(event.getKey(), event.getPid(), event.getMethod(), event.getParam(),
+                                               event.getDate(), attempts, String.valueOf(cause)));
+            setLatestKey(db, key);
+            transaction.commit();
+        } catch (HibernateException e) {
+            try {
+                transaction.rollback();
+            } catch (HibernateException he) {
+                log.error("Failed to rollback transaction", he);
+            }
+            throw new UpdateTrackerStorageException("Hibernate Failed in quarantining event '" + event + "'", e);
+        }
+    }
+
+    @Override
+    public List<QuarantinedEvent> getQuarantinedEvents() throws UpdateTrackerStorageException {
+        DB db = dbfac.createReadonlyDBConnection();
+        Transaction transaction = db.beginTransaction();
+        try {
+            return db.getQuarantinedEvents();
+        } catch (HibernateException e) {
+            throw new UpdateTrackerStorageException("Failed to query for quarantined events", e);
+        } finally {
+            transaction.commit();
+        }
+    }
+
+    @Override
+    public boolean quarantinedEventReplayed(long key) throws UpdateTrackerStorageException {
+        log.info("quarantinedEventReplayed({}) Starting", key);
+        DB db = dbfac.createDBConnection();
+        Transaction transaction = db.beginTransaction();
+        try {
+            QuarantinedEvent quarantined = db.getQuarantinedEvent(key);
+            if (quarantined == null) {
+                transaction.commit();
+                return false;
+            }
+            handleEvent(new WorkLogUnit(quarantined.getKey(), quarantined.getMethod(), quarantined.getHappened(),
+                                        quarantined.getPid(), quarantined.getParam()), db);
+            db.release(quarantined);
+            transaction.commit();
+            saveLoadedContentModels();
+            log.info("quarantinedEventReplayed({}) Completed", key);
+            return true;
+        } catch (Exception e) {
+            try {
+                transaction.rollback();
+            } catch (HibernateException he) {
+                log.error("Failed to rollback transaction", he);
+            }
+            throw new UpdateTrackerStorageException("Failed in replaying quarantined event '" + key + "'", e);
+        }
+    }
+
+    /**
+     * Save the content models loaded from fedora, in a transaction of their own, after the events are committed.
+     * The content models do not depend on the events, so the ones loaded by events rolled back, or by other lanes,
+     * are saved with the next events committed. If this fails, they are not saved until they are loaded again.
+     */
+    private void saveLoadedContentModels() {
+        if (!persistContentModels) {
+            return;
+        }
+        Map<String, Set<String>> loaded = fedora.takeLoadedContentModels();
+        if (loaded.isEmpty()) {
+            return;
+        }
+        DB db = dbfac.createDBConnection();
+        Transaction transaction = db.beginTransaction();
+        try {
+            Date now = new Date();
+            for (Map.Entry<String, Set<String>> contentModel : loaded.entrySet()) {
+                db.saveContentModel(new ContentModel(contentModel.getKey(), contentModel.getValue(), now));
+            }
+            transaction.commit();
+        } catch (HibernateException e) {
+            try {
+                transaction.rollback();
+            } catch (HibernateException he) {
+                log.error("Failed to rollback transaction", he);
+            }
+            log.warn("Failed to save the content models " + loaded.keySet(), e);
+        }
+    }
+
+    @Override
+    public List<ContentModel> getContentModels() throws UpdateTrackerStorageException {
+        DB db = dbfac.createReadonlyDBConnection();
+        Transaction transaction = db.beginTransaction();
+        try {
+            return db.getContentModels();
+        } catch (HibernateException e) {
+            throw new UpdateTrackerStorageException("Failed to query for content models", e);
+        } finally {
+            transaction.commit();
+        }
+    }
+
+    @Override
+    public void checkHealth() throws UpdateTrackerStorageException, FedoraFailedException {
+        try {
+            getLatestKey();
+        } catch (HibernateException e) {
+            throw new UpdateTrackerStorageException("The update tracker database does not answer", e);
+        }
+        fedora.checkHealth();
+    }
+
     @Override
     public long getLatestKey() {
         DB db = dbfac.createReadonlyDBConnection();
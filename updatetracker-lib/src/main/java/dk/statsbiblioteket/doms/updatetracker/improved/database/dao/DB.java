@@ -1,6 +1,8 @@
 package dk.statsbiblioteket.doms.updatetracker.improved.database.dao;
 
+import dk.statsbiblioteket.doms.updatetracker.improved.database.datastructures.ContentModel;
 import dk.statsbiblioteket.doms.updatetracker.improved.database.datastructures.LatestKey;
+import dk.statsbiblioteket.doms.updatetracker.improved.database.datastructures.QuarantinedEvent;
 import dk.statsbiblioteket.doms.updatetracker.improved.database.datastructures.Record;
 import org.hibernate.Criteria;
 import org.hibernate.FlushMode;
@@ -8,6 +10,7 @@ import org.hibernate.Query;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
+import org.hibernate.criterion.Order;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -142,6 +145,73 @@ public class DB implements Closeable{
 
     }
 
+    /**
+     * Set an event aside in quarantine
+     * @param event the event, with the failure
+     */
+    public void quarantine(QuarantinedEvent event) {
+        log.debug("Quarantining event {}", event);
+        session.saveOrUpdate(event);
+    }
+
+    /**
+     * Get the events in quarantine
+     * @return the events, in key order
+     */
+    public List<QuarantinedEvent> getQuarantinedEvents() {
+        return listRecords(session.createCriteria(QuarantinedEvent.class).addOrder(Order.asc("key")));
+    }
+
+    /**
+     * Get an event in quarantine
+     * @param key the key of the event
+     * @return the event, or null if it is not in quarantine
+     */
+    public QuarantinedEvent getQuarantinedEvent(long key) {
+        return (QuarantinedEvent) session.get(QuarantinedEvent.class, key);
+    }
+
+    /**
+     * Release an event from quarantine
+     * @param event the event
+     */
+    public void release(QuarantinedEvent event) {
+        log.debug("Releasing event {} from quarantine", event);
+        session.delete(event);
+    }
+
+    /**
+     * Save the entry view angles of a content model
+     * @param contentModel the content model
+     */
+    public void saveContentModel(ContentModel contentModel) {
+        log.debug("Saving content model {}", contentModel);
+        session.merge(contentModel);
+    }
+
+    /**
+     * Delete the entry view angles of a content model, if they are saved
+     * @param pid the pid of the content model
+     */
+    public void deleteContentModel(String pid) {
+        ContentModel contentModel = (ContentModel) session.get(ContentModel.class, pid);
+        if (contentModel != null) {
+            log.debug("Deleting content model {}", contentModel);
+            session.delete(contentModel);
+            //Delete it now, so it can be saved again in this session, when it is loaded again
+            session.flush();
+        }
+    }
+
+    /**
+     * Get the saved content models
+     * @return the content models, with their entry view angles
+     */
+    public List<ContentModel> getContentModels() {
+        return listRecords(session.createCriteria(ContentModel.class)
+                                  .setResultTransformer(Criteria.DISTINCT_ROOT_ENTITY));
+    }
+
     /**
      * Get the records matching the given criteria
      * @param since modified since this timestamp
@@ -231,6 +301,13 @@ public class DB implements Closeable{
         session.flush();
     }
 
+    /**
+     * Remove all the objects from the session. Flush first, or the changes are lost.
+     */
+    public void clear() {
+        session.clear();
+    }
+
     /**
      * Close the database connection
      */
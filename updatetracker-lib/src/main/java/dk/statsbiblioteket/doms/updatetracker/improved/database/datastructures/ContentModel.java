@@ -0,0 +1,82 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.database.datastructures;
+
+import javax.persistence.CollectionTable;
+import javax.persistence.Column;
+import javax.persistence.ElementCollection;
+import javax.persistence.Entity;
+import javax.persistence.FetchType;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The entry view angles of a content model, as loaded from fedora. They are kept here, so the update tracker starts
+ * with the content models it knew when it stopped, instead of looking them all up in fedora again.
+ */
+@Entity
+@Table(name = "CONTENTMODELS")
+public class ContentModel {
+
+    /** The pid of the content model */
+    @Id
+    @Column(name = "PID", length = 64, nullable = false)
+    private String pid;
+
+    /** The view angles the objects of the content model are entries for */
+    @ElementCollection(fetch = FetchType.EAGER)
+    @CollectionTable(name = "CONTENTMODELENTRYANGLES", joinColumns = @JoinColumn(name = "PID"))
+    @Column(name = "VIEWANGLE", length = 64, nullable = false)
+    private Set<String> entryAngles = new HashSet<>();
+
+    /** When the entry view angles were loaded from fedora */
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "LOADED", columnDefinition = "timestamp with time zone", nullable = false)
+    private Date loaded;
+
+    public ContentModel() {
+    }
+
+    public ContentModel(String pid, Set<String> entryAngles, Date loaded) {
+        this.pid = pid;
+        this.entryAngles = new HashSet<>(entryAngles);
+        this.loaded = loaded;
+    }
+
+    public String getPid() {
+        return pid;
+    }
+
+    public void setPid(String pid) {
+        this.pid = pid;
+    }
+
+    public Set<String> getEntryAngles() {
+        return entryAngles;
+    }
+
+    public void setEntryAngles(Set<String> entryAngles) {
+        this.entryAngles = entryAngles;
+    }
+
+    public Date getLoaded() {
+        return loaded;
+    }
+
+    public void setLoaded(Date loaded) {
+        this.loaded = loaded;
+    }
+
+    @Override
+    public String toString() {
+        return "ContentModel{" +
+               "pid='" + pid + '\'' +
+               ", entryAngles=" + entryAngles +
+               ", loaded=" + loaded +
+               '}';
+    }
+}
@@ -0,0 +1,145 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.database.datastructures;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import java.util.Date;
+
+/**
+ * A worklog event which failed repeatedly, and was set aside so the update tracker could move on. It is kept here,
+ * with the last failure, until it is replayed.
+ */
+@Entity
+@Table(name = "QUARANTINEDEVENTS")
+public class QuarantinedEvent {
+
+    /** The maximum length of the stored error */
+    public static final int ERROR_LENGTH = 4000;
+
+    /** The key of the event in the worklog */
+    @Id
+    @Column(name = "EVENTKEY", nullable = false)
+    private long key;
+
+    @Column(name = "PID", length = 64, nullable = false)
+    private String pid;
+
+    @Column(name = "METHOD", length = 64, nullable = false)
+    private String method;
+
+    @Column(name = "PARAM", length = 255, nullable = true)
+    private String param;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "HAPPENED", columnDefinition = "timestamp with time zone", nullable = false)
+    private Date happened;
+
+    /** The number of times the event was tried */
+    @Column(name = "ATTEMPTS", nullable = false)
+    private int attempts;
+
+    /** The last failure */
+    @Column(name = "ERROR", length = ERROR_LENGTH, nullable = true)
+    private String error;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "QUARANTINED", columnDefinition = "timestamp with time zone", nullable = false)
+    private Date quarantined;
+
+    public QuarantinedEvent() {
+    }
+
+    public QuarantinedEvent(long key, String pid, String method, String param, Date happened, int attempts,
+                            String error) {
+        this.key = key;
+        this.pid = pid;
+        this.method = method;
+        this.param = param;
+        this.happened = happened;
+        this.attempts = attempts;
+        setError(error);
+        this.quarantined = new Date();
+    }
+
+    public long getKey() {
+        return key;
+    }
+
+    public void setKey(long key) {
+        this.key = key;
+    }
+
+    public String getPid() {
+        return pid;
+    }
+
+    public void setPid(String pid) {
+        this.pid = pid;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public void setMethod(String method) {
+        this.method = method;
+    }
+
+    public String getParam() {
+        return param;
+    }
+
+    public void setParam(String param) {
+        this.param = param;
+    }
+
+    public Date getHappened() {
+        return happened;
+    }
+
+    public void setHappened(Date happened) {
+        this.happened = happened;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        if (error != null && error.length() > ERROR_LENGTH) {
+            error = error.substring(0, ERROR_LENGTH);
+        }
+        this.error = error;
+    }
+
+    public Date getQuarantined() {
+        return quarantined;
+    }
+
+    public void setQuarantined(Date quarantined) {
+        this.quarantined = quarantined;
+    }
+
+    @Override
+    public String toString() {
+        return "QuarantinedEvent{" +
+               "key=" + key +
+               ", pid='" + pid + '\'' +
+               ", method='" + method + '\'' +
+               ", param='" + param + '\'' +
+               ", happened=" + happened +
+               ", attempts=" + attempts +
+               '}';
+    }
+}
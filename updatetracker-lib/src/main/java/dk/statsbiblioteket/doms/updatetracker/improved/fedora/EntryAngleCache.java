@@ -1,30 +1,190 @@
 package dk.statsbiblioteket.doms.updatetracker.improved.fedora;
 
-import dk.statsbiblioteket.util.caching.TimeSensitiveCache;
-
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
+/**
+ * The entry view angles of the content models. A cached content model is read without locking. When threads miss the
+ * same content model concurrently, one of them loads it from fedora and the others wait for that load, so a slow
+ * fedora only holds up the threads that need that content model. A failed load is not cached.
+ *
+ * If the loads are tracked, the content models loaded from fedora are remembered until taken, so they can be saved
+ * in the update tracker database, and preloaded when the update tracker starts again.
+ */
 public class EntryAngleCache {
 
     private static final int ONE_DAY_IN_MILLISECONDS = 24 * 60 * 60 * 1000;
-    private static final TimeSensitiveCache<String, Set<String>> cache = new TimeSensitiveCache<>(ONE_DAY_IN_MILLISECONDS, true);
 
+    private static final Runnable NOTHING = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    /**
+     * Loads the entry view angles of a content model from fedora
+     */
+    public interface Loader {
+        Set<String> load(String contentmodel) throws FedoraFailedException;
+    }
+
+    private final ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<>();
+    private final long timeToLive;
+    /** The content models loaded from fedora and not yet taken, or null if the loads are not tracked */
+    private final ConcurrentMap<String, Set<String>> loaded;
+
+    public EntryAngleCache() {
+        this(ONE_DAY_IN_MILLISECONDS, false);
+    }
+
+    /**
+     * @param timeToLive the time in milliseconds the entry view angles of a content model are cached
+     * @param trackLoads if true, the content models loaded from fedora are remembered until taken
+     * @see #takeLoadedContentModels()
+     */
+    public EntryAngleCache(long timeToLive, boolean trackLoads) {
+        this.timeToLive = timeToLive;
+        this.loaded = trackLoads ? new ConcurrentHashMap<String, Set<String>>() : null;
+    }
+
+    /**
+     * @param trackLoads if true, the content models loaded from fedora are remembered until taken
+     * @see #takeLoadedContentModels()
+     */
+    public EntryAngleCache(boolean trackLoads) {
+        this(ONE_DAY_IN_MILLISECONDS, trackLoads);
+    }
 
-    public synchronized boolean isCachedContentModel(String pid){
-        return cache.containsKey(pid);
+    public boolean isCachedContentModel(String pid){
+        Entry entry = cache.get(pid);
+        return entry != null && !isExpired(entry);
     }
 
-    public synchronized void invalidateContentModel(String pid){
+    public void invalidateContentModel(String pid){
         cache.remove(pid);
+        if (loaded != null) {
+            loaded.remove(pid);
+        }
     }
 
+    /**
+     * @param contentmodel the pid of the content model
+     * @return the entry view angles of the content model, or null if they are not cached, or still being loaded
+     */
+    public Set<String> getCachedEntryAngles(String contentmodel) {
+        Entry entry = cache.get(contentmodel);
+        if (entry == null || isExpired(entry) || !entry.load.isDone()) {
+            return null;
+        }
+        try {
+            return entry.load.get();
+        } catch (InterruptedException | ExecutionException e) {
+            return null;
+        }
+    }
+
+    public void setEntryViewAngles(String contentmodel, Set<String> entryAngles) {
+        Entry entry = new Entry(new FutureTask<>(NOTHING, entryAngles), System.currentTimeMillis());
+        entry.load.run();
+        cache.put(contentmodel, entry);
+    }
+
+    /**
+     * Cache the entry view angles of a content model, as they were saved earlier, unless the content model is cached
+     * already. The saved content models are kept up to date by the events changing them, so they are cached for the
+     * full time to live, however long ago they were loaded.
+     * @param contentmodel the pid of the content model
+     * @param entryAngles the entry view angles
+     */
+    public void preload(String contentmodel, Set<String> entryAngles) {
+        Entry entry = new Entry(new FutureTask<>(NOTHING, entryAngles), System.currentTimeMillis());
+        entry.load.run();
+        cache.putIfAbsent(contentmodel, entry);
+    }
 
-    public synchronized Set<String> getCachedEntryAngles(String contentmodel) {
-        return cache.get(contentmodel);
+    /**
+     * Take the content models loaded from fedora since the last call. Empty if the loads are not tracked.
+     * @return the entry view angles of the content models, by pid
+     */
+    public Map<String, Set<String>> takeLoadedContentModels() {
+        Map<String, Set<String>> taken = new HashMap<>();
+        if (loaded != null) {
+            for (String contentmodel : loaded.keySet()) {
+                Set<String> entryAngles = loaded.remove(contentmodel);
+                if (entryAngles != null) {
+                    taken.put(contentmodel, entryAngles);
+                }
+            }
+        }
+        return taken;
     }
 
-    public synchronized void setEntryViewAngles(String contentmodel, Set<String> entryAngles) {
-        cache.put(contentmodel,entryAngles);
+    /**
+     * Get the entry view angles of a content model, and load them if they are not cached. If another thread is
+     * loading them already, wait for that load instead.
+     * @param contentmodel the pid of the content model
+     * @param loader loads the entry view angles from fedora
+     * @return the entry view angles of the content model
+     * @throws FedoraFailedException if the entry view angles could not be loaded
+     */
+    public Set<String> getEntryAngles(final String contentmodel, final Loader loader) throws FedoraFailedException {
+        Entry entry = cache.get(contentmodel);
+        if (entry == null || isExpired(entry)) {
+            Entry loading = new Entry(new FutureTask<>(new Callable<Set<String>>() {
+                @Override
+                public Set<String> call() throws FedoraFailedException {
+                    Set<String> entryAngles = loader.load(contentmodel);
+                    if (loaded != null) {
+                        loaded.put(contentmodel, entryAngles);
+                    }
+                    return entryAngles;
+                }
+            }), System.currentTimeMillis());
+            boolean won = entry == null
+                          ? cache.putIfAbsent(contentmodel, loading) == null
+                          : cache.replace(contentmodel, entry, loading);
+            if (won) {
+                entry = loading;
+                entry.load.run();
+            } else {
+                //Another thread got there first, so try again with its entry
+                return getEntryAngles(contentmodel, loader);
+            }
+        }
+        try {
+            return entry.load.get();
+        } catch (ExecutionException e) {
+            //Let the next thread try again
+            cache.remove(contentmodel, entry);
+            if (e.getCause() instanceof FedoraFailedException) {
+                throw (FedoraFailedException) e.getCause();
+            }
+            throw new FedoraFailedException("Failed to load the entry view angles of content model " + contentmodel,
+                                            e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FedoraFailedException("Interrupted while waiting for the entry view angles of content model "
+                                            + contentmodel, e);
+        }
     }
 
+    private boolean isExpired(Entry entry) {
+        return System.currentTimeMillis() - entry.created >= timeToLive;
+    }
+
+    private static class Entry {
+        private final FutureTask<Set<String>> load;
+        private final long created;
+
+        private Entry(FutureTask<Set<String>> load, long created) {
+            this.load = load;
+            this.created = created;
+        }
+    }
 }
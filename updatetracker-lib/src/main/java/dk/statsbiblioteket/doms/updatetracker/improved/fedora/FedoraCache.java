@@ -0,0 +1,195 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.fedora;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of fedora lookups, bounded by the number of entries and by their estimated memory footprint. When either
+ * bound is exceeded, the least recently used entries are evicted. Entries older than the time to live are not
+ * returned, so a lookup is never older than that.
+ *
+ * The hits, misses, evictions and expirations are counted, so it can be seen over JMX whether the cache helps.
+ * All access is synchronized on the cache, but no fedora call is made while holding the lock.
+ * @param <K> the key of the lookups
+ * @param <V> the result of the lookups
+ */
+public class FedoraCache<K, V> implements FedoraCacheMXBean {
+
+    /**
+     * Estimates the memory footprint of the values in the cache
+     */
+    public interface Weigher<K, V> {
+        /**
+         * @return the estimated memory footprint of the entry, in bytes
+         */
+        long weigh(K key, V value);
+    }
+
+    private final int maxSize;
+    private final long maxWeight;
+    private final long timeToLive;
+    private final Weigher<K, V> weigher;
+
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long weight = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long expirations = 0;
+
+    /**
+     * @param maxSize the max number of entries in the cache
+     * @param maxWeight the max estimated memory footprint of the entries in the cache, in bytes
+     * @param timeToLive the time in milliseconds an entry is kept in the cache
+     * @param weigher estimates the memory footprint of an entry
+     */
+    public FedoraCache(int maxSize, long maxWeight, long timeToLive, Weigher<K, V> weigher) {
+        this.maxSize = maxSize;
+        this.maxWeight = maxWeight;
+        this.timeToLive = timeToLive;
+        this.weigher = weigher;
+    }
+
+    /**
+     * @param key the key of the lookup
+     * @return the cached value, or null if it is not cached, or older than the time to live
+     */
+    public synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (isExpired(entry, System.currentTimeMillis())) {
+            remove(key, entry);
+            expirations++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    /**
+     * Cache a value, and evict the least recently used entries if the cache is then out of bounds. A value heavier
+     * than the max weight is not cached.
+     * @param key the key of the lookup
+     * @param value the value
+     */
+    public synchronized void put(K key, V value) {
+        long now = System.currentTimeMillis();
+        Entry<V> entry = new Entry<>(value, weigher.weigh(key, value), now);
+        if (entry.weight > maxWeight) {
+            return;
+        }
+        Entry<V> previous = entries.put(key, entry);
+        if (previous != null) {
+            weight -= previous.weight;
+        }
+        weight += entry.weight;
+        Iterator<Map.Entry<K, Entry<V>>> eldest = entries.entrySet().iterator();
+        while (eldest.hasNext()) {
+            Map.Entry<K, Entry<V>> next = eldest.next();
+            if (isExpired(next.getValue(), now)) {
+                expirations++;
+            } else if (entries.size() > maxSize || weight > maxWeight) {
+                evictions++;
+            } else {
+                break;
+            }
+            weight -= next.getValue().weight;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Remove a value from the cache
+     * @param key the key of the lookup
+     */
+    public synchronized void invalidate(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null) {
+            remove(key, entry);
+        }
+    }
+
+    private void remove(K key, Entry<V> entry) {
+        entries.remove(key);
+        weight -= entry.weight;
+    }
+
+    private boolean isExpired(Entry<V> entry, long now) {
+        return now - entry.created >= timeToLive;
+    }
+
+    @Override
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    @Override
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    @Override
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    @Override
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    @Override
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    @Override
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized double getHitRatio() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized long getExpirations() {
+        return expirations;
+    }
+
+    @Override
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long weight;
+        private final long created;
+
+        private Entry(V value, long weight, long created) {
+            this.value = value;
+            this.weight = weight;
+            this.created = created;
+        }
+    }
+}
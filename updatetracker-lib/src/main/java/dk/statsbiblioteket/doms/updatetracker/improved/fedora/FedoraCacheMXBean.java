@@ -0,0 +1,63 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.fedora;
+
+/**
+ * The JMX view of a cache of fedora lookups
+ * @see FedoraCache
+ */
+public interface FedoraCacheMXBean {
+
+    /**
+     * @return the number of entries in the cache
+     */
+    int getSize();
+
+    /**
+     * @return the max number of entries in the cache
+     */
+    int getMaxSize();
+
+    /**
+     * @return the estimated memory footprint of the entries in the cache, in bytes
+     */
+    long getWeight();
+
+    /**
+     * @return the max estimated memory footprint of the entries in the cache, in bytes
+     */
+    long getMaxWeight();
+
+    /**
+     * @return the time in milliseconds an entry is kept in the cache
+     */
+    long getTimeToLive();
+
+    /**
+     * @return the number of lookups found in the cache
+     */
+    long getHits();
+
+    /**
+     * @return the number of lookups not found in the cache, including the expired entries
+     */
+    long getMisses();
+
+    /**
+     * @return the hits divided by the lookups, or 0 if there have been no lookups
+     */
+    double getHitRatio();
+
+    /**
+     * @return the number of entries removed to keep the cache within its bounds
+     */
+    long getEvictions();
+
+    /**
+     * @return the number of entries removed as they were older than the time to live
+     */
+    long getExpirations();
+
+    /**
+     * Remove all entries from the cache
+     */
+    void clear();
+}
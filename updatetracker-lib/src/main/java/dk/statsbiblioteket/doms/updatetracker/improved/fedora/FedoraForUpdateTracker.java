@@ -13,15 +13,14 @@ import dk.statsbiblioteket.doms.central.connectors.fedora.views.ViewsImpl;
 import dk.statsbiblioteket.doms.updatetracker.improved.database.ViewBundle;
 import dk.statsbiblioteket.doms.updatetracker.improved.database.datastructures.Record;
 import dk.statsbiblioteket.util.Pair;
-import dk.statsbiblioteket.util.caching.TimeSensitiveCache;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.collections4.Transformer;
 
-import javax.xml.bind.JAXBException;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 
@@ -34,69 +33,146 @@ public class FedoraForUpdateTracker {
             = "http://doms.statsbiblioteket.dk/relations/default/0/1/#isEntryForViewAngle";
     protected static final String COLLECTION_RELATION
             = "http://doms.statsbiblioteket.dk/relations/default/0/1/#isPartOfCollection";
+    /** An object every fedora has, to check that fedora answers */
+    private static final String FEDORA_SYSTEM_OBJECT = "fedora-system:FedoraObject-3.0";
 
     private final Views views;
     private final Fedora fedoraRest;
     private final EntryAngleCache entryAngleCache;
+    private final EntryAngleCache.Loader entryAngleLoader = new EntryAngleCache.Loader() {
+        @Override
+        public Set<String> load(String contentmodel) throws FedoraFailedException {
+            return getEntryAnglesForContentModel(contentmodel);
+        }
+    };
 
 
     private static final int ONE_MINUTE_IN_MILLISECONDS = 60 * 1000;
 
+    /** The default max number of entries in each of the caches */
+    public static final int DEFAULT_CACHE_MAX_SIZE = 10000;
+    /** The default max estimated memory footprint of each of the caches, in bytes */
+    public static final long DEFAULT_CACHE_MAX_WEIGHT = 32 * 1024 * 1024;
+    /** The default time in milliseconds an entry is kept in the caches */
+    public static final long DEFAULT_CACHE_TIME_TO_LIVE = ONE_MINUTE_IN_MILLISECONDS;
+
+    /** The estimated memory footprint of an entry, besides the strings in it */
+    private static final long ENTRY_OVERHEAD = 256;
+
+    private static final FedoraCache.Weigher<Pair<String, Date>, ObjectProfile> PROFILE_WEIGHER
+            = new FedoraCache.Weigher<Pair<String, Date>, ObjectProfile>() {
+        @Override
+        public long weigh(Pair<String, Date> key, ObjectProfile profile) {
+            return ENTRY_OVERHEAD + sizeOf(key.getLeft()) + sizeOf(profile.getState())
+                   + sizeOf(profile.getContentModels());
+        }
+    };
+
+    private static final FedoraCache.Weigher<Pair<String, Date>, Set<String>> COLLECTIONS_WEIGHER
+            = new FedoraCache.Weigher<Pair<String, Date>, Set<String>>() {
+        @Override
+        public long weigh(Pair<String, Date> key, Set<String> collections) {
+            return ENTRY_OVERHEAD + sizeOf(key.getLeft()) + sizeOf(collections);
+        }
+    };
+
     /**
-     * This is the profile of object profiles. Elements have a lifetime of only one minute, which should prevent the cache
-     * from growing to large.
+     * This is the cache of object profiles.
      * As both the pid and the date is part of the key, this is just a cache for multiple invocations during the
-     * same event. The next event will have a new date, and will thus not hit the old profile, and thus I do not need
-     * to invalidate entries in this cache.
+     * same event, or for a page of events prefetched together. The next event will have a new date, and will thus not
+     * hit the old profile, and thus I do not need to invalidate entries in this cache.
      */
-    private static final TimeSensitiveCache<Pair<String,Date>, ObjectProfile> profileCache = new TimeSensitiveCache<>(ONE_MINUTE_IN_MILLISECONDS, false);
+    private final FedoraCache<Pair<String, Date>, ObjectProfile> profileCache;
 
+    /**
+     * The collections of objects, cached like the profiles, so they can be prefetched for the events of a page
+     */
+    private final FedoraCache<Pair<String, Date>, Set<String>> collectionsCache;
 
 
     public FedoraForUpdateTracker(EntryAngleCache entryAngleCache, Fedora fedoraRest, ViewsImpl views) {
+        this(entryAngleCache, fedoraRest, views, DEFAULT_CACHE_MAX_SIZE, DEFAULT_CACHE_MAX_WEIGHT,
+             DEFAULT_CACHE_TIME_TO_LIVE);
+    }
+
+    /**
+     * @param entryAngleCache the cache of the entry view angles of the content models
+     * @param fedoraRest the fedora to look up
+     * @param views the views of fedora
+     * @param cacheMaxSize the max number of entries in each of the profile and collection caches
+     * @param cacheMaxWeight the max estimated memory footprint of each of the profile and collection caches, in bytes
+     * @param cacheTimeToLive the time in milliseconds an entry is kept in the profile and collection caches
+     */
+    public FedoraForUpdateTracker(EntryAngleCache entryAngleCache, Fedora fedoraRest, ViewsImpl views,
+                                  int cacheMaxSize, long cacheMaxWeight, long cacheTimeToLive) {
 
         this.entryAngleCache = entryAngleCache;
         this.fedoraRest = fedoraRest;
         this.views = views;
+        this.profileCache = new FedoraCache<>(cacheMaxSize, cacheMaxWeight, cacheTimeToLive, PROFILE_WEIGHER);
+        this.collectionsCache = new FedoraCache<>(cacheMaxSize, cacheMaxWeight, cacheTimeToLive, COLLECTIONS_WEIGHER);
+    }
+
+    /**
+     * @return the estimated memory footprint of a string, in bytes
+     */
+    private static long sizeOf(String string) {
+        return string == null ? 0 : 40 + 2 * string.length();
+    }
+
+    /**
+     * @return the estimated memory footprint of a collection of strings, in bytes
+     */
+    private static long sizeOf(Collection<String> strings) {
+        long weight = 0;
+        if (strings != null) {
+            for (String string : strings) {
+                weight += 32 + sizeOf(string);
+            }
+        }
+        return weight;
+    }
+
+    /**
+     * @return the cache of object profiles
+     */
+    public FedoraCacheMXBean getProfileCache() {
+        return profileCache;
+    }
+
+    /**
+     * @return the cache of the collections of objects
+     */
+    public FedoraCacheMXBean getCollectionsCache() {
+        return collectionsCache;
     }
 
     public Collection<String> getEntryAngles(String pid, Date date) throws FedoraFailedException {
         try {
             Set<String> entryAngles = new HashSet<>();
             ObjectProfile profile = getObjectProfile(pid, date);
-            synchronized (entryAngleCache) {
-                if (profile.getType() == ObjectType.CONTENT_MODEL){
-                    getEntryAnglesForContentModel(pid);
-                }
-                for (String contentmodelPid : profile.getContentModels()) {
-                    entryAngles.addAll(getEntryAnglesForContentModel(contentmodelPid));
-                }
+            if (profile.getType() == ObjectType.CONTENT_MODEL){
+                entryAngleCache.getEntryAngles(pid, entryAngleLoader);
+            }
+            for (String contentmodelPid : profile.getContentModels()) {
+                entryAngles.addAll(entryAngleCache.getEntryAngles(contentmodelPid, entryAngleLoader));
             }
             return entryAngles;
-        } catch (BackendInvalidCredsException | BackendMethodFailedException | BackendInvalidResourceException | JAXBException e) {
+        } catch (BackendInvalidCredsException | BackendMethodFailedException | BackendInvalidResourceException e) {
             throw new FedoraFailedException("Failed to get view info from Fedora for pid " + pid, e);
         }
     }
 
-    private Set<String> getEntryAnglesForContentModel(String contentmodel) throws
-                                                           BackendMethodFailedException,
-                                                           BackendInvalidCredsException,
-                                                           BackendInvalidResourceException,
-                                                           JAXBException {
-        Set<String> entryAngles = entryAngleCache.getCachedEntryAngles(contentmodel);
-        if (entryAngles == null) {
-            try {
-                List<FedoraRelation> entryRelations = fedoraRest.getNamedRelations(contentmodel, ENTRY_RELATION, null);
-
-                entryAngles = getObject(entryRelations);
-                entryAngles = scrubViewAngles(entryAngles);
-            } catch (BackendInvalidResourceException e) {
-                entryAngles = new HashSet<>();
-            }
-            entryAngleCache.setEntryViewAngles(contentmodel, entryAngles);
+    private Set<String> getEntryAnglesForContentModel(String contentmodel) throws FedoraFailedException {
+        try {
+            List<FedoraRelation> entryRelations = fedoraRest.getNamedRelations(contentmodel, ENTRY_RELATION, null);
+            return scrubViewAngles(getObject(entryRelations));
+        } catch (BackendInvalidResourceException e) {
+            return new HashSet<>();
+        } catch (BackendInvalidCredsException | BackendMethodFailedException e) {
+            throw new FedoraFailedException("Failed to get view info from Fedora for content model " + contentmodel, e);
         }
-        return entryAngles;
-   }
+    }
 
     private Set<String> scrubViewAngles(Set<String> entryAngles) {
         Set<String> scrubbedEntryAngles = new HashSet<>();
@@ -131,16 +207,35 @@ public class FedoraForUpdateTracker {
     }
 
     public Set<String> getCollections(String pid, Date date) throws FedoraFailedException {
-        List<FedoraRelation> collectionRelations;
-        try {
-            collectionRelations = fedoraRest.getNamedRelations(pid, COLLECTION_RELATION,
-                                                                                       date.getTime());
-        } catch (BackendInvalidCredsException | BackendMethodFailedException e) {
-            throw new FedoraFailedException("Failed to get collection info from Fedora for pid " + pid, e);
-        } catch (BackendInvalidResourceException e) {
-            return new HashSet<>();
+        final Pair<String, Date> key = new Pair<>(pid, date);
+        Set<String> collections = collectionsCache.get(key);
+        if (collections == null) {
+            List<FedoraRelation> collectionRelations;
+            try {
+                collectionRelations = fedoraRest.getNamedRelations(pid, COLLECTION_RELATION,
+                                                                   date.getTime());
+            } catch (BackendInvalidCredsException | BackendMethodFailedException e) {
+                throw new FedoraFailedException("Failed to get collection info from Fedora for pid " + pid, e);
+            } catch (BackendInvalidResourceException e) {
+                return new HashSet<>();
+            }
+            collections = getObject(collectionRelations);
+            collectionsCache.put(key, collections);
         }
-        return getObject(collectionRelations);
+        //A copy, so the cached collections are not changed by the caller
+        return new HashSet<>(collections);
+    }
+
+    /**
+     * Fetch the profile, collections and entry view angles of an object into the caches, so the handling of an event
+     * for the object at this date does not wait for fedora.
+     * @param pid the pid of the object
+     * @param date the date of the event
+     * @throws FedoraFailedException
+     */
+    public void prefetch(String pid, Date date) throws FedoraFailedException {
+        getCollections(pid, date);
+        getEntryAngles(pid, date);
     }
 
     /**
@@ -174,10 +269,31 @@ public class FedoraForUpdateTracker {
         return cachedProfile;
     }
 
+    /**
+     * Check that fedora answers, by looking up an object every fedora has, past the profile cache
+     * @throws FedoraFailedException if fedora does not answer
+     */
+    public void checkHealth() throws FedoraFailedException {
+        try {
+            fedoraRest.getLimitedObjectProfile(FEDORA_SYSTEM_OBJECT, null);
+        } catch (BackendInvalidCredsException | BackendInvalidResourceException | BackendMethodFailedException e) {
+            throw new FedoraFailedException("Fedora does not answer", e);
+        }
+    }
+
     public void invalidateContentModel(String pid) {
         entryAngleCache.invalidateContentModel(pid);
     }
 
+    /**
+     * Take the content models loaded from fedora since the last call, if the entry angle cache tracks the loads
+     * @return the entry view angles of the content models, by pid
+     * @see EntryAngleCache#takeLoadedContentModels()
+     */
+    public Map<String, Set<String>> takeLoadedContentModels() {
+        return entryAngleCache.takeLoadedContentModels();
+    }
+
     public Record.State getState(String pid, Date date) throws FedoraFailedException {
         try {
             ObjectProfile profile = getObjectProfile(pid, date);
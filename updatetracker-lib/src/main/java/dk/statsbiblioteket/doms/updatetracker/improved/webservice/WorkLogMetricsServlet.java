@@ -0,0 +1,30 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.webservice;
+
+import dk.statsbiblioteket.doms.updatetracker.improved.UpdateTrackingSystem;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Serves the worklog metrics in the Prometheus text format, for scraping. It is mapped to /metrics by the
+ * META-INF/web-fragment.xml of this jar, in the webapp with the UpdateTrackerTimerServlet, which starts the update
+ * tracker system. Servlet 2.5 containers ignore the fragment, so the mapping must be added to the web.xml there.
+ * @see dk.statsbiblioteket.doms.updatetracker.improved.worklog.WorkLogMetrics
+ */
+public class WorkLogMetricsServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        UpdateTrackingSystem updateTracker = UpdateTrackerTimerServlet.updateTracker;
+        if (updateTracker == null || updateTracker.getWorkLogMetrics() == null) {
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The update tracker is not running");
+            return;
+        }
+        resp.setContentType("text/plain; version=0.0.4");
+        resp.setCharacterEncoding("UTF-8");
+        updateTracker.getWorkLogMetrics().writePrometheus(resp.getWriter());
+    }
+}
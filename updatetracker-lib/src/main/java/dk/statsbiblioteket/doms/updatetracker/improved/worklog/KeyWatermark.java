@@ -0,0 +1,59 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.worklog;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Keeps track of the highest worklog key below which all events have been handled, when the events are handled out
+ * of order. Keys are registered in increasing order when dispatched, and the watermark advances over a key only
+ * when that key and all keys dispatched before it have been completed.
+ */
+public class KeyWatermark {
+
+    /** The dispatched keys not yet passed by the watermark, in dispatch order */
+    private final Deque<Long> pending = new ArrayDeque<>();
+
+    /** The completed keys not yet passed by the watermark */
+    private final Set<Long> completed = new HashSet<>();
+
+    private long watermark;
+
+    /**
+     * @param watermark the key below which everything has already been handled
+     */
+    public KeyWatermark(long watermark) {
+        this.watermark = watermark;
+    }
+
+    /**
+     * Register that the event with this key have been dispatched for handling
+     * @param key the key. Must be higher than all keys dispatched before.
+     */
+    public synchronized void dispatched(long key) {
+        Long last = pending.isEmpty() ? watermark : pending.peekLast();
+        if (key <= last) {
+            throw new IllegalArgumentException("Key " + key + " dispatched after key " + last);
+        }
+        pending.addLast(key);
+    }
+
+    /**
+     * Register that the event with this key have been handled
+     * @param key the key. Must have been dispatched.
+     */
+    public synchronized void completed(long key) {
+        completed.add(key);
+        while (!pending.isEmpty() && completed.remove(pending.peekFirst())) {
+            watermark = pending.removeFirst();
+        }
+    }
+
+    /**
+     * @return the highest key for which this key and all keys before it have been handled
+     */
+    public synchronized long getWatermark() {
+        return watermark;
+    }
+}
@@ -0,0 +1,150 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.worklog;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Merges redundant events for the same object within a page of worklog events, before they are handed to the
+ * update tracker.
+ *
+ * The events fall in these kinds
+ * <ul>
+ *     <li>Date changes: datastream changes that only cause the dates of the records to be updated</li>
+ *     <li>Relation changes: changes to RELS-EXT, which cause the records to be recalculated and the dates updated</li>
+ *     <li>Barriers: ingest, state changes, purges and VIEW changes, which are never merged</li>
+ *     <li>Nonchanging events, which are left alone</li>
+ * </ul>
+ * A run of date and relation changes for an object, not interrupted by a barrier for the same object, is replaced
+ * by the last event of the run, as the dates are overwritten by the latest timestamp anyway. If the run contains a
+ * relation change, the last event becomes a relation change, so the records are recalculated once, at the latest
+ * timestamp.
+ *
+ * The kept events retain their keys and order, so the latest key still only moves past an event when the event, or
+ * a later event that replaced it, have been handled.
+ */
+public class WorkLogCoalescer {
+
+    private static Logger log = LoggerFactory.getLogger(WorkLogCoalescer.class);
+
+    enum Kind {
+        DATES, RELATIONS, BARRIER, NONCHANGING
+    }
+
+    private final AtomicLong savedEvents = new AtomicLong();
+
+    /**
+     * Coalesce the events
+     * @param events the events, in key order
+     * @return the events to handle, in key order
+     */
+    public List<WorkLogUnit> coalesce(List<WorkLogUnit> events) {
+        //Work backwards, so the last event of each run is the one we keep
+        List<WorkLogUnit> result = new ArrayList<>(events.size());
+        Map<String, Integer> openRuns = new HashMap<>();
+        for (int i = events.size() - 1; i >= 0; i--) {
+            WorkLogUnit event = events.get(i);
+            String pid = getObjectPid(event.getPid());
+            Kind kind = getKind(event);
+            switch (kind) {
+                case BARRIER:
+                    openRuns.remove(pid);
+                    result.add(event);
+                    break;
+                case DATES:
+                case RELATIONS:
+                    Integer kept = openRuns.get(pid);
+                    if (kept == null) {
+                        openRuns.put(pid, result.size());
+                        result.add(event);
+                    } else if (kind == Kind.RELATIONS && getKind(result.get(kept)) == Kind.DATES) {
+                        result.set(kept, asRelationsChange(result.get(kept)));
+                    }
+                    break;
+                default:
+                    result.add(event);
+                    break;
+            }
+        }
+        Collections.reverse(result);
+        int saved = events.size() - result.size();
+        if (saved > 0) {
+            savedEvents.addAndGet(saved);
+            log.info("Coalesced {} worklog events into {}", events.size(), result.size());
+        }
+        return result;
+    }
+
+    /**
+     * @return the total number of events merged away by this coalescer
+     */
+    public long getSavedEvents() {
+        return savedEvents.get();
+    }
+
+    /**
+     * Get the kind of event, as seen from the update tracker
+     * @param event the event
+     * @return the kind
+     * @see dk.statsbiblioteket.doms.updatetracker.improved.database.UpdateTrackerPersistentStoreImpl#eventHappened
+     */
+    static Kind getKind(WorkLogUnit event) {
+        switch (event.getMethod()) {
+            case "addDatastream":
+            case "modifyDatastreamByReference":
+            case "modifyDatastreamByValue":
+            case "purgeDatastream":
+                if ("RELS-EXT".equals(event.getParam())) {
+                    return Kind.RELATIONS;
+                } else if ("VIEW".equals(event.getParam())) {
+                    //VIEW changes invalidate the content model, which a later event for the object will not do
+                    return Kind.BARRIER;
+                } else {
+                    return Kind.DATES;
+                }
+            case "setDatastreamState":
+            case "setDatastreamVersionable":
+                return Kind.DATES;
+            case "addRelationship":
+            case "purgeRelationship":
+                //Relations in RELS-INT are logged as pid/datastream, and only cause the dates to be updated
+                return event.getPid().contains("/") ? Kind.DATES : Kind.RELATIONS;
+            case "getObjectXML":
+            case "export":
+            case "getDatastream":
+            case "getDatastreams":
+            case "getDatastreamHistory":
+            case "putTempStream":
+            case "getTempStream":
+            case "compareDatastreamChecksum":
+            case "getNextPID":
+            case "getRelationships":
+            case "validate":
+                return Kind.NONCHANGING;
+            default:
+                //ingest, modifyObject, purgeObject, and whatever we do not know
+                return Kind.BARRIER;
+        }
+    }
+
+    /**
+     * Relations in RELS-INT are logged as pid/datastream
+     * @param pid the pid from the worklog
+     * @return the pid of the object
+     */
+    static String getObjectPid(String pid) {
+        int slash = pid.indexOf('/');
+        return slash < 0 ? pid : pid.substring(0, slash);
+    }
+
+    private static WorkLogUnit asRelationsChange(WorkLogUnit event) {
+        return new WorkLogUnit(event.getKey(), "modifyDatastreamByValue", event.getDate(),
+                               getObjectPid(event.getPid()), "RELS-EXT");
+    }
+}
@@ -0,0 +1,87 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.worklog;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A server side cursor over the worklog events. Postgres only streams the result set when autocommit is off and a
+ * fetch size is set, otherwise the driver buffers all the rows before the first is returned.
+ *
+ * The cursor is read in chunks, possibly from different threads, but never concurrently, as next and close are
+ * synchronized.
+ * The age of the events is judged when the cursor is opened, so events becoming old enough while the cursor is read
+ * are left for the next cursor.
+ * @see WorkLogPollDAO#openFedoraEvents(Long, int, int, int)
+ */
+public class WorkLogCursor implements Closeable {
+
+    private static Logger log = LoggerFactory.getLogger(WorkLogCursor.class);
+
+    private final Connection connection;
+    private final PreparedStatement statement;
+    private final ResultSet resultSet;
+    private boolean exhausted = false;
+
+    WorkLogCursor(Connection connection, String eventsQuery, Long lastRegisteredKey, int limit, int delay,
+                  int fetchSize) throws SQLException {
+        this.connection = connection;
+        connection.setAutoCommit(false);
+        statement = connection.prepareStatement(eventsQuery);
+        statement.setFetchSize(fetchSize);
+        WorkLogPollDAO.setEventsQueryParameters(statement, lastRegisteredKey, limit, delay);
+        resultSet = statement.executeQuery();
+    }
+
+    /**
+     * Read the next events from the cursor
+     * @param max the max number of events to read
+     * @return the events, or an empty list if there are no more events
+     * @throws IOException on any database communication problems
+     */
+    public synchronized List<WorkLogUnit> next(int max) throws IOException {
+        List<WorkLogUnit> result = new ArrayList<>(max);
+        try {
+            while (!exhausted && result.size() < max) {
+                if (!resultSet.next()) {
+                    exhausted = true;
+                    break;
+                }
+                result.add(WorkLogPollDAO.readEvent(resultSet));
+            }
+        } catch (SQLException e) {
+            exhausted = true;
+            throw new IOException(e);
+        }
+        return result;
+    }
+
+    /**
+     * Close the cursor, and return the connection to the pool
+     */
+    @Override
+    public synchronized void close() {
+        try {
+            resultSet.close();
+            statement.close();
+            connection.rollback();
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            log.warn("Failed to close the worklog cursor", e);
+        } finally {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                log.debug("Failed to close connection", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.worklog;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Reads the changed objects from the updateTrackerDirtyPids summary kept by the fedora hook, instead of the events
+ * from the worklog. The summary has a row per changed object, with the key and timestamp of the latest event for the
+ * object, and the classes of the events since the row was last consumed. Each row is turned into the few events that
+ * bring the object up to date as of the latest event, so a burst of events for an object costs the same as one.
+ *
+ * The rows are read in the order of their keys, and the key of a row is registered as the latest key when it has been
+ * handled, like the key of an event. The handled rows are then deleted, unless the object has changed again since.
+ * Rows at or below the latest key were committed after rows with higher keys, and are handled when found, like the
+ * events found by the gap tracker.
+ *
+ * The summary tells which kinds of events happened, not their order or params, so the events are an over-approximation:
+ * a structural or state change recomputes the object as if it was ingested, and failed operations are included.
+ * @see WorkLogPollTask
+ */
+public class WorkLogDirtySummary {
+
+    private static Logger log = LoggerFactory.getLogger(WorkLogDirtySummary.class);
+
+    /** The class of the events changing the state of an object. Must match the fedora hook */
+    static final int STATE = 1;
+    /** The class of the events changing the structure of an object: ingest, relations and the VIEW datastream */
+    static final int STRUCTURAL = 2;
+    /** The class of the events changing other datastreams of an object */
+    static final int DATASTREAM = 4;
+    /** The class of the events purging an object */
+    static final int PURGE = 8;
+
+    private final WorkLogPollDAO workLogPollDAO;
+
+    /**
+     * @param workLogPollDAO the worklog database, with the summary
+     */
+    public WorkLogDirtySummary(WorkLogPollDAO workLogPollDAO) {
+        this.workLogPollDAO = workLogPollDAO;
+    }
+
+    /**
+     * Get the events for the changed objects after the lastRegisteredKey, in key order
+     * @param lastRegisteredKey the highest key not to include
+     * @param limit the max amount of objects to retrieve
+     * @param delay delay (in milliseconds) before an object is eligible for working on
+     * @return the events, with the key of the row of the object
+     * @throws IOException on any database communication problems
+     */
+    public List<WorkLogUnit> getEvents(Long lastRegisteredKey, int limit, int delay) throws IOException {
+        return workLogPollDAO.getDirtyObjects(lastRegisteredKey, limit, delay);
+    }
+
+    /**
+     * Get the events for the changed objects at or below the lastRegisteredKey, which were committed after objects
+     * with higher keys, or handled without being deleted
+     * @param lastRegisteredKey the highest key to include
+     * @param limit the max amount of objects to retrieve
+     * @param delay delay (in milliseconds) before an object is eligible for working on
+     * @return the events, with the key of the row of the object
+     * @throws IOException on any database communication problems
+     */
+    public List<WorkLogUnit> getLateEvents(Long lastRegisteredKey, int limit, int delay) throws IOException {
+        return workLogPollDAO.getLateDirtyObjects(lastRegisteredKey, limit, delay);
+    }
+
+    /**
+     * Delete the rows of the handled events from the summary. A row is kept if the object has changed again since it
+     * was read.
+     * @param events the handled events
+     */
+    public void consumed(List<WorkLogUnit> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        try {
+            int deleted = workLogPollDAO.deleteDirtyObjects(events);
+            log.debug("Deleted {} handled objects from the summary", deleted);
+        } catch (IOException e) {
+            log.warn("Failed to delete " + events.size() + " handled events from the summary. They will be handled " +
+                     "again", e);
+        }
+    }
+
+    /**
+     * Turn a row of the summary into the events that bring the object up to date as of the latest event. All the
+     * events get the key and timestamp of the row.
+     * @param key the key of the latest event for the object
+     * @param pid the pid of the object
+     * @param happened the timestamp of the latest event for the object
+     * @param classes the classes of the events for the object
+     * @return the events, in the order to handle them
+     */
+    static List<WorkLogUnit> toEvents(long key, String pid, Date happened, int classes) {
+        List<WorkLogUnit> events = new ArrayList<>(2);
+        if ((classes & PURGE) != 0) {
+            //Purge resets the classes, so the object was purged last, unless a following operation failed
+            events.add(new WorkLogUnit(key, "purgeObject", happened, pid, null));
+        } else if ((classes & (STRUCTURAL | STATE)) != 0) {
+            if ((classes & STRUCTURAL) != 0) {
+                //Let a changed content model be read again, before the object is recomputed
+                events.add(new WorkLogUnit(key, "modifyDatastreamByValue", happened, pid, "VIEW"));
+            }
+            //Recomputes the collections, state, records and dates of the object
+            events.add(new WorkLogUnit(key, "ingest", happened, pid, null));
+        } else {
+            //Updates the dates of the object
+            events.add(new WorkLogUnit(key, "modifyDatastreamByValue", happened, pid, null));
+        }
+        return events;
+    }
+}
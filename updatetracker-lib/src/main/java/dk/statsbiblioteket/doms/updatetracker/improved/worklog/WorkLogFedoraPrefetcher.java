@@ -0,0 +1,126 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.worklog;
+
+import dk.statsbiblioteket.doms.updatetracker.improved.fedora.FedoraFailedException;
+import dk.statsbiblioteket.doms.updatetracker.improved.fedora.FedoraForUpdateTracker;
+import dk.statsbiblioteket.util.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Warms the fedora caches for a page of worklog events before the events are handled. The objects of the events that
+ * look up fedora are fetched concurrently, one request per distinct pid and timestamp, so the handling of the page,
+ * which is in key order, finds them cached instead of waiting for fedora one object at a time.
+ *
+ * A failed prefetch is only logged, as the event will fetch the object again when it is handled, and fail there if
+ * fedora is really down.
+ * @see FedoraForUpdateTracker#prefetch(String, Date)
+ */
+public class WorkLogFedoraPrefetcher implements Closeable {
+
+    private static Logger log = LoggerFactory.getLogger(WorkLogFedoraPrefetcher.class);
+
+    private final FedoraForUpdateTracker fedora;
+    private final ExecutorService ioPool;
+
+    /**
+     * @param fedora the fedora to warm the caches of
+     * @param threads the max number of concurrent requests to fedora
+     * @param threadFactory the factory for the request threads
+     */
+    public WorkLogFedoraPrefetcher(FedoraForUpdateTracker fedora, int threads, ThreadFactory threadFactory) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("There must be at least one prefetch thread, not " + threads);
+        }
+        this.fedora = fedora;
+        this.ioPool = Executors.newFixedThreadPool(threads, threadFactory);
+    }
+
+    /**
+     * Fetch the objects of the events into the fedora caches, and wait for the fetches to complete
+     * @param events the events about to be handled
+     * @throws InterruptedException if interrupted while waiting for the fetches
+     */
+    public void warm(List<WorkLogUnit> events) throws InterruptedException {
+        Set<Pair<String, Date>> objects = getObjects(events);
+        if (objects.isEmpty()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        List<Future<Void>> fetches = new ArrayList<>(objects.size());
+        for (final Pair<String, Date> object : objects) {
+            fetches.add(ioPool.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws FedoraFailedException {
+                    fedora.prefetch(object.getLeft(), object.getRight());
+                    return null;
+                }
+            }));
+        }
+        int failed = 0;
+        for (Future<Void> fetch : fetches) {
+            try {
+                fetch.get();
+            } catch (ExecutionException e) {
+                failed++;
+                log.debug("Failed to prefetch an object from fedora", e.getCause());
+            }
+        }
+        log.debug("Prefetched {} objects from fedora in {} ms, {} failed", objects.size(),
+                  System.currentTimeMillis() - start, failed);
+    }
+
+    /**
+     * Get the distinct objects the events will look up in fedora when handled
+     * @param events the events
+     * @return the pid and timestamp of the objects, in the order of the events
+     */
+    static Set<Pair<String, Date>> getObjects(List<WorkLogUnit> events) {
+        Set<Pair<String, Date>> objects = new LinkedHashSet<>();
+        for (WorkLogUnit event : events) {
+            if (usesFedora(event)) {
+                objects.add(new Pair<>(event.getPid(), event.getDate()));
+            }
+        }
+        return objects;
+    }
+
+    /**
+     * @return true if the handling of the event looks up the collections, state or entry angles of the object
+     */
+    private static boolean usesFedora(WorkLogUnit event) {
+        switch (event.getMethod()) {
+            case "ingest":
+            case "modifyObject":
+                return true;
+            case "addDatastream":
+            case "modifyDatastreamByReference":
+            case "modifyDatastreamByValue":
+            case "purgeDatastream":
+                return "RELS-EXT".equals(event.getParam());
+            case "addRelationship":
+            case "purgeRelationship":
+                //Relations of a datastream are in RELS-INT, which does not look up fedora
+                return !event.getPid().contains("/");
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        ioPool.shutdownNow();
+    }
+}
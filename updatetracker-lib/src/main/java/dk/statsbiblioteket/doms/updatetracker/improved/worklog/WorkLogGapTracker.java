@@ -0,0 +1,213 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.worklog;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the holes in the worklog keys, so events committed after events with higher keys are not skipped.
+ *
+ * The fedora hook inserts from many threads at once, each in its own transaction. A key is taken when the insert
+ * starts, but only visible when the transaction commits, so a key can become visible after a higher key has been
+ * read, and the latest key have moved past it. Each key missing from a page is remembered as a gap, for the length
+ * of the window, and looked for again in the following polls.
+ *
+ * Most gaps are never filled, as they come from inserts that were rolled back, or from events marked failed by the
+ * hook, when the fedora operation failed. These are forgotten when the window has passed.
+ * An event found in a gap, but failing when handled, must not be lost, as the latest key has moved past it, and
+ * nothing else would bring it back. The poll task stores it in quarantine, and it is tried again here, with a backoff
+ * doubling from RETRY_BACKOFF to MAX_RETRY_BACKOFF ms between the attempts, until it is handled. If it could not be
+ * stored in quarantine either, it is kept here, and stored when it fails again.
+ * The gaps and the retries are only kept in memory, so a gap open when the update tracker is stopped is not looked
+ * for again, and a quarantined gap event waits for a replay of the quarantine after a restart.
+ */
+public class WorkLogGapTracker {
+
+    private static Logger log = LoggerFactory.getLogger(WorkLogGapTracker.class);
+
+    /** The delay in milliseconds before a failed event is tried again the first time */
+    static final long RETRY_BACKOFF = 1000;
+    /** The max delay in milliseconds between the attempts of a failed event */
+    static final long MAX_RETRY_BACKOFF = 600000;
+
+    private final long window;
+    private final int maxGaps;
+
+    /** The open gaps, and when they were found, oldest first */
+    private final LinkedHashMap<Long, Long> gaps = new LinkedHashMap<>();
+    /** The events found in the gaps, that failed when handled, by key */
+    private final TreeMap<Long, FailedEvent> failed = new TreeMap<>();
+
+    private final AtomicLong filledGaps = new AtomicLong();
+    private final AtomicLong expiredGaps = new AtomicLong();
+
+    /**
+     * @param window the time in milliseconds to look for a missing key
+     * @param maxGaps the max number of gaps to remember. If more are found, the oldest are forgotten.
+     */
+    public WorkLogGapTracker(long window, int maxGaps) {
+        this.window = window;
+        this.maxGaps = maxGaps;
+    }
+
+    /**
+     * Remember the keys missing from a page
+     * @param lastRegisteredKey the key the page was fetched after
+     * @param events the events in the page, in key order
+     */
+    public synchronized void pageFetched(long lastRegisteredKey, List<WorkLogUnit> events) {
+        long now = System.currentTimeMillis();
+        long expected = lastRegisteredKey + 1;
+        for (WorkLogUnit event : events) {
+            long key = event.getKey();
+            //Before the first event ever handled, the missing keys are most likely pruned, not gaps
+            if (lastRegisteredKey > 0) {
+                //Only the top of a hole wider than maxGaps is remembered
+                for (long missing = Math.max(expected, key - maxGaps); missing < key; missing++) {
+                    if (!failed.containsKey(missing)) {
+                        gaps.put(missing, now);
+                    }
+                }
+            }
+            expected = key + 1;
+        }
+        while (gaps.size() > maxGaps) {
+            Iterator<Long> oldest = gaps.keySet().iterator();
+            log.warn("Too many gaps in the worklog keys, forgetting the gap at '{}'", oldest.next());
+            oldest.remove();
+            expiredGaps.incrementAndGet();
+        }
+    }
+
+    /**
+     * Get the gaps to look for. The gaps older than the window are forgotten.
+     * @return the keys of the open gaps, oldest first
+     */
+    public synchronized List<Long> getOpenGaps() {
+        long expiry = System.currentTimeMillis() - window;
+        Iterator<Map.Entry<Long, Long>> iterator = gaps.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, Long> gap = iterator.next();
+            if (gap.getValue() >= expiry) {
+                break;
+            }
+            log.debug("Giving up on the gap at '{}'", gap.getKey());
+            iterator.remove();
+            expiredGaps.incrementAndGet();
+        }
+        return new ArrayList<>(gaps.keySet());
+    }
+
+    /**
+     * Forget the gaps that have been filled
+     * @param keys the keys of the events found in the gaps, and handled
+     */
+    public synchronized void filled(Collection<Long> keys) {
+        for (Long key : keys) {
+            boolean open = gaps.remove(key) != null;
+            boolean retried = failed.remove(key) != null;
+            if (open || retried) {
+                filledGaps.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Try an event found in a gap, that failed when handled, again later, until it is handled. The gap is no longer
+     * looked for. The delay before the next attempt doubles with each failure.
+     * @param event the event that failed
+     * @param quarantined true if the event is stored in quarantine, false if it is only kept here
+     */
+    public synchronized void failed(WorkLogUnit event, boolean quarantined) {
+        gaps.remove(event.getKey());
+        FailedEvent previous = failed.get(event.getKey());
+        long delay = previous == null ? RETRY_BACKOFF : Math.min(previous.delay * 2, MAX_RETRY_BACKOFF);
+        failed.put(event.getKey(), new FailedEvent(event, quarantined, delay));
+    }
+
+    /**
+     * @return the events found in the gaps, that failed when handled, are only kept here, and are due to be tried
+     * again, in key order
+     */
+    public synchronized List<WorkLogUnit> getFailedEvents() {
+        return getDueEvents(false);
+    }
+
+    /**
+     * @return the events found in the gaps, that failed when handled, are stored in quarantine, and are due to be
+     * tried again, in key order
+     */
+    public synchronized List<WorkLogUnit> getQuarantinedEvents() {
+        return getDueEvents(true);
+    }
+
+    private List<WorkLogUnit> getDueEvents(boolean quarantined) {
+        long now = System.currentTimeMillis();
+        List<WorkLogUnit> result = new ArrayList<>();
+        for (FailedEvent failedEvent : failed.values()) {
+            if (failedEvent.quarantined == quarantined && failedEvent.nextAttempt <= now) {
+                result.add(failedEvent.event);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the lowest key that may still be needed, of the open gaps and the failed events not in quarantine. The
+     * worklog must be kept from this key on.
+     * @return the lowest key, or Long.MAX_VALUE if there are no such gaps or failed events
+     */
+    public synchronized long getLowestKey() {
+        long lowest = Long.MAX_VALUE;
+        for (FailedEvent failedEvent : failed.values()) {
+            //The quarantined events are kept in the update tracker database, so the worklog is not needed for them
+            if (!failedEvent.quarantined) {
+                lowest = failedEvent.event.getKey();
+                break;
+            }
+        }
+        for (Long gap : gaps.keySet()) {
+            lowest = Math.min(lowest, gap);
+        }
+        return lowest;
+    }
+
+    /**
+     * @return the number of gaps filled since this was created
+     */
+    public long getFilledGaps() {
+        return filledGaps.get();
+    }
+
+    /**
+     * @return the number of gaps given up on since this was created
+     */
+    public long getExpiredGaps() {
+        return expiredGaps.get();
+    }
+
+    /**
+     * A failed event, and when to try it again
+     */
+    private static class FailedEvent {
+        private final WorkLogUnit event;
+        private final boolean quarantined;
+        private final long delay;
+        private final long nextAttempt;
+
+        private FailedEvent(WorkLogUnit event, boolean quarantined, long delay) {
+            this.event = event;
+            this.quarantined = quarantined;
+            this.delay = delay;
+            this.nextAttempt = System.currentTimeMillis() + delay;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.worklog;
+
+import dk.statsbiblioteket.doms.updatetracker.improved.database.UpdateTrackerStorageException;
+import dk.statsbiblioteket.doms.updatetracker.improved.fedora.FedoraFailedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Handles a page of worklog events in a number of lanes, each a single thread. The lane of an event is picked from
+ * the pid, so the events for one object are handled in key order, while events for different objects are handled
+ * concurrently.
+ *
+ * Only the date changes are spread over the lanes. A structural event (ingest, state change, purge, or a change to the
+ * relations or VIEW) recalculates the records containing the object, and those records span objects in other lanes.
+ * So a structural event is a barrier: it waits for the events before it to complete, is handled alone, and the events
+ * after it wait for it. This way no record is recalculated concurrently with, or out of order with, another event
+ * for an object in it. The progress is tracked with a KeyWatermark, so the caller can register the highest key below which
+ * everything have been handled.
+ *
+ * If an event fails, the events not yet started are skipped, so the page can be retried from the watermark.
+ */
+public class WorkLogLanes implements Closeable {
+
+    private static Logger log = LoggerFactory.getLogger(WorkLogLanes.class);
+
+    private final ExecutorService[] lanes;
+
+    /**
+     * Handles a single event
+     */
+    public interface EventHandler {
+        void handle(WorkLogUnit event) throws UpdateTrackerStorageException, FedoraFailedException;
+    }
+
+    /**
+     * @param laneCount the number of lanes
+     * @param threadFactory the factory for the lane threads
+     */
+    public WorkLogLanes(int laneCount, ThreadFactory threadFactory) {
+        if (laneCount < 1) {
+            throw new IllegalArgumentException("There must be at least one lane, not " + laneCount);
+        }
+        lanes = new ExecutorService[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = Executors.newSingleThreadExecutor(threadFactory);
+        }
+    }
+
+    /**
+     * Handle the events and wait for them all to complete or be skipped
+     * @param events the events, in key order
+     * @param lastRegisteredKey the key below which everything has already been handled
+     * @param handler the handler for the events
+     * @return the highest key for which this key and all keys before it have been handled. This is the last key of
+     * the events if they were all handled, and lastRegisteredKey if none were.
+     * @throws InterruptedException if interrupted while waiting for the lanes
+     */
+    public long handle(List<WorkLogUnit> events, long lastRegisteredKey, final EventHandler handler)
+            throws InterruptedException {
+        final KeyWatermark watermark = new KeyWatermark(lastRegisteredKey);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        List<Future<?>> running = new ArrayList<>();
+        for (final WorkLogUnit event : events) {
+            boolean structural = isStructural(event);
+            if (structural) {
+                awaitAll(running, failed);
+            }
+            watermark.dispatched(event.getKey());
+            running.add(lanes[structural ? 0 : getLane(event.getPid())].submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!failed.get()) {
+                            handler.handle(event);
+                            watermark.completed(event.getKey());
+                        }
+                    } catch (UpdateTrackerStorageException e) {
+                        failed.set(true);
+                        log.error("Failed to store events in update tracker. Failed on '" + event + "'", e);
+                    } catch (FedoraFailedException e) {
+                        failed.set(true);
+                        log.error("Failed to communicate with fedora. Failed on '" + event + "'", e);
+                    } catch (RuntimeException e) {
+                        failed.set(true);
+                        log.error("Failed on '" + event + "'", e);
+                    }
+                }
+            }));
+            if (structural) {
+                awaitAll(running, failed);
+            }
+        }
+        awaitAll(running, failed);
+        return watermark.getWatermark();
+    }
+
+    /**
+     * Wait for the events dispatched so far to complete or be skipped
+     * @param running the events dispatched so far, cleared when they are done
+     * @param failed set if an event failed
+     * @throws InterruptedException if interrupted while waiting for the lanes
+     */
+    private void awaitAll(List<Future<?>> running, AtomicBoolean failed) throws InterruptedException {
+        for (Future<?> future : running) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                failed.set(true);
+                log.error("Failed to handle an event", e.getCause());
+            }
+        }
+        running.clear();
+    }
+
+    /**
+     * @param event the event
+     * @return true if the event can recalculate records, which contain objects in other lanes
+     */
+    protected boolean isStructural(WorkLogUnit event) {
+        WorkLogCoalescer.Kind kind = WorkLogCoalescer.getKind(event);
+        return kind == WorkLogCoalescer.Kind.RELATIONS || kind == WorkLogCoalescer.Kind.BARRIER;
+    }
+
+    /**
+     * Get the lane for a pid. Relations in RELS-INT are logged as pid/datastream, so only the part before the slash
+     * is used, to keep these events in the lane of the object.
+     * @param pid the pid from the worklog
+     * @return the index of the lane
+     */
+    protected int getLane(String pid) {
+        return (WorkLogCoalescer.getObjectPid(pid).hashCode() & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    /**
+     * Stop the lanes. Events not yet started are not handled.
+     */
+    @Override
+    public void close() {
+        for (ExecutorService lane : lanes) {
+            lane.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.worklog;
+
+import dk.statsbiblioteket.doms.updatetracker.improved.database.UpdateTrackerPersistentStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Live metrics for the worklog poller. The counters and page fetch latencies are recorded by the WorkLogPollTask, and
+ * the time to handle each event by the UpdateTrackerPersistentStoreImpl, while the lag gauges are read from the
+ * databases when asked for.
+ *
+ * The metrics are exposed over JMX as an MXBean, and in the Prometheus text format by writePrometheus. Rates, such as
+ * events per second, are left to the monitoring system, from the counters.
+ */
+public class WorkLogMetrics implements WorkLogMetricsMXBean {
+
+    private static Logger log = LoggerFactory.getLogger(WorkLogMetrics.class);
+
+    private final WorkLogPollDAO workLogPollDAO;
+    private final UpdateTrackerPersistentStore updateTrackerPersistentStore;
+
+    private final ConcurrentMap<String, AtomicLong> fetchedEvents = new ConcurrentHashMap<>();
+    private final LatencyHistogram pageFetchLatency = new LatencyHistogram();
+    private final LatencyHistogram applyLatency = new LatencyHistogram();
+    private volatile long heldBackEvents = 0;
+
+    /**
+     * Create metrics without the lag gauges
+     */
+    public WorkLogMetrics() {
+        this(null, null);
+    }
+
+    /**
+     * @param workLogPollDAO the worklog, to read the lag from
+     * @param updateTrackerPersistentStore the update tracker, to read the latest key handled from
+     */
+    public WorkLogMetrics(WorkLogPollDAO workLogPollDAO,
+                          UpdateTrackerPersistentStore updateTrackerPersistentStore) {
+        this.workLogPollDAO = workLogPollDAO;
+        this.updateTrackerPersistentStore = updateTrackerPersistentStore;
+    }
+
+    /**
+     * Record a page fetched from the worklog
+     * @param events the events in the page
+     * @param nanos the time taken to fetch the page
+     */
+    public void pageFetched(List<WorkLogUnit> events, long nanos) {
+        pageFetchLatency.observe(nanos);
+        for (WorkLogUnit event : events) {
+            AtomicLong counter = fetchedEvents.get(event.getMethod());
+            if (counter == null) {
+                AtomicLong newCounter = new AtomicLong();
+                counter = fetchedEvents.putIfAbsent(event.getMethod(), newCounter);
+                if (counter == null) {
+                    counter = newCounter;
+                }
+            }
+            counter.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record an event handled by the update tracker. When events are handled in a batch, each is recorded with its
+     * own time in the batch, without the commit of the batch.
+     * @param nanos the time taken to handle the event
+     */
+    public void eventApplied(long nanos) {
+        applyLatency.observe(nanos);
+    }
+
+    /**
+     * Record the number of events held back, counted at the end of a poll
+     * @param heldBackEvents the number of events too young to work on
+     */
+    public void setHeldBackEvents(long heldBackEvents) {
+        this.heldBackEvents = heldBackEvents;
+    }
+
+    @Override
+    public long getKeyLag() {
+        if (workLogPollDAO == null) {
+            return -1;
+        }
+        try {
+            return Math.max(workLogPollDAO.getMaxKey() - updateTrackerPersistentStore.getLatestKey(), 0);
+        } catch (Exception e) {
+            log.warn("Failed to read the worklog key lag", e);
+            return -1;
+        }
+    }
+
+    @Override
+    public long getTimeLag() {
+        if (workLogPollDAO == null) {
+            return -1;
+        }
+        try {
+            Date next = workLogPollDAO.getNextHappened(updateTrackerPersistentStore.getLatestKey());
+            if (next == null) {
+                return 0;
+            }
+            return Math.max(System.currentTimeMillis() - next.getTime(), 0);
+        } catch (Exception e) {
+            log.warn("Failed to read the worklog time lag", e);
+            return -1;
+        }
+    }
+
+    @Override
+    public long getHeldBackEvents() {
+        return heldBackEvents;
+    }
+
+    @Override
+    public Map<String, Long> getFetchedEventsByMethod() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> entry : fetchedEvents.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    @Override
+    public long getPageFetches() {
+        return pageFetchLatency.getCount();
+    }
+
+    @Override
+    public double getPageFetchMeanMillis() {
+        return pageFetchLatency.getMeanMillis();
+    }
+
+    @Override
+    public long getAppliedEvents() {
+        return applyLatency.getCount();
+    }
+
+    @Override
+    public double getApplyMeanMillis() {
+        return applyLatency.getMeanMillis();
+    }
+
+    /**
+     * Write the metrics in the Prometheus text exposition format
+     * @param writer the writer to write to
+     * @throws IOException if the writer fails
+     */
+    public void writePrometheus(Writer writer) throws IOException {
+        writeGauge(writer, "updatetracker_worklog_key_lag",
+                   "The highest worklog key minus the latest key handled", getKeyLag());
+        writeGauge(writer, "updatetracker_worklog_time_lag_seconds",
+                   "The age of the next worklog event to handle", getTimeLag() / 1000.0);
+        writeGauge(writer, "updatetracker_worklog_held_back_events",
+                   "The worklog events too young to work on at the last count", getHeldBackEvents());
+
+        writer.write("# HELP updatetracker_worklog_fetched_events_total The events fetched from the worklog\n");
+        writer.write("# TYPE updatetracker_worklog_fetched_events_total counter\n");
+        for (Map.Entry<String, Long> entry : getFetchedEventsByMethod().entrySet()) {
+            writer.write("updatetracker_worklog_fetched_events_total{method=\"" + escape(entry.getKey()) + "\"} " +
+                         entry.getValue() + "\n");
+        }
+
+        pageFetchLatency.writePrometheus(writer, "updatetracker_worklog_page_fetch_seconds",
+                                         "The time to fetch a page from the worklog");
+        applyLatency.writePrometheus(writer, "updatetracker_worklog_apply_seconds",
+                                     "The time to handle a worklog event");
+        writer.flush();
+    }
+
+    private static void writeGauge(Writer writer, String name, String help, double value) throws IOException {
+        writer.write("# HELP " + name + " " + help + "\n");
+        writer.write("# TYPE " + name + " gauge\n");
+        writer.write(name + " " + value + "\n");
+    }
+
+    private static String escape(String label) {
+        return String.valueOf(label).replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * A latency histogram with fixed buckets, from 1ms to 10s
+     */
+    static class LatencyHistogram {
+
+        /** The upper bounds of the buckets, in milliseconds. The last bucket has no upper bound */
+        static final long[] BOUNDS = {1, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sumNanos = new AtomicLong();
+
+        void observe(long nanos) {
+            int bucket = 0;
+            while (bucket < BOUNDS.length && nanos > TimeUnit.MILLISECONDS.toNanos(BOUNDS[bucket])) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+            sumNanos.addAndGet(nanos);
+            count.incrementAndGet();
+        }
+
+        long getCount() {
+            return count.get();
+        }
+
+        double getMeanMillis() {
+            long events = count.get();
+            return events == 0 ? 0 : sumNanos.get() / 1000000.0 / events;
+        }
+
+        void writePrometheus(Writer writer, String name, String help) throws IOException {
+            writer.write("# HELP " + name + " " + help + "\n");
+            writer.write("# TYPE " + name + " histogram\n");
+            long cumulative = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                cumulative += buckets.get(i);
+                writer.write(name + "_bucket{le=\"" + BOUNDS[i] / 1000.0 + "\"} " + cumulative + "\n");
+            }
+            cumulative += buckets.get(BOUNDS.length);
+            writer.write(name + "_bucket{le=\"+Inf\"} " + cumulative + "\n");
+            writer.write(name + "_sum " + sumNanos.get() / 1000000000.0 + "\n");
+            writer.write(name + "_count " + cumulative + "\n");
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.worklog;
+
+import java.util.Map;
+
+/**
+ * The JMX view of the worklog metrics
+ * @see WorkLogMetrics
+ */
+public interface WorkLogMetricsMXBean {
+
+    /**
+     * @return the highest key in the worklog minus the latest key handled, or -1 if unknown
+     */
+    long getKeyLag();
+
+    /**
+     * @return the age in milliseconds of the next event to handle, 0 if there is none, or -1 if unknown
+     */
+    long getTimeLag();
+
+    /**
+     * @return the number of events held back at the last count, as they were too young to work on
+     */
+    long getHeldBackEvents();
+
+    /**
+     * @return the number of events fetched from the worklog, by method
+     */
+    Map<String, Long> getFetchedEventsByMethod();
+
+    /**
+     * @return the number of pages fetched from the worklog
+     */
+    long getPageFetches();
+
+    /**
+     * @return the mean time in milliseconds to fetch a page from the worklog
+     */
+    double getPageFetchMeanMillis();
+
+    /**
+     * @return the number of events handled by the update tracker
+     */
+    long getAppliedEvents();
+
+    /**
+     * @return the mean time in milliseconds to handle an event
+     */
+    double getApplyMeanMillis();
+}
@@ -0,0 +1,140 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.worklog;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Holds a postgres LISTEN connection to the worklog database, and invokes the given callback when the fedora hook
+ * sends a NOTIFY about new worklog entries. The connection is not taken from the connection pool, as it is held
+ * for the lifetime of the listener.
+ * @see dk.statsbiblioteket.doms.updatetracker.improved.worklog.WorkLogPollDAO#listen(String, int, Runnable)
+ */
+public class WorkLogNotificationListener implements Runnable, Closeable {
+
+    private static Logger log = LoggerFactory.getLogger(WorkLogNotificationListener.class);
+
+    /** The time to wait before reconnecting after the connection failed */
+    private static final int RECONNECT_DELAY = 10 * 1000;
+
+    private final String jdbcUrl;
+    private final String username;
+    private final String password;
+    private final String channel;
+    private final int checkInterval;
+    private final Runnable callback;
+
+    private final Thread thread;
+    private volatile boolean running = true;
+    private Connection connection;
+
+    /**
+     * @param jdbcUrl the jdbc url to the worklog database
+     * @param username the username
+     * @param password the password
+     * @param channel the channel to LISTEN on. Must be a plain sql identifier.
+     * @param checkInterval the interval in milliseconds between checks for notifications
+     * @param callback invoked (from the listener thread) when one or more notifications have been received
+     */
+    public WorkLogNotificationListener(String jdbcUrl, String username, String password, String channel,
+                                       int checkInterval, Runnable callback) {
+        if (!channel.matches("[A-Za-z_][A-Za-z0-9_]*")) {
+            throw new IllegalArgumentException("Invalid notify channel '" + channel + "'");
+        }
+        this.jdbcUrl = jdbcUrl;
+        this.username = username;
+        this.password = password;
+        this.channel = channel;
+        this.checkInterval = checkInterval;
+        this.callback = callback;
+        thread = new Thread(this, "UpdateTracker-worklog-listener");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Start listening in a background thread
+     */
+    public void start() {
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                PGConnection pgConnection = getListeningConnection();
+                //The driver only reads the notifications when it talks to the server, so send a trivial query.
+                //This driver version cannot wait for notifications on the socket, so keep the interval in seconds.
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("SELECT 1");
+                }
+                PGNotification[] notifications = pgConnection.getNotifications();
+                if (notifications != null && notifications.length > 0) {
+                    log.debug("Received {} notifications on channel {}", notifications.length, channel);
+                    callback.run();
+                }
+                Thread.sleep(checkInterval);
+            } catch (SQLException e) {
+                log.warn("Failed to listen for notifications on channel " + channel + ", reconnecting in " +
+                         RECONNECT_DELAY + " ms", e);
+                closeConnection();
+                sleep(RECONNECT_DELAY);
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                //Fault barrier, so a failing callback does not stop the listener
+                log.error("Failed to handle notifications on channel " + channel, e);
+                sleep(checkInterval);
+            }
+        }
+        closeConnection();
+    }
+
+    private PGConnection getListeningConnection() throws SQLException {
+        if (connection == null) {
+            connection = DriverManager.getConnection(jdbcUrl, username, password);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("LISTEN " + channel);
+            }
+            log.info("Listening for notifications on channel {}", channel);
+            //There might have been notifications while we were not listening
+            callback.run();
+        }
+        return connection.unwrap(PGConnection.class);
+    }
+
+    private void sleep(int millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            running = false;
+        }
+    }
+
+    private void closeConnection() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                log.debug("Failed to close the listening connection", e);
+            }
+            connection = null;
+        }
+    }
+
+    /**
+     * Stop listening. The connection is closed by the listener thread.
+     */
+    @Override
+    public void close() {
+        running = false;
+        thread.interrupt();
+    }
+}
@@ -13,15 +13,25 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
 
 
 /**
  * The DAO represents the worklog database, with all the methods nessesary for the poller
+ *
+ * The worklog comes in two versions. The original stores the method and param as strings. The compact stores them as
+ * codes, with the names in the updateTrackerMethods and updateTrackerParams tables. The events are decoded in the
+ * queries, so the poller sees the same events from both. The version is told by the type of the method column.
+ * An original worklog from before the state column, which addWorklogStateColumn.sql adds, is read as if no event
+ * failed.
  * @see dk.statsbiblioteket.doms.updatetracker.improved.worklog.WorkLogPollTask
  */
 public class WorkLogPollDAO implements Closeable {
@@ -34,10 +44,76 @@ public class WorkLogPollDAO implements Closeable {
 
     private Logger log = LoggerFactory.getLogger(WorkLogPollDAO.class);
 
+    /**
+     * The condition for events whose fedora operation did not fail. The fedora hook marks the event with state 2 when
+     * the operation fails. Events from before the state column have no state.
+     */
+    static final String NOT_FAILED = "state IS DISTINCT FROM 2";
+
+    /**
+     * The first key after a key, of an event too young to work on. The events are handled in key order, but the keys
+     * are not in the order of the timestamps, so no events from this key onwards are eligible. Uses the index on
+     * happened, as only the youngest events are selected. The age is measured by the clock of the database.
+     */
+    private static final String YOUNG_KEY_QUERY = "COALESCE((SELECT MIN(key) " +
+                                                  "FROM updateTrackerLogs " +
+                                                  "WHERE key > ? " +
+                                                  "AND happened >= now() - ? * interval '1 millisecond'), " +
+                                                  Long.MAX_VALUE + ")";
+
+    /** The events in the original version of the worklog */
+    static final String EVENTS = "updateTrackerLogs";
+
+    /** The events in the original version of the worklog, from before the state column */
+    static final String STATELESS_EVENTS = "(SELECT key, pid, happened, method, param, NULL::smallint AS state " +
+                                           "FROM updateTrackerLogs) " +
+                                           "AS updateTrackerLogs";
+
+    /**
+     * The events in the compact version of the worklog, decoded. Postgres pulls the joins up into the queries, so the
+     * conditions on the key still use the index.
+     */
+    static final String COMPACT_EVENTS = "(SELECT l.key, l.pid, l.happened, m.name AS method, " +
+                                                 "p.param AS param, l.state " +
+                                                 "FROM updateTrackerLogs l " +
+                                                 "JOIN updateTrackerMethods m ON m.code = l.method " +
+                                                 "LEFT JOIN updateTrackerParams p ON p.code = l.param) " +
+                                                 "AS updateTrackerLogs";
+
+    /** The query for the events after a key old enough to work on, in key order */
+    static final String EVENTS_QUERY = eventsQuery(EVENTS);
+
+    /** The EVENTS_QUERY for the compact version of the worklog */
+    static final String COMPACT_EVENTS_QUERY = eventsQuery(COMPACT_EVENTS);
+
+    /** The EVENTS_QUERY for the original version of the worklog, from before the state column */
+    static final String STATELESS_EVENTS_QUERY = eventsQuery(STATELESS_EVENTS);
+
+    /** The query for the changed objects after a key old enough to work on, from the summary, in key order */
+    static final String DIRTY_OBJECTS_QUERY = "SELECT pid,lastKey,lastHappened,classes " +
+                                              "FROM updateTrackerDirtyPids " +
+                                              "WHERE lastKey > ? AND lastKey < " + YOUNG_KEY_QUERY + " " +
+                                              "ORDER BY lastKey ASC " +
+                                              "LIMIT ?";
+
+    /** The query for the number of events after a key held back, as they are not old enough to work on */
+    static final String HELD_BACK_QUERY = "SELECT count(*) AS heldback " +
+                                          "FROM updateTrackerLogs " +
+                                          "WHERE key > ? AND key >= " + YOUNG_KEY_QUERY;
+
 
     /** The pool with data sources for the database connections. */
     private final ComboPooledDataSource connectionPool;
 
+    /** The listener for worklog notifications, if any */
+    private WorkLogNotificationListener listener;
+
+    /** Whether the worklog is the compact version, or null until it has been looked up */
+    private volatile Boolean compact;
+
+    /** Whether the worklog has the state column, or null until it has been looked up */
+    private volatile Boolean stateColumn;
+
     public WorkLogPollDAO(String driver, String jdbcUrl, String username, String password) {
         this.driver = driver;
         this.jdbcUrl = jdbcUrl;
@@ -81,10 +157,36 @@ public class WorkLogPollDAO implements Closeable {
         }
     }
 
+    /**
+     * Start listening for notifications about new worklog entries. The fedora hook must be configured to NOTIFY
+     * on the same channel.
+     * @param channel the channel to LISTEN on
+     * @param checkInterval the interval in milliseconds between checks for notifications
+     * @param callback invoked when new worklog entries have been notified
+     * @see dk.statsbiblioteket.doms.updatetracker.improved.worklog.WorkLogNotificationListener
+     */
+    public synchronized void listen(String channel, int checkInterval, Runnable callback) {
+        if (listener != null) {
+            throw new IllegalStateException("Already listening for notifications");
+        }
+        try {
+            Class.forName(driver);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+        listener = new WorkLogNotificationListener(jdbcUrl, username, password, channel, checkInterval, callback);
+        listener.start();
+    }
+
     /**
      * Cleans up after use.
      */
     public void close() {
+        synchronized (this) {
+            if (listener != null) {
+                listener.close();
+            }
+        }
         try {
             DataSources.destroy(connectionPool);
         } catch (SQLException e) {
@@ -92,12 +194,102 @@ public class WorkLogPollDAO implements Closeable {
         }
     }
 
+    private static String eventsQuery(String events) {
+        return "SELECT key,pid,happened,method,param " +
+               "FROM " + events + " " +
+               "WHERE key > ? AND key < " + YOUNG_KEY_QUERY + " " +
+               "AND " + NOT_FAILED + " " +
+               "ORDER BY key ASC " +
+               "LIMIT ?";
+    }
+
+    /**
+     * Tell if the worklog is the compact version, with the method as a smallint code. This is looked up once.
+     * @param conn the connection to look it up with
+     * @return true if the worklog is the compact version
+     * @throws SQLException on any database communication problems
+     */
+    boolean isCompact(Connection conn) throws SQLException {
+        Boolean result = compact;
+        if (result == null) {
+            result = getVersion(conn);
+            if (result == null) {
+                //The fedora hook has not created the worklog yet, so look again next time
+                return false;
+            }
+            log.info("The worklog is the {} version", result ? "compact" : "original");
+            compact = result;
+        }
+        return result;
+    }
+
+    /**
+     * Look up the version of the worklog, from the type of the method column
+     * @param conn the connection to look it up with
+     * @return true if the worklog is the compact version, false if the original, or null if there is no worklog
+     * @throws SQLException on any database communication problems
+     */
+    static Boolean getVersion(Connection conn) throws SQLException {
+        try (ResultSet columns = conn.getMetaData().getColumns(null, null, "updatetrackerlogs", "method")) {
+            if (!columns.next()) {
+                return null;
+            }
+            return columns.getInt("DATA_TYPE") == Types.SMALLINT;
+        }
+    }
+
+    /**
+     * Tell if the worklog has the state column, which marks the failed fedora operations. This is looked up once.
+     * @param conn the connection to look it up with
+     * @return true if the worklog has the state column
+     * @throws SQLException on any database communication problems
+     */
+    boolean hasStateColumn(Connection conn) throws SQLException {
+        Boolean result = stateColumn;
+        if (result == null) {
+            if (getVersion(conn) == null) {
+                //The fedora hook has not created the worklog yet, so look again next time
+                return false;
+            }
+            try (ResultSet columns = conn.getMetaData().getColumns(null, null, "updatetrackerlogs", "state")) {
+                result = columns.next();
+            }
+            if (!result) {
+                log.warn("The worklog has no state column, so failed fedora operations are not skipped. Add it with " +
+                         "addWorklogStateColumn.sql");
+            }
+            stateColumn = result;
+        }
+        return result;
+    }
+
+    private String getEvents(Connection conn) throws SQLException {
+        if (isCompact(conn)) {
+            return COMPACT_EVENTS;
+        }
+        return hasStateColumn(conn) ? EVENTS : STATELESS_EVENTS;
+    }
+
+    /**
+     * The events without decoding the method and param, for the queries that only need the key, timestamp and state
+     */
+    private String getStates(Connection conn) throws SQLException {
+        return hasStateColumn(conn) ? EVENTS : STATELESS_EVENTS;
+    }
+
+    String getEventsQuery(Connection conn) throws SQLException {
+        if (isCompact(conn)) {
+            return COMPACT_EVENTS_QUERY;
+        }
+        return hasStateColumn(conn) ? EVENTS_QUERY : STATELESS_EVENTS_QUERY;
+    }
+
     /**
      * Get the list of worklog events from the worklog database, starting after the lastRegisteredKey.
      * The key is an autoincrementing long, so start from 0 if you want to start at the beginning
      * @param lastRegisteredKey the highest key not to include
      * @param limit the max amount of worklog units to retrieve
-     * @param delay delay (in seconds) before a task is eligible for working on
+     * @param delay delay (in milliseconds) before a task is eligible for working on
      * @return a list of worklog units, at most limit long
      * @throws IOException on any database communication problems
      */
@@ -105,29 +297,377 @@ public class WorkLogPollDAO implements Closeable {
 
         ArrayList<WorkLogUnit> result = new ArrayList<>(limit);
 
+        try {
+            try (Connection conn = getConnection()) {
+                try (PreparedStatement statement = conn.prepareStatement(getEventsQuery(conn))) {
+                    setEventsQueryParameters(statement, lastRegisteredKey, limit, delay);
+                    statement.execute();
+                    ResultSet resultSet = statement.getResultSet();
+                    while (resultSet.next()) {
+                        result.add(readEvent(resultSet));
+                    }
+                    return result;
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Get the worklog events with the given keys, which are old enough to work on.
+     * @param keys the keys to look for
+     * @param delay delay (in milliseconds) before a task is eligible for working on
+     * @return the events found, in key order
+     * @throws IOException on any database communication problems
+     */
+    public List<WorkLogUnit> getFedoraEvents(Collection<Long> keys, int delay) throws IOException {
+        List<WorkLogUnit> result = new ArrayList<>();
         try {
             try (Connection conn = getConnection()) {
                 try (PreparedStatement statement = conn.prepareStatement("SELECT key,pid,happened,method,param " +
-                                                                         "FROM updateTrackerLogs " +
+                                                                         "FROM " + getEvents(conn) + " " +
+                                                                         "WHERE key = ANY(?) " +
+                                                                         "AND happened < now() - ? * interval '1 millisecond' " +
+                                                                         "AND " + NOT_FAILED + " " +
+                                                                         "ORDER BY key ASC")) {
+                    statement.setArray(1, conn.createArrayOf("int8", keys.toArray()));
+                    statement.setInt(2, delay);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            result.add(readEvent(resultSet));
+                        }
+                    }
+                    return result;
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Open a cursor over the worklog events, starting after the lastRegisteredKey. The rows are transferred from the
+     * database fetchSize at a time, as the cursor is read, so the events can be worked on while the rest are
+     * transferred, without holding them all in memory. The cursor holds a connection until it is closed.
+     * @param lastRegisteredKey the highest key not to include
+     * @param limit the max amount of worklog units to read through the cursor
+     * @param delay delay (in milliseconds) before a task is eligible for working on
+     * @param fetchSize the number of rows to transfer at a time
+     * @return the open cursor
+     * @throws IOException on any database communication problems
+     */
+    public WorkLogCursor openFedoraEvents(Long lastRegisteredKey, int limit, int delay, int fetchSize)
+            throws IOException {
+        Connection conn = getConnection();
+        try {
+            return new WorkLogCursor(conn, getEventsQuery(conn), lastRegisteredKey, limit, delay, fetchSize);
+        } catch (SQLException e) {
+            try {
+                conn.close();
+            } catch (SQLException e2) {
+                log.debug("Failed to close connection", e2);
+            }
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Count the events after the lastRegisteredKey, which are held back as they are not old enough to work on, or
+     * come after an event which is not. These are the events a poll would not return, even if unlimited.
+     * @param lastRegisteredKey the highest key not to include
+     * @param delay delay (in milliseconds) before a task is eligible for working on
+     * @return the number of events held back
+     * @throws IOException on any database communication problems
+     */
+    public long getHeldBackEvents(Long lastRegisteredKey, int delay) throws IOException {
+        try {
+            try (Connection conn = getConnection()) {
+                try (PreparedStatement statement = conn.prepareStatement(HELD_BACK_QUERY)) {
+                    statement.setLong(1, lastRegisteredKey);
+                    statement.setLong(2, lastRegisteredKey);
+                    statement.setInt(3, delay);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        resultSet.next();
+                        return resultSet.getLong("heldback");
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Get the highest key in the worklog
+     * @return the highest key, or 0 if the worklog is empty
+     * @throws IOException on any database communication problems
+     */
+    public long getMaxKey() throws IOException {
+        try {
+            try (Connection conn = getConnection()) {
+                try (PreparedStatement statement = conn.prepareStatement("SELECT max(key) AS maxkey " +
+                                                                         "FROM " + getStates(conn) + " " +
+                                                                         "WHERE " + NOT_FAILED)) {
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        resultSet.next();
+                        return resultSet.getLong("maxkey");
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Get the timestamp of the next event after the lastRegisteredKey, which is the oldest event not handled
+     * @param lastRegisteredKey the highest key not to include
+     * @return the timestamp, or null if there are no events after the key
+     * @throws IOException on any database communication problems
+     */
+    public Date getNextHappened(long lastRegisteredKey) throws IOException {
+        try {
+            try (Connection conn = getConnection()) {
+                try (PreparedStatement statement = conn.prepareStatement("SELECT happened " +
+                                                                         "FROM " + getStates(conn) + " " +
                                                                          "WHERE key > ? " +
+                                                                         "AND " + NOT_FAILED + " " +
                                                                          "ORDER BY key ASC " +
+                                                                         "LIMIT 1")) {
+                    statement.setLong(1, lastRegisteredKey);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        if (!resultSet.next()) {
+                            return null;
+                        }
+                        return new Date(resultSet.getTimestamp("happened", tzUTC).getTime());
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Delete the oldest events up to and including a key from the worklog, optionally moving them to an archive table
+     * @param toKey the highest key to delete
+     * @param minAge the age (in milliseconds) of the youngest events to delete, by the clock of the database
+     * @param limit the max number of events to delete
+     * @param archiveTable if not null, the deleted events are inserted in this table, in the same transaction, with
+     *                     their state. It must have the columns of the original updateTrackerLogs, as the method and
+     *                     param of the compact version are decoded when archived.
+     * @return the number of events deleted
+     * @throws IOException on any database communication problems
+     */
+    public int pruneEvents(long toKey, int minAge, int limit, String archiveTable) throws IOException {
+        String delete = "DELETE FROM updateTrackerLogs " +
+                        "WHERE key IN (SELECT key FROM updateTrackerLogs " +
+                        "WHERE key <= ? AND happened < now() - ? * interval '1 millisecond' " +
+                        "ORDER BY key ASC LIMIT ?)";
+        try {
+            try (Connection conn = getConnection()) {
+                if (archiveTable != null) {
+                    delete = getArchiveStatement(conn, delete, archiveTable);
+                }
+                try (PreparedStatement statement = conn.prepareStatement(delete)) {
+                    statement.setLong(1, toKey);
+                    statement.setInt(2, minAge);
+                    statement.setInt(3, limit);
+                    return statement.executeUpdate();
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Wrap the delete of pruneEvents in a statement that inserts the deleted events in the archive table
+     * @param conn the connection, to look up the version of the worklog
+     * @param delete the delete statement
+     * @param archiveTable the archive table
+     * @return the statement
+     * @throws SQLException
+     */
+    private String getArchiveStatement(Connection conn, String delete, String archiveTable) throws SQLException {
+        if (isCompact(conn)) {
+            return "WITH pruned AS (" + delete + " RETURNING key,pid,happened,method,param,state) " +
+                   "INSERT INTO " + archiveTable + " (key,pid,happened,method,param,state) " +
+                   "SELECT pruned.key, pruned.pid, pruned.happened, m.name, p.param, pruned.state " +
+                   "FROM pruned " +
+                   "JOIN updateTrackerMethods m ON m.code = pruned.method " +
+                   "LEFT JOIN updateTrackerParams p ON p.code = pruned.param";
+        }
+        String columns = hasStateColumn(conn) ? "key,pid,happened,method,param,state" : "key,pid,happened,method,param";
+        return "WITH pruned AS (" + delete + " RETURNING " + columns + ") " +
+               "INSERT INTO " + archiveTable + " (" + columns + ") " +
+               "SELECT " + columns + " FROM pruned";
+    }
+
+    /**
+     * Get the changed objects after the lastRegisteredKey from the updateTrackerDirtyPids summary, as the events that
+     * bring each object up to date. The objects are limited like the events of getFedoraEvents.
+     * @param lastRegisteredKey the highest key not to include
+     * @param limit the max amount of objects to retrieve
+     * @param delay delay (in milliseconds) before an object is eligible for working on
+     * @return the events for the objects, in key order
+     * @throws IOException on any database communication problems
+     * @see WorkLogDirtySummary
+     */
+    public List<WorkLogUnit> getDirtyObjects(Long lastRegisteredKey, int limit, int delay) throws IOException {
+        try {
+            try (Connection conn = getConnection()) {
+                try (PreparedStatement statement = conn.prepareStatement(DIRTY_OBJECTS_QUERY)) {
+                    setEventsQueryParameters(statement, lastRegisteredKey, limit, delay);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        return readDirtyObjects(resultSet);
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Get the changed objects at or below the lastRegisteredKey from the updateTrackerDirtyPids summary, as the events
+     * that bring each object up to date. These were committed after objects with higher keys, or were handled, but not
+     * deleted from the summary.
+     * @param lastRegisteredKey the highest key to include
+     * @param limit the max amount of objects to retrieve
+     * @param delay delay (in milliseconds) before an object is eligible for working on
+     * @return the events for the objects, in key order
+     * @throws IOException on any database communication problems
+     * @see WorkLogDirtySummary
+     */
+    public List<WorkLogUnit> getLateDirtyObjects(Long lastRegisteredKey, int limit, int delay) throws IOException {
+        try {
+            try (Connection conn = getConnection()) {
+                try (PreparedStatement statement = conn.prepareStatement("SELECT pid,lastKey,lastHappened,classes " +
+                                                                         "FROM updateTrackerDirtyPids " +
+                                                                         "WHERE lastKey <= ? " +
+                                                                         "AND lastHappened < now() - ? * interval '1 millisecond' " +
+                                                                         "ORDER BY lastKey ASC " +
                                                                          "LIMIT ?")) {
                     statement.setLong(1, lastRegisteredKey);
-                    statement.setInt(2, limit);
-                    statement.execute();
-                    ResultSet resultSet = statement.getResultSet();
-                    while (resultSet.next()) {
-                        Long key = resultSet.getLong("key");
-                        String pid = Connector.toPid(resultSet.getString("pid"));
-                        String method = resultSet.getString("method");
-                        String param = resultSet.getString("param");
-                        Timestamp timestamp = resultSet.getTimestamp("happened", tzUTC);
-                        //As we cannot trust the results to come in order of timestamps, break when we find the first
-                        // which is not to old enough.
-                        if (timestamp.getTime()+delay >= System.currentTimeMillis()){
-                            break;
+                    statement.setInt(2, delay);
+                    statement.setInt(3, limit);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        return readDirtyObjects(resultSet);
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static List<WorkLogUnit> readDirtyObjects(ResultSet resultSet) throws SQLException {
+        List<WorkLogUnit> result = new ArrayList<>();
+        while (resultSet.next()) {
+            String pid = Connector.toPid(resultSet.getString("pid"));
+            Timestamp timestamp = resultSet.getTimestamp("lastHappened", tzUTC);
+            result.addAll(WorkLogDirtySummary.toEvents(resultSet.getLong("lastKey"), pid,
+                                                       new Date(timestamp.getTime()), resultSet.getInt("classes")));
+        }
+        return result;
+    }
+
+    /**
+     * Delete the objects of the handled events from the updateTrackerDirtyPids summary. The row of an object is kept,
+     * if it has a higher key than the event, as the object has changed again since.
+     * @param events the handled events
+     * @return the number of objects deleted
+     * @throws IOException on any database communication problems
+     */
+    public int deleteDirtyObjects(List<WorkLogUnit> events) throws IOException {
+        Map<String, Long> objects = new HashMap<>();
+        for (WorkLogUnit event : events) {
+            Long key = objects.get(event.getPid());
+            if (key == null || key < event.getKey()) {
+                objects.put(event.getPid(), event.getKey());
+            }
+        }
+        try {
+            try (Connection conn = getConnection()) {
+                try (PreparedStatement statement = conn.prepareStatement("DELETE FROM updateTrackerDirtyPids " +
+                                                                         "WHERE pid = ? AND lastKey <= ?")) {
+                    for (Map.Entry<String, Long> object : objects.entrySet()) {
+                        statement.setString(1, object.getKey());
+                        statement.setLong(2, object.getValue());
+                        statement.addBatch();
+                    }
+                    int deleted = 0;
+                    for (int count : statement.executeBatch()) {
+                        deleted += Math.max(count, 0);
+                    }
+                    return deleted;
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Set the parameters of the EVENTS_QUERY
+     * @param statement the prepared EVENTS_QUERY
+     * @param lastRegisteredKey the highest key not to include
+     * @param limit the max amount of worklog units to retrieve
+     * @param delay delay (in milliseconds) before a task is eligible for working on
+     * @throws SQLException on any database communication problems
+     */
+    static void setEventsQueryParameters(PreparedStatement statement, Long lastRegisteredKey, int limit, int delay)
+            throws SQLException {
+        statement.setLong(1, lastRegisteredKey);
+        statement.setLong(2, lastRegisteredKey);
+        statement.setInt(3, delay);
+        statement.setInt(4, limit);
+    }
+
+    /**
+     * Read the event from the current row of the result set
+     * @param resultSet the result set of the EVENTS_QUERY
+     * @return the event
+     * @throws SQLException on any database communication problems
+     */
+    static WorkLogUnit readEvent(ResultSet resultSet) throws SQLException {
+        Long key = resultSet.getLong("key");
+        String pid = Connector.toPid(resultSet.getString("pid"));
+        String method = resultSet.getString("method");
+        String param = resultSet.getString("param");
+        Timestamp timestamp = resultSet.getTimestamp("happened", tzUTC);
+        return new WorkLogUnit(key, method, new Date(timestamp.getTime()), pid, param);
+    }
+
+    /**
+     * Get the objects purged in the given range of keys, with the key of the last purge of each. Only purges old
+     * enough to work on, and not marked failed by the fedora hook, are included.
+     * @param lastRegisteredKey the highest key not to include
+     * @param toKey the highest key to include
+     * @param delay delay (in milliseconds) before a purge is eligible
+     * @return a map from the purged pids to the key of the last purge of the pid
+     * @throws IOException on any database communication problems
+     */
+    public Map<String, Long> getPurgedObjects(long lastRegisteredKey, long toKey, int delay) throws IOException {
+        Map<String, Long> result = new HashMap<>();
+        try {
+            try (Connection conn = getConnection()) {
+                try (PreparedStatement statement = conn.prepareStatement("SELECT pid, MAX(key) AS lastkey " +
+                                                                         "FROM " + getEvents(conn) + " " +
+                                                                         "WHERE key > ? AND key <= ? " +
+                                                                         "AND method = 'purgeObject' " +
+                                                                         "AND " + NOT_FAILED + " " +
+                                                                         "AND happened < now() - ? * interval '1 millisecond' " +
+                                                                         "GROUP BY pid")) {
+                    statement.setLong(1, lastRegisteredKey);
+                    statement.setLong(2, toKey);
+                    statement.setInt(3, delay);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            result.put(Connector.toPid(resultSet.getString("pid")), resultSet.getLong("lastkey"));
                         }
-                        result.add(new WorkLogUnit(key, method, new Date(timestamp.getTime()), pid, param));
                     }
                     return result;
                 }
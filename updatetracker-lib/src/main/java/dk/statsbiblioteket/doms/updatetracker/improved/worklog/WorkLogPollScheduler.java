@@ -0,0 +1,130 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.worklog;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the WorkLogPollTask with an adaptive period. The task itself keeps going while the pages come back full, so
+ * a backlog is worked off back to back. After a poll that found events, the next poll is scheduled after the period.
+ * After a poll that found nothing, the period is doubled, up to the max period, so an idle worklog is not hammered.
+ * A wake up resets the period, and brings the next poll forward.
+ *
+ * Each poll schedules the next, so polls never overlap.
+ */
+public class WorkLogPollScheduler implements Runnable, Closeable {
+
+    private static Logger log = LoggerFactory.getLogger(WorkLogPollScheduler.class);
+
+    /** The time to wait for a running poll to finish when closing */
+    private static final int SHUTDOWN_TIMEOUT = 60 * 1000;
+
+    private final ScheduledExecutorService executor;
+    private final WorkLogPollTask task;
+    private final int period;
+    private final int maxPeriod;
+    private final int wakeUpDelay;
+
+    private int currentPeriod;
+    private ScheduledFuture<?> next;
+    private boolean wokenUp = false;
+    private boolean closed = false;
+
+    /**
+     * @param executor the executor to run the polls in. Should be single threaded. It is shut down when this
+     *                 scheduler is closed.
+     * @param task the poll task
+     * @param period the period in milliseconds between polls, when the last poll found events
+     * @param maxPeriod the max period in milliseconds between polls, when the worklog is idle
+     * @param wakeUpDelay the delay in milliseconds from a wake up to the poll. Should be the minimum age of events
+     */
+    public WorkLogPollScheduler(ScheduledExecutorService executor, WorkLogPollTask task, int period, int maxPeriod,
+                                int wakeUpDelay) {
+        this.executor = executor;
+        this.task = task;
+        this.period = period;
+        this.maxPeriod = Math.max(period, maxPeriod);
+        this.wakeUpDelay = wakeUpDelay;
+        this.currentPeriod = period;
+    }
+
+    /**
+     * Schedule the first poll
+     * @param initialDelay the delay in milliseconds before the first poll
+     */
+    public synchronized void start(int initialDelay) {
+        next = executor.schedule(this, initialDelay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run a poll, and schedule the next one.
+     */
+    @Override
+    public void run() {
+        int fetched = 0;
+        try {
+            fetched = task.poll();
+        } finally {
+            scheduleNext(fetched > 0);
+        }
+    }
+
+    private synchronized void scheduleNext(boolean foundEvents) {
+        if (closed) {
+            return;
+        }
+        if (foundEvents || wokenUp) {
+            currentPeriod = period;
+        } else {
+            currentPeriod = Math.min(currentPeriod * 2, maxPeriod);
+        }
+        long delay = wokenUp ? Math.min(wakeUpDelay, currentPeriod) : currentPeriod;
+        wokenUp = false;
+        log.debug("Next worklog poll in {} ms", delay);
+        next = executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Poll the worklog outside the regular schedule, when the events have become old enough to be worked on.
+     * Wake ups arriving while one is pending are folded into that one.
+     */
+    public synchronized void wakeUp() {
+        if (closed) {
+            return;
+        }
+        currentPeriod = period;
+        if (next != null && next.getDelay(TimeUnit.MILLISECONDS) > wakeUpDelay && next.cancel(false)) {
+            next = executor.schedule(this, wakeUpDelay, TimeUnit.MILLISECONDS);
+        } else {
+            //The next poll is imminent or running, and might not see the new events. Make sure the one after is soon
+            wokenUp = true;
+        }
+    }
+
+    /**
+     * Stop polling. A running poll finishes the page it is working on, and is waited for.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            if (next != null) {
+                next.cancel(false);
+            }
+        }
+        task.stop();
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                log.warn("The worklog poll did not finish within {} ms", SHUTDOWN_TIMEOUT);
+            }
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while waiting for the worklog poll to finish", e);
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -8,132 +8,587 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
-import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
 
 /**
- * This timertasks regularly polls the fedora worklog and calls the update tracker with the unit of work
+ * This task polls the fedora worklog and calls the update tracker with the unit of work. It is run regularly by the
+ * WorkLogPollScheduler.
+ * When a page of events comes back full, the next page is fetched in the background while the current page is
+ * handled, and the task keeps going until the worklog is drained. At most one page is fetched ahead.
+ * If streamLimit is positive, the pages are read from a single streaming cursor over the next streamLimit events,
+ * instead of a query per page.
+ *
+ * If a compactor is given, events for objects purged later are skipped. If a coalescer is given, redundant events
+ * for the same object are merged within each page.
+ * The events are handed to the update tracker in batches of batchSize events, each batch in a single transaction.
+ *
+ * If lanes are given, the date changes in a page are handled concurrently, with the events for each object kept in
+ * order, and the structural events handled alone.
+ * The latest key is then registered once per page, as the highest key below which all events have been handled.
+ *
+ * If a gap tracker is given, the keys missing from the pages are looked for again in the following polls, and the
+ * events found there are handled out of order, as they were committed after events with higher keys.
+ *
+ * If a summary is given, the changed objects are read from the summary kept by the fedora hook instead of the events
+ * from the worklog, and each page holds the events that bring the objects up to date. The pages are then queried
+ * separately, and the summary rows of the handled objects are deleted after each page. The coalescer, compactor and
+ * gap tracker should not be given with a summary.
+ *
+ * If a fedora prefetcher is given, the objects of each page are fetched from fedora concurrently when the page has
+ * been fetched, compacted and coalesced, so the fedora caches are warm for the events that are handled. With the page
+ * prefetcher, this happens while the previous page is handled.
+ *
+ * If a quarantine is given, failing events are retried, and set aside if they keep failing, instead of stopping the
+ * task at the first failing event.
+ *
+ * After each poll that found events, and at least every HELD_BACK_COUNT_INTERVAL ms otherwise, the events held back as
+ * they are too young to work on are counted, to tell a backlog from the delay. This and the page fetch times are
+ * recorded in the metrics.
+ * @see WorkLogLanes
+ * @see WorkLogMetrics
+ * @see WorkLogQuarantine
+ * @see WorkLogGapTracker
+ * @see WorkLogDirtySummary
+ * @see WorkLogFedoraPrefetcher
  */
-public class WorkLogPollTask extends TimerTask {
+public class WorkLogPollTask implements Runnable {
 
     private static Logger log = LoggerFactory.getLogger(WorkLogPollTask.class);
 
+    /** The interval (in milliseconds) between counts of the held back events, when the polls find nothing */
+    static final long HELD_BACK_COUNT_INTERVAL = 60000;
+
     private final WorkLogPollDAO workLogPollDAO;
     private final UpdateTrackerPersistentStore updateTrackerPersistentStore;
     private final int limit;
     private final int delay;
+    private final int batchSize;
+    private final int streamLimit;
+    private final ExecutorService prefetcher;
+    private final WorkLogLanes lanes;
+    private final WorkLogCoalescer coalescer;
+    private final WorkLogPurgeCompactor compactor;
+    private final WorkLogMetrics metrics;
+    private final WorkLogQuarantine quarantine;
+    private final WorkLogGapTracker gapTracker;
+    private final WorkLogDirtySummary summary;
+    private final WorkLogFedoraPrefetcher fedoraPrefetcher;
+    private volatile boolean stopped = false;
+    private long lastHeldBackCount = 0;
 
     /**
+     * Create a poll task that fetches the pages in the polling thread.
      * @param workLogPollDAO
      * @param updateTrackerPersistentStore
-     * @param limit                        the amount of work units to retrieve in each invocation
-     * @param delay                        the age (in seconds) of tasks before they are eligible for working on.
+     * @param limit                        the amount of work units to retrieve in each page
+     * @param delay                        the age (in milliseconds) of tasks before they are eligible for working on.
      */
     public WorkLogPollTask(WorkLogPollDAO workLogPollDAO, UpdateTrackerPersistentStore updateTrackerPersistentStore,
                            int limit, int delay) {
+        this(workLogPollDAO, updateTrackerPersistentStore, limit, delay, limit, 0, null, null, null, null,
+             new WorkLogMetrics(), null, null);
+    }
+
+    /**
+     * Create a poll task that reads the events from the worklog
+     * @see #WorkLogPollTask(WorkLogPollDAO, UpdateTrackerPersistentStore, int, int, int, int, ExecutorService,
+     * WorkLogLanes, WorkLogCoalescer, WorkLogPurgeCompactor, WorkLogMetrics, WorkLogQuarantine, WorkLogGapTracker,
+     * WorkLogDirtySummary, WorkLogFedoraPrefetcher)
+     */
+    public WorkLogPollTask(WorkLogPollDAO workLogPollDAO, UpdateTrackerPersistentStore updateTrackerPersistentStore,
+                           int limit, int delay, int batchSize, int streamLimit, ExecutorService prefetcher,
+                           WorkLogLanes lanes,
+                           WorkLogCoalescer coalescer, WorkLogPurgeCompactor compactor, WorkLogMetrics metrics,
+                           WorkLogQuarantine quarantine, WorkLogGapTracker gapTracker) {
+        this(workLogPollDAO, updateTrackerPersistentStore, limit, delay, batchSize, streamLimit, prefetcher, lanes,
+             coalescer, compactor, metrics, quarantine, gapTracker, null, null);
+    }
+
+    /**
+     * @param workLogPollDAO
+     * @param updateTrackerPersistentStore
+     * @param limit                        the amount of work units (objects, with a summary) to retrieve in each page
+     * @param delay                        the age (in milliseconds) of tasks before they are eligible for working on.
+     * @param batchSize                    the max number of events to register in a single transaction
+     * @param streamLimit                  the max number of events to read through one streaming cursor. If 0, each
+     *                                     page is fetched with a separate query.
+     * @param prefetcher                   the executor used to fetch the next page while the current page is handled.
+     *                                     If null, the pages are fetched in the polling thread.
+     * @param lanes                        the lanes used to handle the events in a page concurrently. If null, the
+     *                                     events are handled in order in the polling thread.
+     * @param coalescer                    merges redundant events in each page. If null, all events are handled.
+     * @param compactor                    skips the events for objects purged later. If null, all events are handled.
+     * @param metrics                      the metrics to record the polls in
+     * @param quarantine                   retries and quarantines failing events. If null, the task stops at the
+     *                                     first failing event, and tries it again in the next poll.
+     * @param gapTracker                   remembers the keys missing from the pages. If null, an event committed
+     *                                     after an event with a higher key is skipped.
+     * @param summary                      the summary of changed objects to read instead of the worklog. If null, the
+     *                                     events are read from the worklog.
+     * @param fedoraPrefetcher             warms the fedora caches for each page. If null, the objects are fetched
+     *                                     from fedora one at a time as the events are handled.
+     */
+    public WorkLogPollTask(WorkLogPollDAO workLogPollDAO, UpdateTrackerPersistentStore updateTrackerPersistentStore,
+                           int limit, int delay, int batchSize, int streamLimit, ExecutorService prefetcher,
+                           WorkLogLanes lanes,
+                           WorkLogCoalescer coalescer, WorkLogPurgeCompactor compactor, WorkLogMetrics metrics,
+                           WorkLogQuarantine quarantine, WorkLogGapTracker gapTracker, WorkLogDirtySummary summary,
+                           WorkLogFedoraPrefetcher fedoraPrefetcher) {
         this.workLogPollDAO = workLogPollDAO;
         this.updateTrackerPersistentStore = updateTrackerPersistentStore;
         this.limit = limit;
         this.delay = delay;
+        this.batchSize = batchSize;
+        this.streamLimit = streamLimit;
+        this.prefetcher = prefetcher;
+        this.lanes = lanes;
+        this.coalescer = coalescer;
+        this.compactor = compactor;
+        this.metrics = metrics;
+        this.quarantine = quarantine;
+        this.gapTracker = gapTracker;
+        this.summary = summary;
+        this.fedoraPrefetcher = fedoraPrefetcher;
     }
 
     @Override
     public void run() {
+        poll();
+    }
 
+    /**
+     * Poll the worklog and handle the events, until the worklog is drained, an event fails or the task is stopped.
+     * @return the number of events fetched from the worklog
+     */
+    public int poll() {
+        int fetched = 0;
         try {
             log.debug("Starting worklog polling");
             Long latestKey = updateTrackerPersistentStore.getLatestKey();
             log.debug("Found {} as latest worklog key",latestKey);
-            List<WorkLogUnit> events = getEvents(latestKey);
-
-            for (WorkLogUnit event : events) {
-                try {
-                    handleEvent(event);
-                } catch(UpdateTrackerStorageException e){
-                    log.error("Failed to store events in update tracker. Failed on '" + event + "'", e);
-                    break; //If we fail, break the loop, as we DO NOT WANT to miss an event
-                } catch(FedoraFailedException e){
-                    log.error("Failed to communicate with fedora. Failed on '" + event + "'", e);
-                    break; //If we fail, break the loop, as we DO NOT WANT to miss an event
+            fetched += fillGaps();
+            fetched += handleLateObjects(latestKey);
+            try (WorkLogCursor cursor = openCursor(latestKey)) {
+                Page page = getEvents(latestKey, cursor);
+
+                while (!page.events.isEmpty()) {
+                    List<WorkLogUnit> events = page.events;
+                    fetched += events.size();
+                    if (gapTracker != null) {
+                        gapTracker.pageFetched(latestKey, events);
+                    }
+                    //A full page means that there is probably more waiting, so fetch the next page while we work
+                    FutureTask<Page> nextPage = null;
+                    long lastKey = events.get(events.size() - 1).getKey();
+                    if (events.size() >= limit) {
+                        nextPage = prefetchEvents(lastKey, cursor);
+                    }
+                    List<WorkLogUnit> work = page.work;
+                    boolean completed;
+                    if (lanes == null) {
+                        completed = handleEvents(work);
+                    } else {
+                        completed = handleEventsInLanes(work, latestKey);
+                    }
+                    if (completed) {
+                        completed = registerEndOfPage(work, lastKey);
+                    }
+                    if (completed && summary != null) {
+                        summary.consumed(events);
+                    }
+                    if (completed) {
+                        latestKey = lastKey;
+                    }
+                    log.info("Finished working on event list");
+                    if (nextPage == null) {
+                        break;
+                    }
+                    if (!completed || stopped) {
+                        //The next page starts after an event we failed on, or we are shutting down, so throw it away
+                        nextPage.cancel(false);
+                        break;
+                    }
+                    page = getPrefetchedEvents(nextPage);
                 }
             }
-            if (!events.isEmpty()) {
-                log.info("Finished working on event list");
+            //Counting is a scan of the young end of the worklog, so it is not worth doing for each idle poll
+            if (fetched > 0 || System.currentTimeMillis() - lastHeldBackCount >= HELD_BACK_COUNT_INTERVAL) {
+                countHeldBackEvents(latestKey);
             }
         } catch (Exception e){
             //Fault barrier to avoid that this method bombs out
-            //If this method bombs out, the timer is stopped, and will not start until the webservice is reloaded
+            //If this method bombs out, the polling is stopped, and will not start until the webservice is reloaded
             // So, we catch and log all exceptions, including runtime exceptions. Throwable and Errors will take the thing down hard, as they should
             log.error("Failed to poll for worklog tasks",e);
             //Log this and keep going. Only Errors get through now
         }
+        return fetched;
+    }
+
+    /**
+     * Stop working after the current page. Used when shutting down.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * @return the number of events held back at the last count, as they were too young to work on, or came after an
+     * event that was
+     */
+    public long getHeldBackEvents() {
+        return metrics.getHeldBackEvents();
+    }
+
+    /**
+     * Count the events held back, as they are too young to work on
+     * @param lastRegisteredKey the highest key not to include
+     */
+    private void countHeldBackEvents(Long lastRegisteredKey) {
+        lastHeldBackCount = System.currentTimeMillis();
+        try {
+            long heldBackEvents = workLogPollDAO.getHeldBackEvents(lastRegisteredKey, delay);
+            metrics.setHeldBackEvents(heldBackEvents);
+            if (heldBackEvents > 0) {
+                log.info("Holding back '{}' events younger than {} ms", heldBackEvents, delay);
+            }
+        } catch (IOException e) {
+            log.warn("Failed to count the held back Fedora events.", e);
+        }
     }
 
 
+    /**
+     * Look for the events in the gaps of the earlier pages, and handle those found, along with the events found
+     * earlier that failed, when they are due to be tried again. The latest key is not changed, as it has already moved
+     * past them. An event that fails is stored in quarantine, so it is not lost if we are stopped.
+     * @return the number of events found in the gaps, or tried again
+     */
+    private int fillGaps() {
+        if (gapTracker == null) {
+            return 0;
+        }
+        List<WorkLogUnit> events = gapTracker.getFailedEvents();
+        List<WorkLogUnit> quarantined = gapTracker.getQuarantinedEvents();
+        List<Long> gaps = gapTracker.getOpenGaps();
+        if (!gaps.isEmpty()) {
+            try {
+                events.addAll(workLogPollDAO.getFedoraEvents(gaps, delay));
+            } catch (IOException e) {
+                log.error("Failed to look for Fedora events in '" + gaps.size() + "' gaps.", e);
+            }
+        }
+        if (events.isEmpty() && quarantined.isEmpty()) {
+            return 0;
+        }
+        List<Long> filled = new ArrayList<>();
+        for (WorkLogUnit event : events) {
+            log.info("Found event '{}', committed after events with higher keys", event);
+            try {
+                if (quarantine == null) {
+                    updateTrackerPersistentStore.eventHappened(event, UpdateTrackerPersistentStore.KEY_UNCHANGED);
+                } else {
+                    quarantine.handle(event, UpdateTrackerPersistentStore.KEY_UNCHANGED);
+                }
+                filled.add(event.getKey());
+            } catch (UpdateTrackerStorageException | FedoraFailedException e) {
+                gapEventFailed(event, e);
+            }
+        }
+        for (WorkLogUnit event : quarantined) {
+            try {
+                //False if it was replayed from the quarantine in the meantime
+                updateTrackerPersistentStore.quarantinedEventReplayed(event.getKey());
+                filled.add(event.getKey());
+            } catch (UpdateTrackerStorageException e) {
+                log.warn("Quarantined event '" + event + "' found in a gap failed again. Trying again later", e);
+                gapTracker.failed(event, true);
+            }
+        }
+        gapTracker.filled(filled);
+        return events.size() + quarantined.size();
+    }
 
-    private List<WorkLogUnit> getEvents(Long lastRegisteredKey) {
+    /**
+     * Store an event found in a gap, that failed, in quarantine, and have the gap tracker try it again later. If it
+     * cannot be stored, the gap tracker keeps it until it fails again.
+     * @param event the event
+     * @param cause the failure
+     */
+    private void gapEventFailed(WorkLogUnit event, Exception cause) {
+        try {
+            updateTrackerPersistentStore.eventQuarantined(event, 1, cause, UpdateTrackerPersistentStore.KEY_UNCHANGED);
+            log.error("Failed to handle event '" + event + "' found in a gap. Quarantined it, and trying again later",
+                      cause);
+            gapTracker.failed(event, true);
+        } catch (UpdateTrackerStorageException e) {
+            log.error("Failed to handle event '" + event + "' found in a gap, and failed to quarantine it. " +
+                      "Trying again later", cause);
+            log.error("Failed to quarantine event '" + event + "'", e);
+            gapTracker.failed(event, false);
+        }
+    }
+
+    /**
+     * Look for the objects in the summary at or below the latest key, and handle those found. The latest key is not
+     * changed, as it has already moved past them.
+     * @param lastRegisteredKey the latest key
+     * @return the number of events handled for the objects
+     */
+    private int handleLateObjects(long lastRegisteredKey) {
+        if (summary == null) {
+            return 0;
+        }
+        List<WorkLogUnit> events;
+        try {
+            events = summary.getLateEvents(lastRegisteredKey, limit, delay);
+        } catch (IOException e) {
+            log.error("Failed to look for objects committed to the summary after objects with higher keys.", e);
+            return 0;
+        }
+        List<WorkLogUnit> handled = new ArrayList<>();
+        for (WorkLogUnit event : events) {
+            log.info("Found event '{}' in the summary, committed after objects with higher keys", event);
+            try {
+                if (quarantine == null) {
+                    updateTrackerPersistentStore.eventHappened(event, UpdateTrackerPersistentStore.KEY_UNCHANGED);
+                } else {
+                    quarantine.handle(event, UpdateTrackerPersistentStore.KEY_UNCHANGED);
+                }
+                handled.add(event);
+            } catch (UpdateTrackerStorageException | FedoraFailedException e) {
+                log.error("Failed to handle event '" + event + "' found in the summary. Trying again in the next poll",
+                          e);
+                //Keep the object in the summary, even if some of its events were handled
+                for (Iterator<WorkLogUnit> iterator = handled.iterator(); iterator.hasNext(); ) {
+                    if (iterator.next().getPid().equals(event.getPid())) {
+                        iterator.remove();
+                    }
+                }
+                break;
+            }
+        }
+        summary.consumed(handled);
+        return events.size();
+    }
+
+    /**
+     * Handle the events in order, in batches of batchSize events.
+     * @param events the events to handle
+     * @return true if all the events were handled, false if we stopped at a failed event
+     */
+    private boolean handleEvents(List<WorkLogUnit> events) {
+        for (int i = 0; i < events.size(); i += batchSize) {
+            List<WorkLogUnit> batch = events.subList(i, Math.min(i + batchSize, events.size()));
+            try {
+                updateTrackerPersistentStore.eventsHappened(batch);
+            } catch(UpdateTrackerStorageException e){
+                log.error("Failed to store events in update tracker. Failed in batch from '" + batch.get(0) + "'", e);
+                if (!handleFailedBatch(batch)) {
+                    return false; //If we fail, break the loop, as we DO NOT WANT to miss an event
+                }
+            } catch(FedoraFailedException e){
+                log.error("Failed to communicate with fedora. Failed in batch from '" + batch.get(0) + "'", e);
+                if (!handleFailedBatch(batch)) {
+                    return false; //If we fail, break the loop, as we DO NOT WANT to miss an event
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Handle the rest of a failed batch through the quarantine, one event at a time. The events before the failing
+     * event have already been registered.
+     * @param batch the failed batch
+     * @return true if the rest of the events were handled or quarantined, false if we stopped at a failed event
+     */
+    private boolean handleFailedBatch(List<WorkLogUnit> batch) {
+        if (quarantine == null) {
+            return false;
+        }
+        long latestKey = updateTrackerPersistentStore.getLatestKey();
+        for (WorkLogUnit event : batch) {
+            if (event.getKey() <= latestKey) {
+                continue;
+            }
+            try {
+                quarantine.handle(event, event.getKey());
+            } catch (UpdateTrackerStorageException | FedoraFailedException e) {
+                log.error("Failed to handle event '" + event + "'", e);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Handle the events concurrently in the lanes, and register the latest key afterwards.
+     * @param events the events to handle
+     * @param lastRegisteredKey the latest key registered before these events
+     * @return true if all the events were handled, false if one or more failed
+     * @throws InterruptedException if interrupted while waiting for the lanes
+     */
+    private boolean handleEventsInLanes(List<WorkLogUnit> events, long lastRegisteredKey)
+            throws InterruptedException {
+        if (events.isEmpty()) {
+            return true;
+        }
+        long watermark = lanes.handle(events, lastRegisteredKey, new WorkLogLanes.EventHandler() {
+            @Override
+            public void handle(WorkLogUnit event) throws UpdateTrackerStorageException, FedoraFailedException {
+                if (quarantine == null) {
+                    updateTrackerPersistentStore.eventHappened(event, UpdateTrackerPersistentStore.KEY_UNCHANGED);
+                } else {
+                    quarantine.handle(event, UpdateTrackerPersistentStore.KEY_UNCHANGED);
+                }
+            }
+        });
+        if (watermark != lastRegisteredKey) {
+            try {
+                updateTrackerPersistentStore.setLatestKey(watermark);
+            } catch (UpdateTrackerStorageException e) {
+                log.error("Failed to register '" + watermark + "' as the latest key", e);
+                return false;
+            }
+        }
+        return watermark == events.get(events.size() - 1).getKey();
+    }
+
+    /**
+     * The store registers the key of the last event it handles. If the last events of the page were skipped, the
+     * key of the last event in the page must be registered here, or the next poll would fetch the page again.
+     * @param work the events that were handled
+     * @param lastKey the key of the last event in the page
+     * @return true if the last key of the page is now registered
+     */
+    private boolean registerEndOfPage(List<WorkLogUnit> work, long lastKey) {
+        if (!work.isEmpty() && work.get(work.size() - 1).getKey() == lastKey) {
+            return true;
+        }
+        try {
+            updateTrackerPersistentStore.setLatestKey(lastKey);
+            return true;
+        } catch (UpdateTrackerStorageException e) {
+            log.error("Failed to register '" + lastKey + "' as the latest key", e);
+            return false;
+        }
+    }
+
+    /**
+     * Start fetching the page of events after the given key. If we have no prefetcher, the page will be fetched
+     * when it is needed
+     * @param lastRegisteredKey the highest key not to include
+     * @param cursor the cursor to read the page from, or null to query for the page
+     * @return the page being fetched
+     */
+    private FutureTask<Page> prefetchEvents(final Long lastRegisteredKey, final WorkLogCursor cursor) {
+        FutureTask<Page> page = new FutureTask<>(new Callable<Page>() {
+            @Override
+            public Page call() throws Exception {
+                return getEvents(lastRegisteredKey, cursor);
+            }
+        });
+        if (prefetcher != null) {
+            prefetcher.execute(page);
+        }
+        return page;
+    }
+
+    /**
+     * Get the page of events started by prefetchEvents. If the prefetcher have not started on the page yet, it is
+     * fetched in this thread instead.
+     * @param page the page being fetched
+     * @return the page, which is empty if the fetch failed
+     * @throws InterruptedException if interrupted while waiting for the page
+     */
+    private Page getPrefetchedEvents(FutureTask<Page> page) throws InterruptedException {
+        page.run(); //Does nothing if the prefetcher have already started on the page
+        try {
+            return page.get();
+        } catch (ExecutionException e) {
+            log.error("Failed to prefetch Fedora events.", e.getCause());
+            return new Page(new ArrayList<WorkLogUnit>());
+        }
+    }
+
+    /**
+     * Open the streaming cursor, if we stream
+     * @param lastRegisteredKey the highest key not to include
+     * @return the cursor, or null if each page is queried separately
+     * @throws IOException if the cursor could not be opened
+     */
+    private WorkLogCursor openCursor(Long lastRegisteredKey) throws IOException {
+        if (streamLimit <= 0 || summary != null) {
+            return null;
+        }
+        log.debug("Opening cursor for {} events since '{}'", streamLimit, lastRegisteredKey);
+        return workLogPollDAO.openFedoraEvents(lastRegisteredKey, streamLimit, delay, limit);
+    }
+
+    /**
+     * Fetch the page of events after the given key, compact and coalesce it, and warm the fedora caches for the events
+     * left to handle
+     * @param lastRegisteredKey the highest key not to include
+     * @param cursor the cursor to read the page from, or null to query for the page
+     * @return the page, which is empty if the fetch failed
+     */
+    private Page getEvents(Long lastRegisteredKey, WorkLogCursor cursor) {
         List<WorkLogUnit> events = new ArrayList<>();
         try {
-            log.debug("Starting query for events since '{}'", lastRegisteredKey);
-            events = workLogPollDAO.getFedoraEvents(lastRegisteredKey, limit, delay);
+            long start = System.nanoTime();
+            if (summary != null) {
+                log.debug("Starting query for changed objects since '{}'", lastRegisteredKey);
+                events = summary.getEvents(lastRegisteredKey, limit, delay);
+            } else if (cursor == null) {
+                log.debug("Starting query for events since '{}'", lastRegisteredKey);
+                events = workLogPollDAO.getFedoraEvents(lastRegisteredKey, limit, delay);
+            } else {
+                events = cursor.next(limit);
+            }
+            metrics.pageFetched(events, System.nanoTime() - start);
             log.info("Looking for events since '{}'. Found '{}", lastRegisteredKey, events.size());
         } catch (IOException e) {
             log.error("Failed to get Fedora events.", e);
+            return new Page(events);
+        }
+        Page page = new Page(events);
+        if (events.isEmpty()) {
+            return page;
+        }
+        long lastKey = events.get(events.size() - 1).getKey();
+        if (compactor != null) {
+            page.work = compactor.compact(page.work, lastKey);
+        }
+        if (coalescer != null) {
+            page.work = coalescer.coalesce(page.work);
         }
-        return events;
+        if (fedoraPrefetcher != null) {
+            try {
+                fedoraPrefetcher.warm(page.work);
+            } catch (InterruptedException e) {
+                log.debug("Interrupted while prefetching the objects of the events from fedora", e);
+                Thread.currentThread().interrupt();
+            }
+        }
+        return page;
     }
 
-    private void handleEvent(WorkLogUnit event) throws UpdateTrackerStorageException, FedoraFailedException {
-        long key = event.getKey();
-        final String pid = event.getPid();
-        final Date date = event.getDate();
-        final String param = event.getParam();
-        final String method = event.getMethod();
-        log.debug("Handling the event '{}'", event);
+    /**
+     * A page of events fetched from the worklog, and the events in it left to handle after compaction and coalescing
+     */
+    private static class Page {
+        private final List<WorkLogUnit> events;
+        private List<WorkLogUnit> work;
 
-        switch (method) {
-            case "ingest":
-                updateTrackerPersistentStore.objectCreated(pid, date, key);
-                break;
-            case "modifyObject":
-                updateTrackerPersistentStore.objectStateChanged(pid, date, param, key);
-                break;
-            case "purgeObject":
-                updateTrackerPersistentStore.objectDeleted(pid, date, key);
-                break;
-            case "addDatastream":
-            case "modifyDatastreamByReference":
-            case "modifyDatastreamByValue":
-            case "purgeDatastream":
-                updateTrackerPersistentStore.datastreamChanged(pid, date, param, key);
-                break;
-            case "setDatastreamState":
-            case "setDatastreamVersionable":
-                //Forget the datastream name, because VIEW and RELS-EXT should not trigger recalculation.
-                updateTrackerPersistentStore.datastreamChanged(pid, date, null, key);
-                break;
-            case "addRelationship":
-            case "purgeRelationship":
-                updateTrackerPersistentStore.objectRelationsChanged(pid, date, key);
-                break;
-            case "getObjectXML":
-            case "export":
-            case "getDatastream":
-            case "getDatastreams":
-            case "getDatastreamHistory":
-            case "putTempStream":
-            case "getTempStream":
-            case "compareDatastreamChecksum":
-            case "getNextPID":
-            case "getRelationships":
-            case "validate": // Nothing to do
-                log.debug("Got nonchanging event '{}' from worklog", event);
-                break;
-            default:
-                log.warn("Got unknown event '{}' from worklog", event);
-                break;
+        private Page(List<WorkLogUnit> events) {
+            this.events = events;
+            this.work = events;
         }
-        log.debug("Handling of event {} done",event);
     }
 }
@@ -0,0 +1,97 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.worklog;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Skips the worklog events for objects that are purged later in the worklog. Only the purge itself is handled, so
+ * a backlog of events for objects that no longer exist does not cause a failing fedora call for each event.
+ * This is the poller's version of cleanMissingObjectsFromWorklog.sh.
+ *
+ * The purges are found in the page itself and, if the horizon is positive, in the horizon keys following the page.
+ * Events after the last purge of an object are kept, in case the pid is reused.
+ */
+public class WorkLogPurgeCompactor {
+
+    private static Logger log = LoggerFactory.getLogger(WorkLogPurgeCompactor.class);
+
+    private final WorkLogPollDAO workLogPollDAO;
+    private final int horizon;
+    private final int delay;
+
+    private final AtomicLong skippedEvents = new AtomicLong();
+
+    /**
+     * @param workLogPollDAO the worklog, used to look for purges beyond the page
+     * @param horizon the number of keys after the page to look for purges in. 0 to only look in the page
+     * @param delay the age (in milliseconds) of purges before they are trusted
+     */
+    public WorkLogPurgeCompactor(WorkLogPollDAO workLogPollDAO, int horizon, int delay) {
+        this.workLogPollDAO = workLogPollDAO;
+        this.horizon = horizon;
+        this.delay = delay;
+    }
+
+    /**
+     * Remove the events for objects purged later
+     * @param events the events, in key order
+     * @param lastKey the key of the last event in the page
+     * @return the events to handle, in key order
+     */
+    public List<WorkLogUnit> compact(List<WorkLogUnit> events, long lastKey) {
+        Map<String, Long> purges = getPurges(events, lastKey);
+        if (purges.isEmpty()) {
+            return events;
+        }
+        List<WorkLogUnit> result = new ArrayList<>(events.size());
+        for (WorkLogUnit event : events) {
+            Long purgeKey = purges.get(WorkLogCoalescer.getObjectPid(event.getPid()));
+            if (purgeKey != null && event.getKey() < purgeKey && !event.getMethod().equals("purgeObject")) {
+                log.debug("Skipping the event '{}', as the object is purged by the event with key {}", event,
+                          purgeKey);
+            } else {
+                result.add(event);
+            }
+        }
+        int skipped = events.size() - result.size();
+        if (skipped > 0) {
+            skippedEvents.addAndGet(skipped);
+            log.info("Skipped {} worklog events for {} purged objects", skipped, purges.size());
+        }
+        return result;
+    }
+
+    /**
+     * @return the total number of events skipped by this compactor
+     */
+    public long getSkippedEvents() {
+        return skippedEvents.get();
+    }
+
+    private Map<String, Long> getPurges(List<WorkLogUnit> events, long lastKey) {
+        Map<String, Long> purges = new HashMap<>();
+        if (horizon > 0) {
+            try {
+                purges.putAll(workLogPollDAO.getPurgedObjects(lastKey, lastKey + horizon, delay));
+            } catch (IOException e) {
+                log.warn("Failed to look for purges after key " + lastKey + ", only looking in the page", e);
+            }
+        }
+        for (WorkLogUnit event : events) {
+            if (event.getMethod().equals("purgeObject")) {
+                Long known = purges.get(event.getPid());
+                if (known == null || known < event.getKey()) {
+                    purges.put(event.getPid(), event.getKey());
+                }
+            }
+        }
+        return purges;
+    }
+}
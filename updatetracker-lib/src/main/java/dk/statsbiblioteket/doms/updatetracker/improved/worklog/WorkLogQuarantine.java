@@ -0,0 +1,178 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.worklog;
+
+import dk.statsbiblioteket.doms.updatetracker.improved.database.UpdateTrackerPersistentStore;
+import dk.statsbiblioteket.doms.updatetracker.improved.database.UpdateTrackerStorageException;
+import dk.statsbiblioteket.doms.updatetracker.improved.database.datastructures.QuarantinedEvent;
+import dk.statsbiblioteket.doms.updatetracker.improved.fedora.FedoraFailedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Retries failing worklog events, and sets them aside in quarantine if they keep failing, so a single bad object
+ * does not stall the update tracker.
+ *
+ * An event is tried up to maxAttempts times, with a backoff doubling from backoff to maxBackoff milliseconds
+ * between the attempts. If it still fails, it is stored in quarantine, and counted as handled, so the latest key
+ * moves past it.
+ *
+ * Before an event is quarantined, the update tracker database and Fedora are checked. If either does not answer, the
+ * failure is an outage, not caused by the event, so the event is not quarantined, but fails as before, and the update
+ * tracker stops and retries it on the next poll. As a backstop, if maxConsecutive events in a row end in quarantine,
+ * the events are not quarantined either, until an event succeeds.
+ *
+ * The quarantined events can be replayed later, when the cause is fixed.
+ */
+public class WorkLogQuarantine implements WorkLogQuarantineMXBean {
+
+    private static Logger log = LoggerFactory.getLogger(WorkLogQuarantine.class);
+
+    private final UpdateTrackerPersistentStore updateTrackerPersistentStore;
+    private final int maxAttempts;
+    private final int backoff;
+    private final int maxBackoff;
+    private final int maxConsecutive;
+
+    private final AtomicInteger consecutive = new AtomicInteger();
+    private final AtomicLong quarantinedCount = new AtomicLong();
+
+    /**
+     * @param updateTrackerPersistentStore the update tracker
+     * @param maxAttempts the number of times to try an event before it is quarantined
+     * @param backoff the delay in milliseconds before the first retry
+     * @param maxBackoff the max delay in milliseconds between retries
+     * @param maxConsecutive the number of events in a row to quarantine, before we decide that the failures are not
+     *                       caused by the events
+     */
+    public WorkLogQuarantine(UpdateTrackerPersistentStore updateTrackerPersistentStore, int maxAttempts, int backoff,
+                             int maxBackoff, int maxConsecutive) {
+        this.updateTrackerPersistentStore = updateTrackerPersistentStore;
+        this.maxAttempts = Math.max(maxAttempts, 1);
+        this.backoff = backoff;
+        this.maxBackoff = Math.max(backoff, maxBackoff);
+        this.maxConsecutive = maxConsecutive;
+    }
+
+    /**
+     * Handle the event, retrying it if it fails, and quarantining it if it keeps failing.
+     * @param event the event
+     * @param key the key to register as the latest key handled, or KEY_UNCHANGED
+     * @throws UpdateTrackerStorageException if the event failed, and was not quarantined
+     * @throws FedoraFailedException if the event failed, and was not quarantined
+     */
+    public void handle(WorkLogUnit event, long key) throws UpdateTrackerStorageException, FedoraFailedException {
+        long delay = backoff;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                updateTrackerPersistentStore.eventHappened(event, key);
+                consecutive.set(0);
+                return;
+            } catch (UpdateTrackerStorageException | FedoraFailedException e) {
+                if (attempt >= maxAttempts) {
+                    if (quarantine(event, attempt, e, key)) {
+                        return;
+                    }
+                    throw e;
+                }
+                log.warn("Failed to handle event '" + event + "' in attempt " + attempt + ", retrying in " + delay +
+                         " ms", e);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+                delay = Math.min(delay * 2, maxBackoff);
+            }
+        }
+    }
+
+    /**
+     * Quarantine the event, unless the database or Fedora is down, or too many events in a row have been quarantined.
+     * Synchronized, so events failing concurrently in the lanes are counted in turn.
+     * @return true if the event was quarantined
+     * @throws UpdateTrackerStorageException if the event could not be stored in quarantine
+     */
+    private synchronized boolean quarantine(WorkLogUnit event, int attempts, Exception cause, long key)
+            throws UpdateTrackerStorageException {
+        if (!isHealthy()) {
+            log.error("Not quarantining event '" + event + "', as the update tracker database or Fedora is down");
+            return false;
+        }
+        if (consecutive.get() >= maxConsecutive) {
+            log.error("The last " + maxConsecutive + " events were quarantined. Not quarantining event '" + event +
+                      "', as the failures are probably not caused by the events");
+            return false;
+        }
+        updateTrackerPersistentStore.eventQuarantined(event, attempts, cause, key);
+        consecutive.incrementAndGet();
+        quarantinedCount.incrementAndGet();
+        log.error("Quarantined event '" + event + "' after " + attempts + " attempts", cause);
+        return true;
+    }
+
+    /**
+     * @return true if the update tracker database and Fedora answer
+     */
+    private boolean isHealthy() {
+        try {
+            updateTrackerPersistentStore.checkHealth();
+            return true;
+        } catch (UpdateTrackerStorageException | FedoraFailedException | RuntimeException e) {
+            log.warn("Health check failed", e);
+            return false;
+        }
+    }
+
+    @Override
+    public List<String> getQuarantinedEvents() {
+        List<String> result = new ArrayList<>();
+        try {
+            for (QuarantinedEvent event : updateTrackerPersistentStore.getQuarantinedEvents()) {
+                result.add(event + " " + event.getError());
+            }
+        } catch (UpdateTrackerStorageException e) {
+            log.error("Failed to read the quarantined events", e);
+            throw new IllegalStateException(e.getMessage());
+        }
+        return result;
+    }
+
+    @Override
+    public long getQuarantinedCount() {
+        return quarantinedCount.get();
+    }
+
+    @Override
+    public int replayQuarantinedEvents() {
+        List<QuarantinedEvent> events;
+        try {
+            events = updateTrackerPersistentStore.getQuarantinedEvents();
+        } catch (UpdateTrackerStorageException e) {
+            log.error("Failed to read the quarantined events", e);
+            throw new IllegalStateException(e.getMessage());
+        }
+        int replayed = 0;
+        for (QuarantinedEvent event : events) {
+            if (replayQuarantinedEvent(event.getKey())) {
+                replayed++;
+            }
+        }
+        log.info("Replayed {} of {} quarantined events", replayed, events.size());
+        return replayed;
+    }
+
+    @Override
+    public boolean replayQuarantinedEvent(long key) {
+        try {
+            return updateTrackerPersistentStore.quarantinedEventReplayed(key);
+        } catch (UpdateTrackerStorageException e) {
+            log.warn("Quarantined event '" + key + "' failed again", e);
+            return false;
+        }
+    }
+}
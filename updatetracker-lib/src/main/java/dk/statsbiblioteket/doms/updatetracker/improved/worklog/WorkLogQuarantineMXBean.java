@@ -0,0 +1,33 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.worklog;
+
+import java.util.List;
+
+/**
+ * The JMX view of the worklog quarantine, with the admin operations
+ * @see WorkLogQuarantine
+ */
+public interface WorkLogQuarantineMXBean {
+
+    /**
+     * @return the quarantined events, one per line, with the last failure
+     */
+    List<String> getQuarantinedEvents();
+
+    /**
+     * @return the number of events quarantined since this was created
+     */
+    long getQuarantinedCount();
+
+    /**
+     * Replay all the quarantined events, in key order. The events that fail again remain in quarantine.
+     * @return the number of events replayed
+     */
+    int replayQuarantinedEvents();
+
+    /**
+     * Replay a quarantined event.
+     * @param key the key of the event
+     * @return true if the event was replayed, false if it was not in quarantine or failed again
+     */
+    boolean replayQuarantinedEvent(long key);
+}
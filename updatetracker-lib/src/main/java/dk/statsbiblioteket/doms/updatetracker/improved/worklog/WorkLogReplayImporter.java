@@ -0,0 +1,338 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.worklog;
+
+import org.postgresql.PGConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Rebuilds the worklog from the replay log of the fedora hook, after the worklog database has been lost. The hook
+ * writes each changing operation to the dk.statsbiblioteket.doms.updatetracker.ReplayLog logger, as
+ * "Method: name(pid, millis, param)". The importer parses these lines from the log files, and loads them into
+ * updateTrackerLogs with COPY, in batches of batchSize entries, each batch in a single transaction.
+ *
+ * The files are parsed by a pool of threads, a few files ahead of the loading, but loaded one at a time, in the order
+ * given, so they must be given oldest first. Within a batch, the entries are loaded in the order of their timestamps.
+ * Entries already in the worklog, with the same pid, timestamp, method and param, are skipped, so running the importer
+ * again is harmless. After each batch, the number of entries loaded from the file is written to the checkpoint file,
+ * and an interrupted import resumes from there.
+ *
+ * The replay log has no keys, so the entries get new keys. Reset the latest key of the update tracker, if its
+ * database was not lost with the worklog. Operations are written to the replay log before they are invoked, so the
+ * operations that failed are loaded as well.
+ */
+public class WorkLogReplayImporter {
+
+    private static Logger log = LoggerFactory.getLogger(WorkLogReplayImporter.class);
+
+    /** A line of the replay log. The pid has no comma, and the param is the rest of the line */
+    static final Pattern REPLAY_LINE = Pattern.compile("Method: (\\w+)\\(([^,]*), (-?\\d+), (.*)\\)\\s*$");
+
+    /** The entries are copied to this temporary table, and inserted from there if they are not in the worklog */
+    private static final String REPLAY_TABLE = "CREATE TEMPORARY TABLE IF NOT EXISTS updateTrackerReplay (" +
+                                               "line BIGINT NOT NULL, " +
+                                               "pid VARCHAR(64) NOT NULL, " +
+                                               "happened BIGINT NOT NULL, " +
+                                               "method VARCHAR(64) NOT NULL, " +
+                                               "param VARCHAR(255)) " +
+                                               "ON COMMIT DELETE ROWS";
+
+    /** The entries in the replay table, once each, with the timestamp converted exactly from milliseconds */
+    private static final String REPLAY_ENTRIES = "(SELECT DISTINCT ON (pid, happened, method, param) line, pid, " +
+                                                 "timestamptz 'epoch' + happened * interval '1 millisecond' AS happened, " +
+                                                 "method, param " +
+                                                 "FROM updateTrackerReplay " +
+                                                 "ORDER BY pid, happened, method, param, line) AS r";
+
+    private static final String NOT_IN_WORKLOG = "NOT EXISTS (SELECT 1 FROM %s " +
+                                                 "WHERE updateTrackerLogs.pid = r.pid " +
+                                                 "AND updateTrackerLogs.happened = r.happened " +
+                                                 "AND updateTrackerLogs.method = r.method " +
+                                                 "AND updateTrackerLogs.param IS NOT DISTINCT FROM r.param)";
+
+    private static final String INSERT = "INSERT INTO updateTrackerLogs (pid, happened, method, param) " +
+                                         "SELECT r.pid, r.happened, r.method, r.param " +
+                                         "FROM " + REPLAY_ENTRIES + " " +
+                                         "WHERE " + String.format(NOT_IN_WORKLOG, WorkLogPollDAO.EVENTS) + " " +
+                                         "ORDER BY r.happened, r.line";
+
+    /** The params must have codes before the entries are inserted in the compact worklog */
+    private static final String COMPACT_INSERT_PARAMS = "INSERT INTO updateTrackerParams (param) " +
+                                                        "SELECT DISTINCT param FROM updateTrackerReplay " +
+                                                        "WHERE param IS NOT NULL " +
+                                                        "AND param NOT IN (SELECT param FROM updateTrackerParams)";
+
+    private static final String COMPACT_INSERT = "INSERT INTO updateTrackerLogs (pid, happened, method, param) " +
+                                                 "SELECT r.pid, r.happened, m.code, p.code " +
+                                                 "FROM " + REPLAY_ENTRIES + " " +
+                                                 "JOIN updateTrackerMethods m ON m.name = r.method " +
+                                                 "LEFT JOIN updateTrackerParams p ON p.param = r.param " +
+                                                 "WHERE " + String.format(NOT_IN_WORKLOG,
+                                                                          WorkLogPollDAO.COMPACT_EVENTS) + " " +
+                                                 "ORDER BY r.happened, r.line";
+
+    private final String jdbcUrl;
+    private final String username;
+    private final String password;
+    private final File checkpointFile;
+    private final int threads;
+    private final int batchSize;
+
+    /** The number of entries loaded from each file, by the path of the file */
+    private final Properties checkpoint = new Properties();
+
+    /**
+     * @param driver the JDBC driver class of the worklog database
+     * @param jdbcUrl the JDBC url of the worklog database
+     * @param username the user of the worklog database
+     * @param password the password of the user
+     * @param checkpointFile the file to record the progress in. If it exists, the import resumes from it.
+     * @param threads the number of threads parsing the files
+     * @param batchSize the max number of entries to load in one transaction
+     * @throws IOException if the checkpoint file could not be read
+     */
+    public WorkLogReplayImporter(String driver, String jdbcUrl, String username, String password,
+                                 File checkpointFile, int threads, int batchSize) throws IOException {
+        try {
+            Class.forName(driver);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+        this.jdbcUrl = jdbcUrl;
+        this.username = username;
+        this.password = password;
+        this.checkpointFile = checkpointFile;
+        this.threads = threads;
+        this.batchSize = batchSize;
+        if (checkpointFile.exists()) {
+            try (FileInputStream in = new FileInputStream(checkpointFile)) {
+                checkpoint.load(in);
+            }
+            log.info("Resuming the import from the checkpoint file {}", checkpointFile);
+        }
+    }
+
+    /**
+     * Load the entries of the replay log files into the worklog
+     * @param files the replay log files, oldest first
+     * @return the number of entries added to the worklog
+     * @throws IOException if a file could not be read, or the entries could not be loaded
+     * @throws InterruptedException if interrupted while waiting for the parsing
+     */
+    public long importFiles(List<File> files) throws IOException, InterruptedException {
+        ExecutorService parsers = Executors.newFixedThreadPool(threads);
+        try (Connection conn = DriverManager.getConnection(jdbcUrl, username, password)) {
+            Boolean compact = WorkLogPollDAO.getVersion(conn);
+            if (compact == null) {
+                throw new IOException("There is no worklog in " + jdbcUrl + ". Start fedora with the hook first");
+            }
+            conn.setAutoCommit(false);
+            try (Statement statement = conn.createStatement()) {
+                statement.executeUpdate(REPLAY_TABLE);
+            }
+            conn.commit();
+            LinkedList<Future<List<WorkLogUnit>>> parsed = new LinkedList<>();
+            int next = 0;
+            long added = 0;
+            for (File file : files) {
+                //Keep the parsers a few files ahead of the loading
+                while (next < files.size() && parsed.size() < threads) {
+                    parsed.add(parsers.submit(parseTask(files.get(next++))));
+                }
+                List<WorkLogUnit> entries = getParsed(parsed.removeFirst(), file);
+                added += load(conn, compact, file, entries);
+            }
+            return added;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        } finally {
+            parsers.shutdownNow();
+        }
+    }
+
+    private Callable<List<WorkLogUnit>> parseTask(final File file) {
+        return new Callable<List<WorkLogUnit>>() {
+            @Override
+            public List<WorkLogUnit> call() throws IOException {
+                return parseFile(file);
+            }
+        };
+    }
+
+    private List<WorkLogUnit> getParsed(Future<List<WorkLogUnit>> future, File file)
+            throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to parse the replay log " + file, e.getCause());
+        }
+    }
+
+    /**
+     * Load the entries of a file, from where the checkpoint says, in batches
+     * @return the number of entries added to the worklog
+     */
+    private long load(Connection conn, boolean compact, File file, List<WorkLogUnit> entries)
+            throws SQLException, IOException {
+        String path = file.getCanonicalPath();
+        int loaded = Integer.parseInt(checkpoint.getProperty(path, "0"));
+        if (loaded >= entries.size()) {
+            log.info("Skipping {}, as its {} entries are loaded already", file, entries.size());
+            return 0;
+        }
+        long added = 0;
+        PGConnection pgConnection = (PGConnection) conn;
+        for (int start = loaded; start < entries.size(); start += batchSize) {
+            List<WorkLogUnit> batch = entries.subList(start, Math.min(start + batchSize, entries.size()));
+            try {
+                pgConnection.getCopyAPI().copyIn("COPY updateTrackerReplay (line, pid, happened, method, param) " +
+                                                 "FROM STDIN", new StringReader(toCopyText(batch)));
+                try (Statement statement = conn.createStatement()) {
+                    if (compact) {
+                        statement.executeUpdate(COMPACT_INSERT_PARAMS);
+                        added += statement.executeUpdate(COMPACT_INSERT);
+                    } else {
+                        added += statement.executeUpdate(INSERT);
+                    }
+                }
+                conn.commit();
+            } catch (SQLException | IOException e) {
+                conn.rollback();
+                throw e;
+            }
+            checkpoint.setProperty(path, Integer.toString(start + batch.size()));
+            writeCheckpoint();
+        }
+        log.info("Loaded {} entries from {}, of which {} were not in the worklog", entries.size() - loaded, file,
+                 added);
+        return added;
+    }
+
+    /**
+     * Write the checkpoint to a new file, and move it in place of the old, so an interrupted write leaves the old
+     */
+    private void writeCheckpoint() throws IOException {
+        File temp = new File(checkpointFile.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            checkpoint.store(out, "The number of entries loaded from each replay log");
+        }
+        Files.move(temp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Parse the replay log lines of a file. Lines from other loggers are skipped.
+     * @param file the log file
+     * @return the entries, with the line number as the key, in the order of the file
+     * @throws IOException if the file could not be read
+     */
+    static List<WorkLogUnit> parseFile(File file) throws IOException {
+        List<WorkLogUnit> entries = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                                                                              StandardCharsets.UTF_8))) {
+            String line;
+            long lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                WorkLogUnit entry = parseLine(lineNumber, line);
+                if (entry != null) {
+                    entries.add(entry);
+                }
+            }
+        }
+        log.debug("Parsed {} entries from {}", entries.size(), file);
+        return entries;
+    }
+
+    /**
+     * Parse a line of the replay log
+     * @param lineNumber the number of the line, used as the key of the entry
+     * @param line the line, with whatever the log layout puts before the message
+     * @return the entry, or null if the line is not from the replay log
+     */
+    static WorkLogUnit parseLine(long lineNumber, String line) {
+        Matcher matcher = REPLAY_LINE.matcher(line);
+        if (!matcher.find()) {
+            return null;
+        }
+        String param = matcher.group(4);
+        return new WorkLogUnit(lineNumber, matcher.group(1), new Date(Long.parseLong(matcher.group(3))),
+                               matcher.group(2), param.equals("null") ? null : param);
+    }
+
+    /**
+     * Write the entries in the text format of COPY, with the timestamp in milliseconds
+     */
+    static String toCopyText(List<WorkLogUnit> entries) {
+        StringBuilder text = new StringBuilder();
+        for (WorkLogUnit entry : entries) {
+            text.append(entry.getKey()).append('\t')
+                .append(escape(entry.getPid())).append('\t')
+                .append(entry.getDate().getTime()).append('\t')
+                .append(escape(entry.getMethod())).append('\t')
+                .append(entry.getParam() == null ? "\\N" : escape(entry.getParam())).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    /**
+     * Import replay log files into the worklog.
+     * Usage: WorkLogReplayImporter properties checkpoint replaylog...
+     * The worklog database is read from the fedora.worklog.database properties, as for the update tracker. The
+     * replay logs must be given oldest first.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: WorkLogReplayImporter <properties> <checkpoint file> <replay log>...");
+            System.exit(1);
+        }
+        Properties properties = new Properties();
+        try (FileInputStream in = new FileInputStream(args[0])) {
+            properties.load(in);
+        }
+        List<File> files = new ArrayList<>();
+        for (String arg : Arrays.asList(args).subList(2, args.length)) {
+            files.add(new File(arg));
+        }
+        String driver = properties.getProperty("fedora.worklog.database.driver");
+        String jdbcUrl = properties.getProperty("fedora.worklog.database.URL");
+        String username = properties.getProperty("fedora.worklog.database.username");
+        String password = properties.getProperty("fedora.worklog.database.password");
+        WorkLogReplayImporter importer = new WorkLogReplayImporter(driver, jdbcUrl, username, password,
+                                                                   new File(args[1]),
+                                                                   Runtime.getRuntime().availableProcessors(), 10000);
+        long added = importer.importFiles(files);
+        System.out.println("Added " + added + " entries to the worklog");
+    }
+}
@@ -0,0 +1,127 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.worklog;
+
+import dk.statsbiblioteket.doms.updatetracker.improved.database.UpdateTrackerPersistentStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Removes the events the update tracker is done with from the worklog, so the worklog does not grow forever.
+ * Events more than margin keys below the latest key registered by the update tracker are deleted, or moved to an
+ * archive table, in batches of batchSize events, with a pause between the batches so the fedora database is not
+ * swamped. The margin leaves room for other readers of the worklog, and for looking back when debugging.
+ *
+ * With a gap tracker, the events from the lowest open gap or failed gap event on are kept, as well as the events
+ * younger than the gap window, so an event committed after events with higher keys is not removed before the poller
+ * finds it.
+ *
+ * The worklog account must be allowed to delete from updateTrackerLogs, and insert into the archive table.
+ */
+public class WorkLogRetention implements Runnable {
+
+    private static Logger log = LoggerFactory.getLogger(WorkLogRetention.class);
+
+    private static final Pattern TABLE_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*(\\.[A-Za-z_][A-Za-z0-9_]*)?");
+
+    private final WorkLogPollDAO workLogPollDAO;
+    private final UpdateTrackerPersistentStore updateTrackerPersistentStore;
+    private final long margin;
+    private final int batchSize;
+    private final int pause;
+    private final String archiveTable;
+    private final WorkLogGapTracker gapTracker;
+    private final int minAge;
+    private final AtomicLong prunedEvents = new AtomicLong();
+    private volatile boolean stopped = false;
+
+    /**
+     * @param workLogPollDAO the worklog
+     * @param updateTrackerPersistentStore the update tracker, which knows the latest key handled
+     * @param margin the number of keys below the latest key to keep
+     * @param batchSize the max number of events to delete in one transaction
+     * @param pause the pause in milliseconds between batches
+     * @param archiveTable the table to move the events to, or null to just delete them
+     */
+    public WorkLogRetention(WorkLogPollDAO workLogPollDAO, UpdateTrackerPersistentStore updateTrackerPersistentStore,
+                            long margin, int batchSize, int pause, String archiveTable) {
+        this(workLogPollDAO, updateTrackerPersistentStore, margin, batchSize, pause, archiveTable, null, 0);
+    }
+
+    /**
+     * @param workLogPollDAO the worklog
+     * @param updateTrackerPersistentStore the update tracker, which knows the latest key handled
+     * @param margin the number of keys below the latest key to keep
+     * @param batchSize the max number of events to delete in one transaction
+     * @param pause the pause in milliseconds between batches
+     * @param archiveTable the table to move the events to, or null to just delete them
+     * @param gapTracker the gaps of the poller, which are kept, or null if the poller tracks no gaps
+     * @param minAge the age in milliseconds of the youngest events to remove, the gap window
+     */
+    public WorkLogRetention(WorkLogPollDAO workLogPollDAO, UpdateTrackerPersistentStore updateTrackerPersistentStore,
+                            long margin, int batchSize, int pause, String archiveTable,
+                            WorkLogGapTracker gapTracker, int minAge) {
+        if (archiveTable != null && !TABLE_NAME.matcher(archiveTable).matches()) {
+            throw new IllegalArgumentException("Invalid archive table name '" + archiveTable + "'");
+        }
+        this.workLogPollDAO = workLogPollDAO;
+        this.updateTrackerPersistentStore = updateTrackerPersistentStore;
+        this.margin = Math.max(margin, 0);
+        this.batchSize = batchSize;
+        this.pause = pause;
+        this.archiveTable = archiveTable;
+        this.gapTracker = gapTracker;
+        this.minAge = Math.max(minAge, 0);
+    }
+
+    /**
+     * Prune the worklog, batch by batch, until nothing is left to prune or we are stopped
+     */
+    @Override
+    public void run() {
+        try {
+            long toKey = updateTrackerPersistentStore.getLatestKey() - margin;
+            if (gapTracker != null) {
+                toKey = Math.min(toKey, gapTracker.getLowestKey() - 1);
+            }
+            if (toKey <= 0) {
+                return;
+            }
+            log.debug("Pruning worklog events up to '{}'", toKey);
+            long pruned = 0;
+            while (!stopped) {
+                int count = workLogPollDAO.pruneEvents(toKey, minAge, batchSize, archiveTable);
+                pruned += count;
+                prunedEvents.addAndGet(count);
+                if (count < batchSize) {
+                    break;
+                }
+                Thread.sleep(pause);
+            }
+            if (pruned > 0) {
+                log.info("Pruned '{}' worklog events up to '{}'", pruned, toKey);
+            }
+        } catch (InterruptedException e) {
+            log.debug("Interrupted while pruning the worklog", e);
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            //Fault barrier, so the pruning is tried again next time
+            log.error("Failed to prune the worklog", e);
+        }
+    }
+
+    /**
+     * Stop pruning after the current batch. Used when shutting down.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * @return the number of events pruned from the worklog since this was created
+     */
+    public long getPrunedEvents() {
+        return prunedEvents.get();
+    }
+}
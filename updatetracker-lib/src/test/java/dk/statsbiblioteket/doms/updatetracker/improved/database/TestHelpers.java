@@ -3,7 +3,9 @@ package dk.statsbiblioteket.doms.updatetracker.improved.database;
 import dk.statsbiblioteket.doms.updatetracker.improved.database.datastructures.Record;
 import dk.statsbiblioteket.doms.updatetracker.improved.fedora.FedoraFailedException;
 import dk.statsbiblioteket.doms.updatetracker.improved.fedora.FedoraForUpdateTracker;
+import dk.statsbiblioteket.doms.updatetracker.improved.worklog.WorkLogUnit;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
@@ -556,6 +558,31 @@ public class TestHelpers {
         return new HashSet<T>();
     }
 
+    /**
+     * A worklog event, which happened key seconds after the epoch
+     */
+    public static WorkLogUnit event(long key, String method, String pid, String param) {
+        return new WorkLogUnit(key, method, new Date(key * 1000), pid, param);
+    }
+
+    /**
+     * A worklog event changing the DC datastream of the object doms:key, which happened key seconds after the epoch
+     */
+    public static WorkLogUnit event(long key) {
+        return event(key, "modifyDatastreamByValue", "doms:" + key, "DC");
+    }
+
+    /**
+     * Worklog events changing the DC datastream of the object doms:1, with the given keys
+     */
+    public static List<WorkLogUnit> events(long... keys) {
+        List<WorkLogUnit> result = new ArrayList<>();
+        for (long key : keys) {
+            result.add(event(key, "modifyDatastreamByValue", "doms:1", "DC"));
+        }
+        return result;
+    }
+
     static void addEntry(String pid, FedoraForUpdateTracker fcmock, String... contained) throws FedoraFailedException {
         when(fcmock.getEntryAngles(eq(pid), any(Date.class))).thenReturn(asSet(UpdateTrackerBackendTest.VIEW_ANGLE));
         when(fcmock.getState(eq(pid), any(Date.class))).thenReturn(Record.State.INACTIVE);
@@ -2,24 +2,36 @@ package dk.statsbiblioteket.doms.updatetracker.improved.database;
 
 import dk.statsbiblioteket.doms.updatetracker.improved.database.dao.DB;
 import dk.statsbiblioteket.doms.updatetracker.improved.database.dao.DBFactory;
+import dk.statsbiblioteket.doms.updatetracker.improved.database.datastructures.ContentModel;
 import dk.statsbiblioteket.doms.updatetracker.improved.database.datastructures.Record;
 import dk.statsbiblioteket.doms.updatetracker.improved.fedora.FedoraForUpdateTracker;
+import dk.statsbiblioteket.doms.updatetracker.improved.worklog.WorkLogMetrics;
+import dk.statsbiblioteket.doms.updatetracker.improved.worklog.WorkLogUnit;
+import org.hibernate.HibernateException;
 import org.hibernate.Transaction;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InOrder;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.concurrent.Executors;
 
 import static dk.statsbiblioteket.doms.updatetracker.improved.database.TestHelpers.asSet;
 import static dk.statsbiblioteket.doms.updatetracker.improved.database.TestHelpers.emptySet;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -35,6 +47,7 @@ public class UpdateTrackerPersistentStoreTest {
     UpdateTrackerPersistentStore store;
     FedoraForUpdateTracker fcmock;
     private DB dbSession;
+    private DBFactory dbfac;
     protected static final String VIEW_ANGLE = "SummaVisible";
 
     @Before
@@ -46,7 +59,7 @@ public class UpdateTrackerPersistentStoreTest {
         when(fcmock.getEntryAngles(anyString(), any(Date.class))).thenReturn(Collections.<String>emptySet());
         final UpdateTrackerBackend updateTrackerBackend = new UpdateTrackerBackend(fcmock,10000L,Executors.newSingleThreadExecutor());
 
-        DBFactory dbfac = mock(DBFactory.class);
+        dbfac = mock(DBFactory.class);
         dbSession = mock(DB.class);
         Transaction transaction = mock(Transaction.class);
         when(dbfac.createDBConnection()).thenReturn(dbSession);
@@ -356,4 +369,87 @@ public class UpdateTrackerPersistentStoreTest {
         store.objectCreated("doms:test1", new Date(0L), newLatestKey);
         verify(dbSession).setLatestKey(newLatestKey);
     }
+
+    @Test
+    public void testEventsHappenedInOneTransaction() throws Exception {
+        List<WorkLogUnit> events = Arrays.asList(
+                new WorkLogUnit(1L, "modifyDatastreamByValue", new Date(0L), "doms:test1", "DC"),
+                new WorkLogUnit(2L, "modifyDatastreamByValue", new Date(1L), "doms:test2", "DC"),
+                new WorkLogUnit(3L, "getDatastream", new Date(2L), "doms:test2", "DC"));
+        store.eventsHappened(events);
+        InOrder mocks = inOrder(dbSession);
+        mocks.verify(dbSession).beginTransaction();
+        mocks.verify(dbSession).updateDates("doms:test1", new Date(0L));
+        mocks.verify(dbSession).updateDates("doms:test2", new Date(1L));
+        mocks.verify(dbSession).setLatestKey(3L);
+        verify(dbSession, never()).setLatestKey(1L);
+        verify(dbSession, never()).setLatestKey(2L);
+    }
+
+    @Test
+    public void testEventsHappenedRecordedOneByOne() throws Exception {
+        WorkLogMetrics metrics = new WorkLogMetrics();
+        ((UpdateTrackerPersistentStoreImpl) store).setWorkLogMetrics(metrics);
+        List<WorkLogUnit> events = Arrays.asList(
+                new WorkLogUnit(1L, "modifyDatastreamByValue", new Date(0L), "doms:test1", "DC"),
+                new WorkLogUnit(2L, "modifyDatastreamByValue", new Date(1L), "doms:test2", "DC"));
+        //Fail the first time the batch tries to set the latest key
+        doThrow(new HibernateException("test")).doNothing().when(dbSession).setLatestKey(2L);
+        store.eventsHappened(events);
+        //The rolled back batch is not recorded, only the events handled one at a time
+        assertEquals(2, metrics.getAppliedEvents());
+
+        store.eventsHappened(events);
+        assertEquals(4, metrics.getAppliedEvents());
+    }
+
+    @Test
+    public void testEventsHappenedFallsBackToSingleEvents() throws Exception {
+        List<WorkLogUnit> events = Arrays.asList(
+                new WorkLogUnit(1L, "modifyDatastreamByValue", new Date(0L), "doms:test1", "DC"),
+                new WorkLogUnit(2L, "modifyDatastreamByValue", new Date(1L), "doms:test2", "DC"));
+        //Fail the first time the batch tries to set the latest key
+        doThrow(new HibernateException("test")).doNothing().when(dbSession).setLatestKey(2L);
+        store.eventsHappened(events);
+        //The batch and then one transaction per event
+        verify(dbSession, times(3)).beginTransaction();
+        verify(dbSession).setLatestKey(1L);
+        verify(dbSession, times(2)).setLatestKey(2L);
+    }
+
+    @Test
+    public void testContentModelsPersisted() throws Exception {
+        final UpdateTrackerBackend updateTrackerBackend = new UpdateTrackerBackend(fcmock, 10000L,
+                                                                                   Executors.newSingleThreadExecutor());
+        store = new UpdateTrackerPersistentStoreImpl(fcmock, updateTrackerBackend, dbfac, true);
+        when(fcmock.isCurrentlyContentModel("doms:ContentModel_Item")).thenReturn(true);
+        when(fcmock.takeLoadedContentModels()).thenReturn(
+                Collections.singletonMap("doms:ContentModel_Page", asSet(VIEW_ANGLE)));
+        store.eventHappened(new WorkLogUnit(1L, "modifyDatastreamByValue", new Date(0L), "doms:ContentModel_Item",
+                                            "VIEW"), 1L);
+        verify(fcmock).invalidateContentModel("doms:ContentModel_Item");
+        verify(dbSession).deleteContentModel("doms:ContentModel_Item");
+        ArgumentCaptor<ContentModel> saved = ArgumentCaptor.forClass(ContentModel.class);
+        verify(dbSession).saveContentModel(saved.capture());
+        assertEquals("doms:ContentModel_Page", saved.getValue().getPid());
+        assertEquals(asSet(VIEW_ANGLE), saved.getValue().getEntryAngles());
+        //The event and the content models in transactions of their own
+        verify(dbSession, times(2)).beginTransaction();
+    }
+
+    @Test
+    public void testContentModelsKeptWhenEventsRolledBack() throws Exception {
+        final UpdateTrackerBackend updateTrackerBackend = new UpdateTrackerBackend(fcmock, 10000L,
+                                                                                   Executors.newSingleThreadExecutor());
+        store = new UpdateTrackerPersistentStoreImpl(fcmock, updateTrackerBackend, dbfac, true);
+        doThrow(new HibernateException("test")).when(dbSession).setLatestKey(1L);
+        try {
+            store.eventHappened(new WorkLogUnit(1L, "modifyDatastreamByValue", new Date(0L), "doms:test1", "DC"), 1L);
+            fail();
+        } catch (UpdateTrackerStorageException e) {
+            //expected
+        }
+        verify(fcmock, never()).takeLoadedContentModels();
+        verify(dbSession, never()).saveContentModel(any(ContentModel.class));
+    }
 }
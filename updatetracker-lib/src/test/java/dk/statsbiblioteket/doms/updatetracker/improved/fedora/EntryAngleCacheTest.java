@@ -0,0 +1,117 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.fedora;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EntryAngleCacheTest {
+
+    @Test
+    public void testConcurrentMissesShareOneLoad() throws Exception {
+        final EntryAngleCache cache = new EntryAngleCache();
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final EntryAngleCache.Loader loader = new EntryAngleCache.Loader() {
+            @Override
+            public Set<String> load(String contentmodel) throws FedoraFailedException {
+                loads.incrementAndGet();
+                loading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new FedoraFailedException(e);
+                }
+                return Collections.singleton("SummaVisible");
+            }
+        };
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        try {
+            Callable<Set<String>> get = new Callable<Set<String>>() {
+                @Override
+                public Set<String> call() throws Exception {
+                    return cache.getEntryAngles("doms:ContentModel_Item", loader);
+                }
+            };
+            Future<Set<String>> first = threads.submit(get);
+            assertTrue(loading.await(10, TimeUnit.SECONDS));
+            Future<Set<String>> second = threads.submit(get);
+            assertNull(cache.getCachedEntryAngles("doms:ContentModel_Item"));
+            assertTrue(cache.isCachedContentModel("doms:ContentModel_Item"));
+            release.countDown();
+            assertEquals(Collections.singleton("SummaVisible"), first.get(10, TimeUnit.SECONDS));
+            assertEquals(Collections.singleton("SummaVisible"), second.get(10, TimeUnit.SECONDS));
+            assertEquals(1, loads.get());
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailedLoadIsNotCached() throws Exception {
+        EntryAngleCache cache = new EntryAngleCache();
+        try {
+            cache.getEntryAngles("doms:ContentModel_Item", new EntryAngleCache.Loader() {
+                @Override
+                public Set<String> load(String contentmodel) throws FedoraFailedException {
+                    throw new FedoraFailedException("down");
+                }
+            });
+            fail("The load should fail");
+        } catch (FedoraFailedException e) {
+            assertEquals("down", e.getMessage());
+        }
+        assertFalse(cache.isCachedContentModel("doms:ContentModel_Item"));
+        assertEquals(Collections.singleton("SummaVisible"),
+                     cache.getEntryAngles("doms:ContentModel_Item", new EntryAngleCache.Loader() {
+                         @Override
+                         public Set<String> load(String contentmodel) {
+                             return Collections.singleton("SummaVisible");
+                         }
+                     }));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        EntryAngleCache cache = new EntryAngleCache();
+        cache.setEntryViewAngles("doms:ContentModel_Item", Collections.singleton("SummaVisible"));
+        assertEquals(Collections.singleton("SummaVisible"), cache.getCachedEntryAngles("doms:ContentModel_Item"));
+        cache.invalidateContentModel("doms:ContentModel_Item");
+        assertFalse(cache.isCachedContentModel("doms:ContentModel_Item"));
+        assertNull(cache.getCachedEntryAngles("doms:ContentModel_Item"));
+    }
+
+    @Test
+    public void testPreloadAndTakeLoaded() throws Exception {
+        EntryAngleCache cache = new EntryAngleCache(60000, true);
+        cache.preload("doms:ContentModel_Item", Collections.singleton("SummaVisible"));
+        assertTrue(cache.isCachedContentModel("doms:ContentModel_Item"));
+        assertFalse(cache.isCachedContentModel("doms:ContentModel_Page"));
+        EntryAngleCache.Loader loader = new EntryAngleCache.Loader() {
+            @Override
+            public Set<String> load(String contentmodel) {
+                return Collections.singleton("GUI");
+            }
+        };
+        //Preloaded content models are not loaded again
+        assertEquals(Collections.singleton("SummaVisible"), cache.getEntryAngles("doms:ContentModel_Item", loader));
+        assertEquals(Collections.singleton("GUI"), cache.getEntryAngles("doms:ContentModel_Page", loader));
+        assertEquals(Collections.singletonMap("doms:ContentModel_Page", Collections.singleton("GUI")),
+                     cache.takeLoadedContentModels());
+        assertTrue(cache.takeLoadedContentModels().isEmpty());
+    }
+}
@@ -0,0 +1,60 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.fedora;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FedoraCacheTest {
+
+    private static final FedoraCache.Weigher<String, String> LENGTH = new FedoraCache.Weigher<String, String>() {
+        @Override
+        public long weigh(String key, String value) {
+            return value.length();
+        }
+    };
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws Exception {
+        FedoraCache<String, String> cache = new FedoraCache<>(2, 1000, 60000, LENGTH);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        assertEquals("1", cache.get("a"));
+        cache.put("c", "3");
+        assertNull(cache.get("b"));
+        assertEquals("1", cache.get("a"));
+        assertEquals("3", cache.get("c"));
+        assertEquals(2, cache.getSize());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0.75, cache.getHitRatio(), 0.001);
+    }
+
+    @Test
+    public void testEvictByWeight() throws Exception {
+        FedoraCache<String, String> cache = new FedoraCache<>(100, 10, 60000, LENGTH);
+        cache.put("a", "12345");
+        cache.put("b", "1234");
+        assertEquals(9, cache.getWeight());
+        cache.put("c", "12");
+        assertNull(cache.get("a"));
+        assertEquals(6, cache.getWeight());
+        cache.put("d", "12345678901");
+        assertNull(cache.get("d"));
+        assertEquals(2, cache.getSize());
+        cache.put("b", "1");
+        assertEquals(3, cache.getWeight());
+    }
+
+    @Test
+    public void testExpire() throws Exception {
+        FedoraCache<String, String> cache = new FedoraCache<>(100, 1000, 0, LENGTH);
+        cache.put("a", "1");
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getWeight());
+        assertEquals(1, cache.getExpirations());
+        assertEquals(1, cache.getMisses());
+    }
+}
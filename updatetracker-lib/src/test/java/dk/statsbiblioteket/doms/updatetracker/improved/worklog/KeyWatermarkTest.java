@@ -0,0 +1,53 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.worklog;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class KeyWatermarkTest {
+
+    @Test
+    public void testInOrder() throws Exception {
+        KeyWatermark watermark = new KeyWatermark(10);
+        watermark.dispatched(11);
+        watermark.dispatched(15);
+        assertEquals(10, watermark.getWatermark());
+        watermark.completed(11);
+        assertEquals(11, watermark.getWatermark());
+        watermark.completed(15);
+        assertEquals(15, watermark.getWatermark());
+    }
+
+    @Test
+    public void testOutOfOrder() throws Exception {
+        KeyWatermark watermark = new KeyWatermark(10);
+        watermark.dispatched(11);
+        watermark.dispatched(12);
+        watermark.dispatched(13);
+        watermark.completed(13);
+        watermark.completed(12);
+        //11 is still missing, so the watermark cannot move
+        assertEquals(10, watermark.getWatermark());
+        watermark.completed(11);
+        assertEquals(13, watermark.getWatermark());
+    }
+
+    @Test
+    public void testGap() throws Exception {
+        KeyWatermark watermark = new KeyWatermark(10);
+        watermark.dispatched(11);
+        watermark.dispatched(12);
+        watermark.dispatched(13);
+        watermark.completed(11);
+        watermark.completed(13);
+        //12 failed, so we must stop at 11
+        assertEquals(11, watermark.getWatermark());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDispatchOutOfOrder() throws Exception {
+        KeyWatermark watermark = new KeyWatermark(10);
+        watermark.dispatched(12);
+        watermark.dispatched(11);
+    }
+}
@@ -0,0 +1,52 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.worklog;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static dk.statsbiblioteket.doms.updatetracker.improved.database.TestHelpers.event;
+import static org.junit.Assert.assertEquals;
+
+public class WorkLogCoalescerTest {
+
+    @Test
+    public void testDatastreamChangesMerged() throws Exception {
+        WorkLogCoalescer coalescer = new WorkLogCoalescer();
+        List<WorkLogUnit> result = coalescer.coalesce(Arrays.asList(
+                event(1, "addDatastream", "doms:1", "DC"),
+                event(2, "modifyDatastreamByValue", "doms:1", "MODS"),
+                event(3, "modifyDatastreamByValue", "doms:2", "MODS"),
+                event(4, "setDatastreamState", "doms:1", null)));
+        assertEquals(Arrays.asList(event(3, "modifyDatastreamByValue", "doms:2", "MODS"),
+                                   event(4, "setDatastreamState", "doms:1", null)), result);
+        assertEquals(2, coalescer.getSavedEvents());
+    }
+
+    @Test
+    public void testRelationsChangeWins() throws Exception {
+        WorkLogCoalescer coalescer = new WorkLogCoalescer();
+        List<WorkLogUnit> result = coalescer.coalesce(Arrays.asList(
+                event(1, "addRelationship", "doms:1", null),
+                event(2, "addRelationship", "doms:1", null),
+                event(3, "modifyDatastreamByValue", "doms:1", "DC"),
+                event(4, "addRelationship", "doms:1/CONTENT", null)));
+        //The relations change is moved to the last event, so the records are recalculated at the latest timestamp
+        assertEquals(Arrays.asList(event(4, "modifyDatastreamByValue", "doms:1", "RELS-EXT")), result);
+        assertEquals(3, coalescer.getSavedEvents());
+    }
+
+    @Test
+    public void testBarriersNotCrossed() throws Exception {
+        WorkLogCoalescer coalescer = new WorkLogCoalescer();
+        List<WorkLogUnit> events = Arrays.asList(
+                event(1, "modifyDatastreamByValue", "doms:1", "DC"),
+                event(2, "modifyObject", "doms:1", "A"),
+                event(3, "modifyDatastreamByValue", "doms:1", "DC"),
+                event(4, "modifyDatastreamByValue", "doms:1", "VIEW"),
+                event(5, "getDatastream", "doms:1", "DC"),
+                event(6, "purgeObject", "doms:1", null));
+        assertEquals(events, coalescer.coalesce(events));
+        assertEquals(0, coalescer.getSavedEvents());
+    }
+}
@@ -0,0 +1,46 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.worklog;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static dk.statsbiblioteket.doms.updatetracker.improved.database.TestHelpers.event;
+import static org.junit.Assert.assertEquals;
+
+public class WorkLogDirtySummaryTest {
+
+    /** When the events made by TestHelpers.event with key 5 happened */
+    private static final Date HAPPENED = new Date(5000);
+
+    @Test
+    public void testPurgeOnly() throws Exception {
+        List<WorkLogUnit> events = WorkLogDirtySummary.toEvents(5, "doms:1", HAPPENED,
+                                                                WorkLogDirtySummary.PURGE |
+                                                                WorkLogDirtySummary.DATASTREAM);
+        assertEquals(Arrays.asList(event(5, "purgeObject", "doms:1", null)), events);
+    }
+
+    @Test
+    public void testStructuralRecomputes() throws Exception {
+        List<WorkLogUnit> events = WorkLogDirtySummary.toEvents(5, "doms:1", HAPPENED,
+                                                                WorkLogDirtySummary.STRUCTURAL |
+                                                                WorkLogDirtySummary.DATASTREAM);
+        assertEquals(Arrays.asList(event(5, "modifyDatastreamByValue", "doms:1", "VIEW"),
+                                   event(5, "ingest", "doms:1", null)), events);
+    }
+
+    @Test
+    public void testStateRecomputes() throws Exception {
+        List<WorkLogUnit> events = WorkLogDirtySummary.toEvents(5, "doms:1", HAPPENED, WorkLogDirtySummary.STATE);
+        assertEquals(Arrays.asList(event(5, "ingest", "doms:1", null)), events);
+    }
+
+    @Test
+    public void testDatastreamUpdatesDates() throws Exception {
+        List<WorkLogUnit> events = WorkLogDirtySummary.toEvents(5, "doms:1", HAPPENED,
+                                                                WorkLogDirtySummary.DATASTREAM);
+        assertEquals(Arrays.asList(event(5, "modifyDatastreamByValue", "doms:1", null)), events);
+    }
+}
@@ -0,0 +1,75 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.worklog;
+
+import dk.statsbiblioteket.doms.updatetracker.improved.database.UpdateTrackerPersistentStore;
+import dk.statsbiblioteket.doms.updatetracker.improved.fedora.FedoraFailedException;
+import dk.statsbiblioteket.doms.updatetracker.improved.fedora.FedoraForUpdateTracker;
+import dk.statsbiblioteket.util.Pair;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.Executors;
+
+import static dk.statsbiblioteket.doms.updatetracker.improved.database.TestHelpers.event;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WorkLogFedoraPrefetcherTest {
+
+    @Test
+    public void testGetObjects() throws Exception {
+        assertEquals(Arrays.asList(new Pair<>("doms:1", new Date(1000)),
+                                   new Pair<>("doms:2", new Date(3000)),
+                                   new Pair<>("doms:1", new Date(5000))),
+                     Arrays.asList(WorkLogFedoraPrefetcher.getObjects(Arrays.asList(
+                             event(1, "ingest", "doms:1", null),
+                             event(2, "modifyDatastreamByValue", "doms:1", "DC"),
+                             event(3, "modifyDatastreamByValue", "doms:2", "RELS-EXT"),
+                             event(4, "addRelationship", "doms:1/CONTENT", null),
+                             event(5, "modifyObject", "doms:1", "I"),
+                             event(5, "addRelationship", "doms:1", null),
+                             event(6, "getDatastream", "doms:3", "DC"))).toArray()));
+    }
+
+    @Test
+    public void testWarm() throws Exception {
+        FedoraForUpdateTracker fedora = mock(FedoraForUpdateTracker.class);
+        doThrow(new FedoraFailedException("down")).when(fedora).prefetch("doms:2", new Date(2000));
+        WorkLogFedoraPrefetcher prefetcher = new WorkLogFedoraPrefetcher(fedora, 2, Executors.defaultThreadFactory());
+        try {
+            prefetcher.warm(Arrays.asList(event(1, "ingest", "doms:1", null),
+                                          event(2, "ingest", "doms:2", null),
+                                          event(1, "modifyObject", "doms:1", "A")));
+        } finally {
+            prefetcher.close();
+        }
+        verify(fedora, times(1)).prefetch("doms:1", new Date(1000));
+        verify(fedora, times(1)).prefetch("doms:2", new Date(2000));
+    }
+
+    @Test
+    public void testWarmedAfterCoalescing() throws Exception {
+        WorkLogPollDAO dao = mock(WorkLogPollDAO.class);
+        when(dao.getFedoraEvents(0L, 10, 0)).thenReturn(Arrays.asList(
+                event(1, "addRelationship", "doms:1", null),
+                event(2, "modifyDatastreamByValue", "doms:1", "DC")));
+        FedoraForUpdateTracker fedora = mock(FedoraForUpdateTracker.class);
+        WorkLogFedoraPrefetcher prefetcher = new WorkLogFedoraPrefetcher(fedora, 2, Executors.defaultThreadFactory());
+        try {
+            WorkLogPollTask task = new WorkLogPollTask(dao, mock(UpdateTrackerPersistentStore.class), 10, 0, 10, 0,
+                                                       null, null, new WorkLogCoalescer(), null, new WorkLogMetrics(),
+                                                       null, null, null, prefetcher);
+            assertEquals(2, task.poll());
+        } finally {
+            prefetcher.close();
+        }
+        //The events are merged into a relations change at the last timestamp, so only that is fetched
+        verify(fedora).prefetch("doms:1", new Date(2000));
+        verify(fedora, never()).prefetch("doms:1", new Date(1000));
+    }
+}
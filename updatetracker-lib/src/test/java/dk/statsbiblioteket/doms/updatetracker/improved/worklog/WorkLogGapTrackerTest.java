@@ -0,0 +1,86 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.worklog;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static dk.statsbiblioteket.doms.updatetracker.improved.database.TestHelpers.events;
+import static org.junit.Assert.assertEquals;
+
+public class WorkLogGapTrackerTest {
+
+    @Test
+    public void testGapsFilled() throws Exception {
+        WorkLogGapTracker tracker = new WorkLogGapTracker(60000, 100);
+        tracker.pageFetched(10, events(11, 13, 16));
+        tracker.pageFetched(16, events(18));
+        assertEquals(Arrays.asList(12L, 14L, 15L, 17L), tracker.getOpenGaps());
+        tracker.filled(Arrays.asList(14L, 17L));
+        assertEquals(Arrays.asList(12L, 15L), tracker.getOpenGaps());
+        assertEquals(2, tracker.getFilledGaps());
+    }
+
+    @Test
+    public void testGapsExpire() throws Exception {
+        WorkLogGapTracker tracker = new WorkLogGapTracker(10, 100);
+        tracker.pageFetched(10, events(12));
+        Thread.sleep(50);
+        tracker.pageFetched(12, events(14));
+        assertEquals(Collections.singletonList(13L), tracker.getOpenGaps());
+        assertEquals(1, tracker.getExpiredGaps());
+    }
+
+    @Test
+    public void testFailedEventKeptUntilHandled() throws Exception {
+        WorkLogGapTracker tracker = new WorkLogGapTracker(10, 100);
+        tracker.pageFetched(10, events(12));
+        WorkLogUnit late = events(11).get(0);
+        tracker.failed(late, false);
+        //The failed event is no longer a gap, and does not expire with the window, but waits for the backoff
+        Thread.sleep(50);
+        assertEquals(Collections.<Long>emptyList(), tracker.getOpenGaps());
+        assertEquals(Collections.<WorkLogUnit>emptyList(), tracker.getFailedEvents());
+        assertEquals(11L, tracker.getLowestKey());
+        Thread.sleep(WorkLogGapTracker.RETRY_BACKOFF);
+        assertEquals(Collections.singletonList(late), tracker.getFailedEvents());
+        assertEquals(Collections.<WorkLogUnit>emptyList(), tracker.getQuarantinedEvents());
+        assertEquals(0, tracker.getExpiredGaps());
+        tracker.filled(Collections.singletonList(11L));
+        assertEquals(Collections.<WorkLogUnit>emptyList(), tracker.getFailedEvents());
+        assertEquals(1, tracker.getFilledGaps());
+    }
+
+    @Test
+    public void testQuarantinedEventBacksOff() throws Exception {
+        WorkLogGapTracker tracker = new WorkLogGapTracker(60000, 100);
+        tracker.pageFetched(10, events(12));
+        WorkLogUnit late = events(11).get(0);
+        tracker.failed(late, true);
+        //The event is kept in quarantine, so the worklog is not needed for it
+        assertEquals(Long.MAX_VALUE, tracker.getLowestKey());
+        Thread.sleep(WorkLogGapTracker.RETRY_BACKOFF + 50);
+        assertEquals(Collections.singletonList(late), tracker.getQuarantinedEvents());
+        assertEquals(Collections.<WorkLogUnit>emptyList(), tracker.getFailedEvents());
+        //Failing again doubles the delay
+        tracker.failed(late, true);
+        Thread.sleep(WorkLogGapTracker.RETRY_BACKOFF + 50);
+        assertEquals(Collections.<WorkLogUnit>emptyList(), tracker.getQuarantinedEvents());
+        Thread.sleep(WorkLogGapTracker.RETRY_BACKOFF);
+        assertEquals(Collections.singletonList(late), tracker.getQuarantinedEvents());
+    }
+
+    @Test
+    public void testBoundedGaps() throws Exception {
+        WorkLogGapTracker tracker = new WorkLogGapTracker(60000, 3);
+        //Before the first event, the missing keys are not gaps
+        tracker.pageFetched(0, events(100));
+        assertEquals(Collections.<Long>emptyList(), tracker.getOpenGaps());
+        //Only the top of a wide hole is remembered
+        tracker.pageFetched(100, events(1000));
+        assertEquals(Arrays.asList(997L, 998L, 999L), tracker.getOpenGaps());
+        //The oldest gaps are forgotten first
+        tracker.pageFetched(1000, events(1002));
+        assertEquals(Arrays.asList(998L, 999L, 1001L), tracker.getOpenGaps());
+    }
+}
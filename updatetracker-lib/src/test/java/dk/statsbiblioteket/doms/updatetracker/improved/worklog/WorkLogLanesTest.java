@@ -0,0 +1,102 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.worklog;
+
+import dk.statsbiblioteket.doms.updatetracker.improved.database.UpdateTrackerStorageException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static dk.statsbiblioteket.doms.updatetracker.improved.database.TestHelpers.event;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WorkLogLanesTest {
+
+    private WorkLogLanes lanes;
+
+    @Before
+    public void setUp() throws Exception {
+        //The pages of the edition are in different lanes
+        lanes = new WorkLogLanes(2, Executors.defaultThreadFactory()) {
+            @Override
+            protected int getLane(String pid) {
+                return pid.endsWith("1") ? 0 : 1;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        lanes.close();
+    }
+
+    @Test
+    public void testStructuralEventsOfOneViewBundleInOrder() throws Exception {
+        final List<Long> handled = Collections.synchronizedList(new ArrayList<Long>());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger overlapping = new AtomicInteger();
+        //Both date changes must be running at the same time to get past this
+        final CountDownLatch dates = new CountDownLatch(2);
+        List<WorkLogUnit> events = Arrays.asList(
+                event(1, "modifyDatastreamByValue", "doms:page1", "RELS-EXT"),
+                event(2, "addRelationship", "doms:page2", null),
+                event(3, "modifyDatastreamByValue", "doms:page1", "DC"),
+                event(4, "modifyDatastreamByValue", "doms:page2", "DC"),
+                event(5, "purgeObject", "doms:page2", null));
+        long watermark = lanes.handle(events, 0, new WorkLogLanes.EventHandler() {
+            @Override
+            public void handle(WorkLogUnit event) throws UpdateTrackerStorageException {
+                if (running.incrementAndGet() > 1 && !"DC".equals(event.getParam())) {
+                    overlapping.incrementAndGet();
+                }
+                try {
+                    if ("DC".equals(event.getParam())) {
+                        dates.countDown();
+                        assertTrue(dates.await(10, TimeUnit.SECONDS));
+                    } else {
+                        Thread.sleep(50);
+                    }
+                } catch (InterruptedException e) {
+                    throw new UpdateTrackerStorageException("interrupted", e);
+                }
+                if (running.get() > 1 && !"DC".equals(event.getParam())) {
+                    overlapping.incrementAndGet();
+                }
+                handled.add(event.getKey());
+                running.decrementAndGet();
+            }
+        });
+        assertEquals(5, watermark);
+        assertEquals(0, overlapping.get());
+        assertEquals(Arrays.asList(1L, 2L), handled.subList(0, 2));
+        assertEquals(5L, (long) handled.get(4));
+    }
+
+    @Test
+    public void testFailedStructuralEventStopsTheRest() throws Exception {
+        final List<Long> handled = Collections.synchronizedList(new ArrayList<Long>());
+        List<WorkLogUnit> events = Arrays.asList(
+                event(1, "modifyDatastreamByValue", "doms:page1", "DC"),
+                event(2, "addRelationship", "doms:page2", null),
+                event(3, "modifyDatastreamByValue", "doms:page1", "DC"));
+        long watermark = lanes.handle(events, 0, new WorkLogLanes.EventHandler() {
+            @Override
+            public void handle(WorkLogUnit event) throws UpdateTrackerStorageException {
+                if (event.getKey() == 2) {
+                    throw new UpdateTrackerStorageException("The database is down");
+                }
+                handled.add(event.getKey());
+            }
+        });
+        assertEquals(1, watermark);
+        assertEquals(Collections.singletonList(1L), handled);
+    }
+}
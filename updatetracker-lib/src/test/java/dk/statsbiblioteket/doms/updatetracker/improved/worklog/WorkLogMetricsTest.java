@@ -0,0 +1,119 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.worklog;
+
+import dk.statsbiblioteket.doms.updatetracker.improved.database.UpdateTrackerPersistentStore;
+import dk.statsbiblioteket.doms.updatetracker.improved.database.UpdateTrackerStorageException;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static dk.statsbiblioteket.doms.updatetracker.improved.database.TestHelpers.event;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WorkLogMetricsTest {
+
+    @Test
+    public void testCountersAndHistograms() throws Exception {
+        WorkLogMetrics metrics = new WorkLogMetrics();
+        metrics.pageFetched(Arrays.asList(event(1, "ingest", "doms:1", null),
+                                          event(2, "purgeObject", "doms:1", null),
+                                          event(3, "ingest", "doms:1", null)),
+                            TimeUnit.MILLISECONDS.toNanos(20));
+        metrics.eventApplied(TimeUnit.MILLISECONDS.toNanos(1));
+        metrics.eventApplied(TimeUnit.MILLISECONDS.toNanos(3));
+        metrics.eventApplied(TimeUnit.MILLISECONDS.toNanos(3000));
+
+        assertEquals(2L, (long) metrics.getFetchedEventsByMethod().get("ingest"));
+        assertEquals(1L, (long) metrics.getFetchedEventsByMethod().get("purgeObject"));
+        assertEquals(1, metrics.getPageFetches());
+        assertEquals(20.0, metrics.getPageFetchMeanMillis(), 0.001);
+        assertEquals(3, metrics.getAppliedEvents());
+        assertEquals(3004.0 / 3, metrics.getApplyMeanMillis(), 0.001);
+
+        StringWriter writer = new StringWriter();
+        metrics.writePrometheus(writer);
+        String text = writer.toString();
+        assertTrue(text, text.contains("updatetracker_worklog_fetched_events_total{method=\"ingest\"} 2\n"));
+        assertTrue(text, text.contains("updatetracker_worklog_page_fetch_seconds_bucket{le=\"0.025\"} 1\n"));
+        assertTrue(text, text.contains("updatetracker_worklog_apply_seconds_bucket{le=\"0.005\"} 2\n"));
+        assertTrue(text, text.contains("updatetracker_worklog_apply_seconds_bucket{le=\"2.5\"} 2\n"));
+        assertTrue(text, text.contains("updatetracker_worklog_apply_seconds_bucket{le=\"5.0\"} 3\n"));
+        assertTrue(text, text.contains("updatetracker_worklog_apply_seconds_count 3\n"));
+        //No databases, so the lag is unknown
+        assertTrue(text, text.contains("updatetracker_worklog_key_lag -1.0\n"));
+    }
+
+    @Test
+    public void testHistogramBoundsAreExact() throws Exception {
+        WorkLogMetrics.LatencyHistogram histogram = new WorkLogMetrics.LatencyHistogram();
+        histogram.observe(TimeUnit.MICROSECONDS.toNanos(1000));
+        histogram.observe(TimeUnit.MICROSECONDS.toNanos(1900));
+        histogram.observe(TimeUnit.MICROSECONDS.toNanos(5000));
+        histogram.observe(TimeUnit.MICROSECONDS.toNanos(5001));
+
+        StringWriter writer = new StringWriter();
+        histogram.writePrometheus(writer, "latency", "test");
+        String text = writer.toString();
+        assertTrue(text, text.contains("latency_bucket{le=\"0.001\"} 1\n"));
+        assertTrue(text, text.contains("latency_bucket{le=\"0.005\"} 3\n"));
+        assertTrue(text, text.contains("latency_bucket{le=\"0.01\"} 4\n"));
+    }
+
+    @Test
+    public void testHeldBackCountedWhenEventsAreFound() throws Exception {
+        WorkLogPollDAO dao = mock(WorkLogPollDAO.class);
+        when(dao.getHeldBackEvents(0L, 0)).thenReturn(3L);
+        WorkLogPollTask task = new WorkLogPollTask(dao, mock(UpdateTrackerPersistentStore.class), 10, 0);
+        //The first idle poll counts, the next waits for the interval
+        assertEquals(0, task.poll());
+        assertEquals(0, task.poll());
+        verify(dao, times(1)).getHeldBackEvents(0L, 0);
+        assertEquals(3, task.getHeldBackEvents());
+
+        when(dao.getFedoraEvents(0L, 10, 0)).thenReturn(Arrays.asList(event(1, "ingest", "doms:1", null)));
+        when(dao.getHeldBackEvents(1L, 0)).thenReturn(0L);
+        assertEquals(1, task.poll());
+        verify(dao).getHeldBackEvents(1L, 0);
+        assertEquals(0, task.getHeldBackEvents());
+    }
+
+    @Test
+    public void testHeldBackCountedFromRegisteredKey() throws Exception {
+        WorkLogPollDAO dao = mock(WorkLogPollDAO.class);
+        UpdateTrackerPersistentStore store = mock(UpdateTrackerPersistentStore.class);
+        List<WorkLogUnit> events = Arrays.asList(event(1, "ingest", "doms:1", null));
+        when(dao.getFedoraEvents(0L, 10, 0)).thenReturn(events);
+        doThrow(new UpdateTrackerStorageException("test")).when(store).eventsHappened(events);
+        WorkLogPollTask task = new WorkLogPollTask(dao, store, 10, 0);
+        assertEquals(1, task.poll());
+        //The failed event is not registered, so it is counted as held back
+        verify(dao).getHeldBackEvents(0L, 0);
+        verify(dao, never()).getHeldBackEvents(1L, 0);
+    }
+
+    @Test
+    public void testLag() throws Exception {
+        WorkLogPollDAO dao = mock(WorkLogPollDAO.class);
+        UpdateTrackerPersistentStore store = mock(UpdateTrackerPersistentStore.class);
+        when(dao.getMaxKey()).thenReturn(1500L);
+        when(store.getLatestKey()).thenReturn(1000L);
+        when(dao.getNextHappened(1000L)).thenReturn(new Date(System.currentTimeMillis() - 60000));
+        WorkLogMetrics metrics = new WorkLogMetrics(dao, store);
+        assertEquals(500, metrics.getKeyLag());
+        long timeLag = metrics.getTimeLag();
+        assertTrue("" + timeLag, timeLag >= 60000 && timeLag < 70000);
+
+        when(dao.getNextHappened(1000L)).thenReturn(null);
+        assertEquals(0, metrics.getTimeLag());
+    }
+}
@@ -3,20 +3,34 @@ package dk.statsbiblioteket.doms.updatetracker.improved.worklog;
 import dk.statsbiblioteket.doms.updatetracker.improved.UpdateTrackingConfig;
 import dk.statsbiblioteket.doms.updatetracker.improved.database.UpdateTrackerPersistentStore;
 import dk.statsbiblioteket.doms.updatetracker.improved.database.UpdateTrackerPersistentStoreImpl;
+import dk.statsbiblioteket.doms.updatetracker.improved.database.UpdateTrackerStorageException;
 import org.junit.Test;
-import org.mockito.InOrder;
+import org.mockito.ArgumentCaptor;
 
 import java.io.File;
-import java.util.Date;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
-import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
 
 public class WorkLogPollIT {
 
@@ -49,6 +63,7 @@ public class WorkLogPollIT {
         //We expect no work units to be found, as the recently created entry should be to young
         verify(persistentStore).getLatestKey();
         verifyNoMoreInteractions(persistentStore);
+        assertEquals(1, pollTask.getHeldBackEvents());
 
         //Reset the mock so the verifys start from 0 again
         reset(persistentStore);
@@ -58,8 +73,11 @@ public class WorkLogPollIT {
         pollTask.run();
         verify(persistentStore).getLatestKey();
         //This time we expect the event to be found
-        verify(persistentStore).datastreamChanged(eq("doms:testpid"), any(Date.class), eq("EVENTS"), eq(1L));
+        List<WorkLogUnit> events = captureEvents(persistentStore);
+        assertEquals(1, events.size());
+        assertEvent(events.get(0), 1L, "doms:testpid", "modifyDatastreamByReference", "EVENTS");
         verifyNoMoreInteractions(persistentStore);
+        assertEquals(0, pollTask.getHeldBackEvents());
 
     }
 
@@ -108,13 +126,486 @@ public class WorkLogPollIT {
         WorkLogPollTask pollTask = new WorkLogPollTask(workLogPollDAO, persistentStore, 10, 100);
 
         pollTask.run();
-        InOrder order = inOrder(persistentStore);
         verify(persistentStore).getLatestKey();
         //Verify that the operations are found in order, even when the happened is out of order
-        order.verify(persistentStore).datastreamChanged(eq("doms:testpid"), any(Date.class), eq("EVENTS"), eq(1L));
-        order.verify(persistentStore).datastreamChanged(eq("doms:testpid"), any(Date.class), eq("EVENTS"), eq(2L));
-        order.verify(persistentStore).objectCreated(eq("doms:testpid"), any(Date.class), eq(3L));
+        List<WorkLogUnit> events = captureEvents(persistentStore);
+        assertEquals(3, events.size());
+        assertEvent(events.get(0), 1L, "doms:testpid", "modifyDatastreamByReference", "EVENTS");
+        assertEvent(events.get(1), 2L, "doms:testpid", "modifyDatastreamByReference", "EVENTS");
+        assertEvent(events.get(2), 3L, "doms:testpid", "ingest", null);
         verifyNoMoreInteractions(persistentStore);
 
     }
+
+    /**
+     * This test tests that the events can be read through a streaming cursor, in pages of limit events
+     * @throws Exception
+     */
+    @Test
+    public void testStreamingCursor() throws Exception {
+        Properties props = new Properties();
+        props.load(Thread.currentThread().getContextClassLoader().getResourceAsStream("test.properties"));
+        UpdateTrackingConfig config = new UpdateTrackingConfig(props);
+
+        //Create the worklog table in the docker postgres database
+        Database.init(config.getFedoraDatabaseURL(),
+                config.getFedoraDatabaseUsername(),
+                config.getFedoraDatabasePassword());
+        Database.executeSQL(new File(Thread.currentThread().getContextClassLoader().getResource("updatetrackerLogs.ddl").toURI()));
+        Database.executeSQL(
+                "INSERT INTO public.updatetrackerlogs (key, pid, happened, method, param) VALUES (1, 'doms:testpid1', NOW(), 'modifyDatastreamByReference', 'EVENTS');\n" +
+                "INSERT INTO public.updatetrackerlogs (key, pid, happened, method, param) VALUES (2, 'doms:testpid2', NOW(), 'modifyDatastreamByReference', 'EVENTS');\n" +
+                "INSERT INTO public.updatetrackerlogs (key, pid, happened, method, param) VALUES (3, 'doms:testpid3', NOW(), 'modifyDatastreamByReference', 'EVENTS');\n");
+        Thread.sleep(1000);
+
+        //Mock the thing that the workLogpoller calls
+        UpdateTrackerPersistentStore persistentStore = mock(UpdateTrackerPersistentStoreImpl.class);
+
+        //Create the worklog dao
+        WorkLogPollDAO workLogPollDAO = new WorkLogPollDAO(
+                config.getFedoraDatabaseDriver(),
+                config.getFedoraDatabaseURL(),
+                config.getFedoraDatabaseUsername(),
+                config.getFedoraDatabasePassword());
+
+        //Pages of 2 events, streamed through a cursor over at most 10 events
+        WorkLogPollTask pollTask = new WorkLogPollTask(workLogPollDAO, persistentStore, 2, 100, 2, 10, null, null,
+                                                       null, null, new WorkLogMetrics(), null, null);
+        assertEquals(3, pollTask.poll());
+        verify(persistentStore).getLatestKey();
+        ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+        verify(persistentStore, times(2)).eventsHappened(captor.capture());
+        assertEquals(2, captor.getAllValues().get(0).size());
+        assertEquals(1, captor.getAllValues().get(1).size());
+        assertEvent((WorkLogUnit) captor.getAllValues().get(1).get(0), 3L, "doms:testpid3",
+                    "modifyDatastreamByReference", "EVENTS");
+        verifyNoMoreInteractions(persistentStore);
+    }
+
+    /**
+     * This test tests that an event committed after an event with a higher key is found in the gap, and handled
+     * @throws Exception
+     */
+    @Test
+    public void testGapFilled() throws Exception {
+        Properties props = new Properties();
+        props.load(Thread.currentThread().getContextClassLoader().getResourceAsStream("test.properties"));
+        UpdateTrackingConfig config = new UpdateTrackingConfig(props);
+
+        //Create the worklog table in the docker postgres database
+        Database.init(config.getFedoraDatabaseURL(),
+                config.getFedoraDatabaseUsername(),
+                config.getFedoraDatabasePassword());
+        Database.executeSQL(new File(Thread.currentThread().getContextClassLoader().getResource("updatetrackerLogs.ddl").toURI()));
+        Database.executeSQL(
+                "INSERT INTO public.updatetrackerlogs (key, pid, happened, method, param) VALUES (1, 'doms:testpid1', NOW(), 'modifyDatastreamByReference', 'EVENTS');\n" +
+                "INSERT INTO public.updatetrackerlogs (key, pid, happened, method, param) VALUES (3, 'doms:testpid3', NOW(), 'modifyDatastreamByReference', 'EVENTS');\n");
+        Thread.sleep(1000);
+
+        //Mock the thing that the workLogpoller calls
+        UpdateTrackerPersistentStore persistentStore = mock(UpdateTrackerPersistentStoreImpl.class);
+        when(persistentStore.getLatestKey()).thenReturn(0L);
+
+        //Create the worklog dao
+        WorkLogPollDAO workLogPollDAO = new WorkLogPollDAO(
+                config.getFedoraDatabaseDriver(),
+                config.getFedoraDatabaseURL(),
+                config.getFedoraDatabaseUsername(),
+                config.getFedoraDatabasePassword());
+
+        WorkLogPollTask pollTask = new WorkLogPollTask(workLogPollDAO, persistentStore, 1, 100, 1, 0, null, null,
+                                                       null, null, new WorkLogMetrics(), null,
+                                                       new WorkLogGapTracker(60000, 100));
+        //Key 1 is found, key 3 leaves a gap at key 2
+        assertEquals(2, pollTask.poll());
+
+        //Key 2 is committed late
+        Database.executeSQL(
+                "INSERT INTO public.updatetrackerlogs (key, pid, happened, method, param) VALUES (2, 'doms:testpid2', NOW(), 'modifyDatastreamByReference', 'EVENTS');\n");
+        Thread.sleep(1000);
+        reset(persistentStore);
+        when(persistentStore.getLatestKey()).thenReturn(3L);
+        assertEquals(1, pollTask.poll());
+        //The late event is handled without touching the latest key
+        ArgumentCaptor<WorkLogUnit> captor = ArgumentCaptor.forClass(WorkLogUnit.class);
+        verify(persistentStore).eventHappened(captor.capture(), eq(UpdateTrackerPersistentStore.KEY_UNCHANGED));
+        assertEvent(captor.getValue(), 2L, "doms:testpid2", "modifyDatastreamByReference", "EVENTS");
+        workLogPollDAO.close();
+    }
+
+    @Test
+    public void testGapEventFailed() throws Exception {
+        Properties props = new Properties();
+        props.load(Thread.currentThread().getContextClassLoader().getResourceAsStream("test.properties"));
+        UpdateTrackingConfig config = new UpdateTrackingConfig(props);
+
+        //Create the worklog table in the docker postgres database
+        Database.init(config.getFedoraDatabaseURL(),
+                config.getFedoraDatabaseUsername(),
+                config.getFedoraDatabasePassword());
+        Database.executeSQL(new File(Thread.currentThread().getContextClassLoader().getResource("updatetrackerLogs.ddl").toURI()));
+        Database.executeSQL(
+                "INSERT INTO public.updatetrackerlogs (key, pid, happened, method, param) VALUES (1, 'doms:testpid1', NOW(), 'modifyDatastreamByReference', 'EVENTS');\n" +
+                "INSERT INTO public.updatetrackerlogs (key, pid, happened, method, param) VALUES (3, 'doms:testpid3', NOW(), 'modifyDatastreamByReference', 'EVENTS');\n");
+        Thread.sleep(1000);
+
+        //Mock the thing that the workLogpoller calls
+        UpdateTrackerPersistentStore persistentStore = mock(UpdateTrackerPersistentStoreImpl.class);
+        when(persistentStore.getLatestKey()).thenReturn(0L);
+
+        //Create the worklog dao
+        WorkLogPollDAO workLogPollDAO = new WorkLogPollDAO(
+                config.getFedoraDatabaseDriver(),
+                config.getFedoraDatabaseURL(),
+                config.getFedoraDatabaseUsername(),
+                config.getFedoraDatabasePassword());
+
+        //A short window, so the gap would be given up on, if the failed event was not kept
+        WorkLogPollTask pollTask = new WorkLogPollTask(workLogPollDAO, persistentStore, 1, 100, 1, 0, null, null,
+                                                       null, null, new WorkLogMetrics(), null,
+                                                       new WorkLogGapTracker(500, 100));
+        //Key 1 is found, key 3 leaves a gap at key 2
+        assertEquals(2, pollTask.poll());
+
+        //Key 2 is committed late, and fails the first time
+        Database.executeSQL(
+                "INSERT INTO public.updatetrackerlogs (key, pid, happened, method, param) VALUES (2, 'doms:testpid2', NOW(), 'modifyDatastreamByReference', 'EVENTS');\n");
+        Thread.sleep(200);
+        reset(persistentStore);
+        when(persistentStore.getLatestKey()).thenReturn(3L);
+        doThrow(new UpdateTrackerStorageException("fail")).when(persistentStore)
+                .eventHappened(any(WorkLogUnit.class), eq(UpdateTrackerPersistentStore.KEY_UNCHANGED));
+        assertEquals(1, pollTask.poll());
+        //It is stored in quarantine, so it is not lost if we are stopped
+        ArgumentCaptor<WorkLogUnit> captor = ArgumentCaptor.forClass(WorkLogUnit.class);
+        verify(persistentStore).eventQuarantined(captor.capture(), eq(1), any(Exception.class),
+                                                 eq(UpdateTrackerPersistentStore.KEY_UNCHANGED));
+        assertEvent(captor.getValue(), 2L, "doms:testpid2", "modifyDatastreamByReference", "EVENTS");
+
+        //Not tried again before the backoff
+        reset(persistentStore);
+        when(persistentStore.getLatestKey()).thenReturn(3L);
+        assertEquals(0, pollTask.poll());
+        verify(persistentStore, never()).quarantinedEventReplayed(anyLong());
+
+        //The window has passed, but the failed event is tried again from quarantine, and handled
+        Thread.sleep(WorkLogGapTracker.RETRY_BACKOFF);
+        reset(persistentStore);
+        when(persistentStore.getLatestKey()).thenReturn(3L);
+        when(persistentStore.quarantinedEventReplayed(2L)).thenReturn(true);
+        assertEquals(1, pollTask.poll());
+        verify(persistentStore).quarantinedEventReplayed(2L);
+
+        //And not again
+        reset(persistentStore);
+        when(persistentStore.getLatestKey()).thenReturn(3L);
+        assertEquals(0, pollTask.poll());
+        verify(persistentStore, never()).eventHappened(any(WorkLogUnit.class), anyLong());
+        verify(persistentStore, never()).quarantinedEventReplayed(anyLong());
+        workLogPollDAO.close();
+    }
+
+    /**
+     * This test tests that handled events can be moved from the worklog to an archive table
+     * @throws Exception
+     */
+    @Test
+    public void testPruneEvents() throws Exception {
+        Properties props = new Properties();
+        props.load(Thread.currentThread().getContextClassLoader().getResourceAsStream("test.properties"));
+        UpdateTrackingConfig config = new UpdateTrackingConfig(props);
+
+        //Create the worklog table in the docker postgres database
+        Database.init(config.getFedoraDatabaseURL(),
+                config.getFedoraDatabaseUsername(),
+                config.getFedoraDatabasePassword());
+        Database.executeSQL(new File(Thread.currentThread().getContextClassLoader().getResource("updatetrackerLogs.ddl").toURI()));
+        Database.executeSQL(
+                "DROP TABLE IF EXISTS updatetrackerlogsarchive;\n" +
+                "CREATE TABLE updatetrackerlogsarchive (LIKE updatetrackerlogs);\n" +
+                "INSERT INTO public.updatetrackerlogs (key, pid, happened, method, param, state) VALUES (1, 'doms:testpid1', NOW(), 'modifyDatastreamByReference', 'EVENTS', 2);\n" +
+                "INSERT INTO public.updatetrackerlogs (key, pid, happened, method, param) VALUES (2, 'doms:testpid2', NOW(), 'modifyDatastreamByReference', 'EVENTS');\n" +
+                "INSERT INTO public.updatetrackerlogs (key, pid, happened, method, param) VALUES (3, 'doms:testpid3', NOW(), 'modifyDatastreamByReference', 'EVENTS');\n");
+
+        //Create the worklog dao
+        WorkLogPollDAO workLogPollDAO = new WorkLogPollDAO(
+                config.getFedoraDatabaseDriver(),
+                config.getFedoraDatabaseURL(),
+                config.getFedoraDatabaseUsername(),
+                config.getFedoraDatabasePassword());
+
+        assertEquals(1, workLogPollDAO.pruneEvents(2, -1000, 1, "updatetrackerlogsarchive"));
+        assertEquals(1, workLogPollDAO.pruneEvents(2, -1000, 1, "updatetrackerlogsarchive"));
+        assertEquals(0, workLogPollDAO.pruneEvents(2, -1000, 1, "updatetrackerlogsarchive"));
+
+        List<WorkLogUnit> events = workLogPollDAO.getFedoraEvents(0L, 10, -1000);
+        assertEquals(1, events.size());
+        assertEvent(events.get(0), 3L, "doms:testpid3", "modifyDatastreamByReference", "EVENTS");
+        try (Connection conn = workLogPollDAO.getConnection();
+             Statement statement = conn.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT count(*) FROM updatetrackerlogsarchive")) {
+            resultSet.next();
+            assertEquals(2, resultSet.getInt(1));
+        }
+        //The failed operation is still failed in the archive
+        try (Connection conn = workLogPollDAO.getConnection();
+             Statement statement = conn.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT state FROM updatetrackerlogsarchive WHERE key = 1")) {
+            resultSet.next();
+            assertEquals(2, resultSet.getInt(1));
+        }
+        workLogPollDAO.close();
+    }
+
+    /**
+     * This test tests that events marked failed by the fedora hook are skipped, while pending events and events from
+     * before the state column are not
+     * @throws Exception
+     */
+    @Test
+    public void testFailedEventsSkipped() throws Exception {
+        Properties props = new Properties();
+        props.load(Thread.currentThread().getContextClassLoader().getResourceAsStream("test.properties"));
+        UpdateTrackingConfig config = new UpdateTrackingConfig(props);
+
+        //Create the worklog table in the docker postgres database
+        Database.init(config.getFedoraDatabaseURL(),
+                config.getFedoraDatabaseUsername(),
+                config.getFedoraDatabasePassword());
+        Database.executeSQL(new File(Thread.currentThread().getContextClassLoader().getResource("updatetrackerLogs.ddl").toURI()));
+        Database.executeSQL(
+                "INSERT INTO public.updatetrackerlogs (key, pid, happened, method, param, state) VALUES (1, 'doms:testpid1', NOW(), 'modifyDatastreamByReference', 'EVENTS', 0);\n" +
+                "INSERT INTO public.updatetrackerlogs (key, pid, happened, method, param, state) VALUES (2, 'doms:testpid2', NOW(), 'purgeObject', NULL, 2);\n" +
+                "INSERT INTO public.updatetrackerlogs (key, pid, happened, method, param, state) VALUES (3, 'doms:testpid3', NOW(), 'modifyDatastreamByReference', 'EVENTS', NULL);\n" +
+                "INSERT INTO public.updatetrackerlogs (key, pid, happened, method, param, state) VALUES (4, 'doms:testpid4', NOW(), 'ingest', NULL, 2);\n");
+
+        //Create the worklog dao
+        WorkLogPollDAO workLogPollDAO = new WorkLogPollDAO(
+                config.getFedoraDatabaseDriver(),
+                config.getFedoraDatabaseURL(),
+                config.getFedoraDatabaseUsername(),
+                config.getFedoraDatabasePassword());
+
+        List<WorkLogUnit> events = workLogPollDAO.getFedoraEvents(0L, 10, -1000);
+        assertEquals(2, events.size());
+        assertEvent(events.get(0), 1L, "doms:testpid1", "modifyDatastreamByReference", "EVENTS");
+        assertEvent(events.get(1), 3L, "doms:testpid3", "modifyDatastreamByReference", "EVENTS");
+        //The failed purge does not make the compaction skip the events of the object
+        assertEquals(0, workLogPollDAO.getPurgedObjects(0L, 3L, -1000).size());
+        //The failed events do not count in the lag
+        assertEquals(3L, workLogPollDAO.getMaxKey());
+        assertNull(workLogPollDAO.getNextHappened(3L));
+        workLogPollDAO.close();
+    }
+
+    /**
+     * This test tests that a worklog from before the state column is read, as if no event failed
+     * @throws Exception
+     */
+    @Test
+    public void testWorklogWithoutStateColumn() throws Exception {
+        Properties props = new Properties();
+        props.load(Thread.currentThread().getContextClassLoader().getResourceAsStream("test.properties"));
+        UpdateTrackingConfig config = new UpdateTrackingConfig(props);
+
+        //Create the worklog table in the docker postgres database, as it was before the state column
+        Database.init(config.getFedoraDatabaseURL(),
+                config.getFedoraDatabaseUsername(),
+                config.getFedoraDatabasePassword());
+        Database.executeSQL(new File(Thread.currentThread().getContextClassLoader().getResource("updatetrackerLogs.ddl").toURI()));
+        Database.executeSQL(
+                "ALTER TABLE public.updatetrackerlogs DROP COLUMN state;\n" +
+                "INSERT INTO public.updatetrackerlogs (key, pid, happened, method, param) VALUES (1, 'doms:testpid1', NOW(), 'modifyDatastreamByReference', 'EVENTS');\n" +
+                "INSERT INTO public.updatetrackerlogs (key, pid, happened, method, param) VALUES (2, 'doms:testpid2', NOW(), 'purgeObject', NULL);\n");
+
+        //Create the worklog dao
+        WorkLogPollDAO workLogPollDAO = new WorkLogPollDAO(
+                config.getFedoraDatabaseDriver(),
+                config.getFedoraDatabaseURL(),
+                config.getFedoraDatabaseUsername(),
+                config.getFedoraDatabasePassword());
+
+        List<WorkLogUnit> events = workLogPollDAO.getFedoraEvents(0L, 10, -1000);
+        assertEquals(2, events.size());
+        assertEvent(events.get(0), 1L, "doms:testpid1", "modifyDatastreamByReference", "EVENTS");
+        assertEvent(events.get(1), 2L, "doms:testpid2", "purgeObject", null);
+        assertEquals(2L, (long) workLogPollDAO.getPurgedObjects(0L, 2L, -1000).get("doms:testpid2"));
+        assertEquals(2L, workLogPollDAO.getMaxKey());
+        assertNotNull(workLogPollDAO.getNextHappened(1L));
+        workLogPollDAO.close();
+    }
+
+    /**
+     * This test tests that the events in the compact version of the worklog are decoded
+     * @throws Exception
+     */
+    @Test
+    public void testCompactWorklog() throws Exception {
+        Properties props = new Properties();
+        props.load(Thread.currentThread().getContextClassLoader().getResourceAsStream("test.properties"));
+        UpdateTrackingConfig config = new UpdateTrackingConfig(props);
+
+        //Create the compact worklog tables in the docker postgres database
+        Database.init(config.getFedoraDatabaseURL(),
+                config.getFedoraDatabaseUsername(),
+                config.getFedoraDatabasePassword());
+        Database.executeSQL(new File(Thread.currentThread().getContextClassLoader().getResource("updatetrackerLogsCompact.ddl").toURI()));
+        Database.executeSQL(
+                "INSERT INTO public.updatetrackerlogs (key, pid, happened, method, param) VALUES (1, 'doms:testpid1', NOW(), 5, 1);\n" +
+                "INSERT INTO public.updatetrackerlogs (key, pid, happened, method, param) VALUES (2, 'doms:testpid2', NOW(), 1, NULL);\n" +
+                "INSERT INTO public.updatetrackerlogs (key, pid, happened, method, param) VALUES (3, 'doms:testpid2', NOW(), 3, NULL);\n");
+
+        //Create the worklog dao
+        WorkLogPollDAO workLogPollDAO = new WorkLogPollDAO(
+                config.getFedoraDatabaseDriver(),
+                config.getFedoraDatabaseURL(),
+                config.getFedoraDatabaseUsername(),
+                config.getFedoraDatabasePassword());
+
+        List<WorkLogUnit> events = workLogPollDAO.getFedoraEvents(0L, 10, -1000);
+        assertEquals(3, events.size());
+        assertEvent(events.get(0), 1L, "doms:testpid1", "modifyDatastreamByReference", "EVENTS");
+        assertEvent(events.get(1), 2L, "doms:testpid2", "ingest", null);
+        assertEvent(events.get(2), 3L, "doms:testpid2", "purgeObject", null);
+        try (WorkLogCursor cursor = workLogPollDAO.openFedoraEvents(1L, 10, -1000, 1)) {
+            assertEquals(2, cursor.next(10).size());
+        }
+        assertEquals(3L, (long) workLogPollDAO.getPurgedObjects(0L, 3L, -1000).get("doms:testpid2"));
+
+        //The archived events are decoded
+        Database.executeSQL("DROP TABLE IF EXISTS updatetrackerlogsarchive;\n" +
+                            "CREATE TABLE updatetrackerlogsarchive (key BIGINT, pid VARCHAR(64), happened TIMESTAMPTZ, " +
+                            "method VARCHAR(64), param VARCHAR(255), state SMALLINT);\n");
+        assertEquals(1, workLogPollDAO.pruneEvents(1, -1000, 10, "updatetrackerlogsarchive"));
+        try (Connection conn = workLogPollDAO.getConnection();
+             Statement statement = conn.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT method, param FROM updatetrackerlogsarchive")) {
+            resultSet.next();
+            assertEquals("modifyDatastreamByReference", resultSet.getString(1));
+            assertEquals("EVENTS", resultSet.getString(2));
+        }
+        workLogPollDAO.close();
+    }
+
+    @Test
+    public void testDirtySummary() throws Exception {
+        Properties props = new Properties();
+        props.load(Thread.currentThread().getContextClassLoader().getResourceAsStream("test.properties"));
+        UpdateTrackingConfig config = new UpdateTrackingConfig(props);
+
+        //Create the worklog and summary tables in the docker postgres database
+        Database.init(config.getFedoraDatabaseURL(),
+                config.getFedoraDatabaseUsername(),
+                config.getFedoraDatabasePassword());
+        Database.executeSQL(new File(Thread.currentThread().getContextClassLoader().getResource("updatetrackerLogs.ddl").toURI()));
+        Database.executeSQL(new File(Thread.currentThread().getContextClassLoader().getResource("updatetrackerDirtyPids.ddl").toURI()));
+        Database.executeSQL(
+                "INSERT INTO public.updatetrackerlogs (key, pid, happened, method, param) VALUES (1, 'doms:testpid3', NOW() - interval '10 seconds', 'modifyDatastreamByValue', 'DC');\n" +
+                "INSERT INTO public.updatetrackerlogs (key, pid, happened, method, param) VALUES (2, 'doms:testpid1', NOW() - interval '10 seconds', 'modifyDatastreamByValue', 'DC');\n" +
+                "INSERT INTO public.updatetrackerlogs (key, pid, happened, method, param) VALUES (3, 'doms:testpid2', NOW() - interval '10 seconds', 'purgeObject', NULL);\n" +
+                "INSERT INTO public.updatetrackerdirtypids (pid, lastkey, lasthappened, classes) VALUES ('doms:testpid3', 1, NOW() - interval '10 seconds', 4);\n" +
+                "INSERT INTO public.updatetrackerdirtypids (pid, lastkey, lasthappened, classes) VALUES ('doms:testpid1', 2, NOW() - interval '10 seconds', 4);\n" +
+                "INSERT INTO public.updatetrackerdirtypids (pid, lastkey, lasthappened, classes) VALUES ('doms:testpid2', 3, NOW() - interval '10 seconds', 8);\n");
+
+        //Mock the thing that the workLogpoller calls, with the first key as handled already
+        UpdateTrackerPersistentStore persistentStore = mock(UpdateTrackerPersistentStoreImpl.class);
+        when(persistentStore.getLatestKey()).thenReturn(1L);
+
+        //Create the worklog dao
+        WorkLogPollDAO workLogPollDAO = new WorkLogPollDAO(
+                config.getFedoraDatabaseDriver(),
+                config.getFedoraDatabaseURL(),
+                config.getFedoraDatabaseUsername(),
+                config.getFedoraDatabasePassword());
+
+        WorkLogPollTask pollTask = new WorkLogPollTask(workLogPollDAO, persistentStore, 10, 1000, 10, 0, null, null,
+                                                       null, null, new WorkLogMetrics(), null, null,
+                                                       new WorkLogDirtySummary(workLogPollDAO), null);
+        pollTask.run();
+
+        //The object at the handled key was committed late, so it is handled without changing the latest key
+        ArgumentCaptor<WorkLogUnit> late = ArgumentCaptor.forClass(WorkLogUnit.class);
+        verify(persistentStore).eventHappened(late.capture(), eq(UpdateTrackerPersistentStore.KEY_UNCHANGED));
+        assertEvent(late.getValue(), 1L, "doms:testpid3", "modifyDatastreamByValue", null);
+
+        List<WorkLogUnit> events = captureEvents(persistentStore);
+        assertEquals(2, events.size());
+        assertEvent(events.get(0), 2L, "doms:testpid1", "modifyDatastreamByValue", null);
+        assertEvent(events.get(1), 3L, "doms:testpid2", "purgeObject", null);
+
+        //The handled objects are deleted from the summary
+        try (Connection conn = workLogPollDAO.getConnection();
+             Statement statement = conn.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT count(*) FROM updatetrackerdirtypids")) {
+            resultSet.next();
+            assertEquals(0, resultSet.getInt(1));
+        }
+        workLogPollDAO.close();
+    }
+
+    @Test
+    public void testReplayImport() throws Exception {
+        Properties props = new Properties();
+        props.load(Thread.currentThread().getContextClassLoader().getResourceAsStream("test.properties"));
+        UpdateTrackingConfig config = new UpdateTrackingConfig(props);
+
+        //Create the worklog table in the docker postgres database, with one of the replayed entries
+        Database.init(config.getFedoraDatabaseURL(),
+                config.getFedoraDatabaseUsername(),
+                config.getFedoraDatabasePassword());
+        Database.executeSQL(new File(Thread.currentThread().getContextClassLoader().getResource("updatetrackerLogs.ddl").toURI()));
+        Database.executeSQL("INSERT INTO public.updatetrackerlogs (key, pid, happened, method, param) VALUES (1, 'doms:testpid1', timestamptz 'epoch' + 1000 * interval '1 millisecond', 'ingest', NULL);");
+        Database.executeSQL("SELECT setval('updatetrackerlogs_key_seq', 1);");
+
+        File replayLog = File.createTempFile("replay", ".log");
+        File checkpoint = new File(replayLog.getPath() + ".checkpoint");
+        Files.write(replayLog.toPath(), Arrays.asList(
+                "INFO Method: ingest(doms:testpid1, 1000, null)",
+                "INFO Method: modifyDatastreamByValue(doms:testpid1, 3000, DC)",
+                "INFO Method: modifyObject(doms:testpid1, 2000, A)",
+                "INFO Method: modifyObject(doms:testpid1, 2000, A)"), StandardCharsets.UTF_8);
+        try {
+            WorkLogReplayImporter importer = new WorkLogReplayImporter(config.getFedoraDatabaseDriver(),
+                                                                       config.getFedoraDatabaseURL(),
+                                                                       config.getFedoraDatabaseUsername(),
+                                                                       config.getFedoraDatabasePassword(),
+                                                                       checkpoint, 2, 10);
+            //The ingest is in the worklog already, and the repeated line is loaded once
+            assertEquals(2, importer.importFiles(Arrays.asList(replayLog)));
+            //The checkpoint says the file is loaded
+            assertEquals(0, importer.importFiles(Arrays.asList(replayLog)));
+
+            WorkLogPollDAO workLogPollDAO = new WorkLogPollDAO(
+                    config.getFedoraDatabaseDriver(),
+                    config.getFedoraDatabaseURL(),
+                    config.getFedoraDatabaseUsername(),
+                    config.getFedoraDatabasePassword());
+            List<WorkLogUnit> events = workLogPollDAO.getFedoraEvents(0L, 10, -1000);
+            assertEquals(3, events.size());
+            assertEvent(events.get(0), 1L, "doms:testpid1", "ingest", null);
+            assertEvent(events.get(1), 2L, "doms:testpid1", "modifyObject", "A");
+            assertEvent(events.get(2), 3L, "doms:testpid1", "modifyDatastreamByValue", "DC");
+            workLogPollDAO.close();
+        } finally {
+            replayLog.delete();
+            checkpoint.delete();
+        }
+    }
+
+    /**
+     * Verify that the events were given to the store as one batch, and return them
+     */
+    @SuppressWarnings("unchecked")
+    private List<WorkLogUnit> captureEvents(UpdateTrackerPersistentStore persistentStore) throws Exception {
+        ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+        verify(persistentStore).eventsHappened(captor.capture());
+        return (List<WorkLogUnit>) captor.getValue();
+    }
+
+    private void assertEvent(WorkLogUnit event, long key, String pid, String method, String param) {
+        assertEquals(key, (long) event.getKey());
+        assertEquals(pid, event.getPid());
+        assertEquals(method, event.getMethod());
+        assertEquals(param, event.getParam());
+    }
 }
\ No newline at end of file
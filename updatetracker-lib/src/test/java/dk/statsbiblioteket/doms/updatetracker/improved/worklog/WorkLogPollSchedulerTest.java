@@ -0,0 +1,89 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.worklog;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WorkLogPollSchedulerTest {
+
+    private ScheduledExecutorService executor;
+    private WorkLogPollTask task;
+    private ScheduledFuture future;
+    private WorkLogPollScheduler scheduler;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        executor = mock(ScheduledExecutorService.class);
+        task = mock(WorkLogPollTask.class);
+        future = mock(ScheduledFuture.class);
+        when(executor.schedule(any(Runnable.class), anyLong(), any(TimeUnit.class))).thenReturn(future);
+        scheduler = new WorkLogPollScheduler(executor, task, 1000, 5000, 100);
+    }
+
+    @Test
+    public void testBackOffWhenIdle() throws Exception {
+        when(task.poll()).thenReturn(0, 0, 0, 0, 7);
+        scheduler.start(500);
+        for (int i = 0; i < 5; i++) {
+            scheduler.run();
+        }
+        InOrder order = inOrder(executor);
+        order.verify(executor).schedule(scheduler, 500, TimeUnit.MILLISECONDS);
+        order.verify(executor).schedule(scheduler, 2000, TimeUnit.MILLISECONDS);
+        order.verify(executor).schedule(scheduler, 4000, TimeUnit.MILLISECONDS);
+        order.verify(executor, times(2)).schedule(scheduler, 5000, TimeUnit.MILLISECONDS);
+        //Found events, so back to the period
+        order.verify(executor).schedule(scheduler, 1000, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void testWakeUp() throws Exception {
+        when(future.getDelay(TimeUnit.MILLISECONDS)).thenReturn(5000L);
+        when(future.cancel(false)).thenReturn(true);
+        scheduler.start(5000);
+        scheduler.wakeUp();
+        verify(future).cancel(false);
+        verify(executor).schedule(scheduler, 100, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void testWakeUpWhilePolling() throws Exception {
+        //The poll is running, so it cannot be cancelled. The next poll must come soon instead.
+        when(future.getDelay(TimeUnit.MILLISECONDS)).thenReturn(-10L);
+        when(task.poll()).thenReturn(0);
+        scheduler.start(5000);
+        scheduler.wakeUp();
+        verify(future, never()).cancel(false);
+        scheduler.run();
+        verify(executor).schedule(scheduler, 100, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        when(executor.awaitTermination(anyLong(), any(TimeUnit.class))).thenReturn(true);
+        scheduler.start(5000);
+        scheduler.close();
+        verify(future).cancel(false);
+        verify(task).stop();
+        verify(executor).shutdown();
+        verify(executor).awaitTermination(anyLong(), eq(TimeUnit.MILLISECONDS));
+        //No polls are scheduled after closing
+        scheduler.run();
+        verify(executor).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+    }
+}
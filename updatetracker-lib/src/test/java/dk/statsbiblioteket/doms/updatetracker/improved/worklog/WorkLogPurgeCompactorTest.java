@@ -0,0 +1,46 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.worklog;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static dk.statsbiblioteket.doms.updatetracker.improved.database.TestHelpers.event;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class WorkLogPurgeCompactorTest {
+
+    @Test
+    public void testPurgeInPage() throws Exception {
+        WorkLogPurgeCompactor compactor = new WorkLogPurgeCompactor(null, 0, 1000);
+        List<WorkLogUnit> result = compactor.compact(Arrays.asList(
+                event(1, "ingest", "doms:1", null),
+                event(2, "modifyDatastreamByValue", "doms:1", "DC"),
+                event(3, "addRelationship", "doms:1/CONTENT", null),
+                event(4, "modifyDatastreamByValue", "doms:2", "DC"),
+                event(5, "purgeObject", "doms:1", null),
+                event(6, "ingest", "doms:1", null)), 6);
+        assertEquals(Arrays.asList(event(4, "modifyDatastreamByValue", "doms:2", "DC"),
+                                   event(5, "purgeObject", "doms:1", null),
+                                   event(6, "ingest", "doms:1", null)), result);
+        assertEquals(3, compactor.getSkippedEvents());
+    }
+
+    @Test
+    public void testPurgeBeyondPage() throws Exception {
+        WorkLogPollDAO dao = mock(WorkLogPollDAO.class);
+        when(dao.getPurgedObjects(anyLong(), anyLong(), anyInt())).thenReturn(
+                Collections.singletonMap("doms:2", 10L));
+        WorkLogPurgeCompactor compactor = new WorkLogPurgeCompactor(dao, 100, 1000);
+        List<WorkLogUnit> result = compactor.compact(Arrays.asList(
+                event(1, "modifyDatastreamByValue", "doms:1", "DC"),
+                event(2, "modifyDatastreamByValue", "doms:2", "DC")), 2);
+        assertEquals(Arrays.asList(event(1, "modifyDatastreamByValue", "doms:1", "DC")), result);
+        assertEquals(1, compactor.getSkippedEvents());
+    }
+}
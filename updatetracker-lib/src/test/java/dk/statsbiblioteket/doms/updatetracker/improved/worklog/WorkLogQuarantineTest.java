@@ -0,0 +1,113 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.worklog;
+
+import dk.statsbiblioteket.doms.updatetracker.improved.database.UpdateTrackerPersistentStore;
+import dk.statsbiblioteket.doms.updatetracker.improved.database.UpdateTrackerStorageException;
+import dk.statsbiblioteket.doms.updatetracker.improved.database.datastructures.QuarantinedEvent;
+import dk.statsbiblioteket.doms.updatetracker.improved.fedora.FedoraFailedException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import static dk.statsbiblioteket.doms.updatetracker.improved.database.TestHelpers.event;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WorkLogQuarantineTest {
+
+    private UpdateTrackerPersistentStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        store = mock(UpdateTrackerPersistentStore.class);
+    }
+
+    @Test
+    public void testRetrySucceeds() throws Exception {
+        doThrow(new UpdateTrackerStorageException("fail")).doNothing().when(store).eventHappened(event(1), 1);
+        WorkLogQuarantine quarantine = new WorkLogQuarantine(store, 3, 0, 0, 10);
+        quarantine.handle(event(1), 1);
+        verify(store, times(2)).eventHappened(event(1), 1);
+        verify(store, never()).eventQuarantined(any(WorkLogUnit.class), any(Integer.class), any(Exception.class),
+                                                anyLong());
+        assertEquals(0, quarantine.getQuarantinedCount());
+    }
+
+    @Test
+    public void testQuarantineAfterAttempts() throws Exception {
+        UpdateTrackerStorageException failure = new UpdateTrackerStorageException("fail");
+        doThrow(failure).when(store).eventHappened(event(1), 1);
+        WorkLogQuarantine quarantine = new WorkLogQuarantine(store, 3, 0, 0, 10);
+        quarantine.handle(event(1), 1);
+        verify(store, times(3)).eventHappened(event(1), 1);
+        verify(store).eventQuarantined(event(1), 3, failure, 1);
+        assertEquals(1, quarantine.getQuarantinedCount());
+    }
+
+    @Test
+    public void testStopQuarantiningInOutage() throws Exception {
+        doThrow(new UpdateTrackerStorageException("fail")).when(store).eventHappened(any(WorkLogUnit.class),
+                                                                                   anyLong());
+        WorkLogQuarantine quarantine = new WorkLogQuarantine(store, 1, 0, 0, 2);
+        quarantine.handle(event(1), 1);
+        quarantine.handle(event(2), 2);
+        try {
+            quarantine.handle(event(3), 3);
+            fail("The third event in a row should not be quarantined");
+        } catch (UpdateTrackerStorageException e) {
+            //expected
+        }
+        verify(store, never()).eventQuarantined(eq(event(3)), any(Integer.class), any(Exception.class), anyLong());
+        assertEquals(2, quarantine.getQuarantinedCount());
+
+        //A success shows that the outage is over
+        doNothing().when(store).eventHappened(event(4), 4);
+        quarantine.handle(event(4), 4);
+        quarantine.handle(event(5), 5);
+        assertEquals(3, quarantine.getQuarantinedCount());
+    }
+
+    @Test
+    public void testNotQuarantinedWhenDown() throws Exception {
+        doThrow(new UpdateTrackerStorageException("fail")).when(store).eventHappened(event(1), 1);
+        doThrow(new FedoraFailedException("fedora is down")).doNothing().when(store).checkHealth();
+        WorkLogQuarantine quarantine = new WorkLogQuarantine(store, 1, 0, 0, 10);
+        try {
+            quarantine.handle(event(1), 1);
+            fail("The event should not be quarantined while fedora is down");
+        } catch (UpdateTrackerStorageException e) {
+            //expected
+        }
+        verify(store, never()).eventQuarantined(any(WorkLogUnit.class), any(Integer.class), any(Exception.class),
+                                                anyLong());
+
+        //Fedora is up again, so the failure is caused by the event
+        quarantine.handle(event(1), 1);
+        verify(store).eventQuarantined(eq(event(1)), eq(1), any(Exception.class), eq(1L));
+        assertEquals(1, quarantine.getQuarantinedCount());
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        when(store.getQuarantinedEvents()).thenReturn(Arrays.asList(
+                new QuarantinedEvent(1, "doms:1", "modifyDatastreamByValue", "DC", new Date(1000), 3, "fail"),
+                new QuarantinedEvent(2, "doms:2", "modifyDatastreamByValue", "DC", new Date(2000), 3, "fail")));
+        when(store.quarantinedEventReplayed(1)).thenReturn(true);
+        when(store.quarantinedEventReplayed(2)).thenThrow(new UpdateTrackerStorageException("fail again"));
+        WorkLogQuarantine quarantine = new WorkLogQuarantine(store, 3, 0, 0, 10);
+        assertEquals(1, quarantine.replayQuarantinedEvents());
+        verify(store).quarantinedEventReplayed(1);
+        verify(store).quarantinedEventReplayed(2);
+    }
+}
@@ -0,0 +1,40 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.worklog;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class WorkLogReplayImporterTest {
+
+    @Test
+    public void testParseLine() throws Exception {
+        WorkLogUnit entry = WorkLogReplayImporter.parseLine(
+                7, "2016-01-01 00:00:00,000 INFO  [ReplayLog] Method: modifyDatastreamByValue(doms:1, 1451606400000, DC)");
+        assertEquals(new WorkLogUnit(7L, "modifyDatastreamByValue", new Date(1451606400000L), "doms:1", "DC"), entry);
+    }
+
+    @Test
+    public void testParseLineWithoutParam() throws Exception {
+        WorkLogUnit entry = WorkLogReplayImporter.parseLine(1, "Method: ingest(doms:1, 1451606400000, null)");
+        assertEquals("ingest", entry.getMethod());
+        assertNull(entry.getParam());
+    }
+
+    @Test
+    public void testParseLineOfOtherLogger() throws Exception {
+        assertNull(WorkLogReplayImporter.parseLine(1, "2016-01-01 00:00:00,000 INFO  [Hook] Unknown method invoked"));
+    }
+
+    @Test
+    public void testCopyTextEscaped() throws Exception {
+        String text = WorkLogReplayImporter.toCopyText(Arrays.asList(
+                new WorkLogUnit(1L, "modifyObject", new Date(1000), "doms:1", "A\tB"),
+                new WorkLogUnit(2L, "purgeObject", new Date(2000), "doms:1", null)));
+        assertEquals("1\tdoms:1\t1000\tmodifyObject\tA\\tB\n" +
+                     "2\tdoms:1\t2000\tpurgeObject\t\\N\n", text);
+    }
+}
@@ -0,0 +1,71 @@
+package dk.statsbiblioteket.doms.updatetracker.improved.worklog;
+
+import dk.statsbiblioteket.doms.updatetracker.improved.database.UpdateTrackerPersistentStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static dk.statsbiblioteket.doms.updatetracker.improved.database.TestHelpers.events;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WorkLogRetentionTest {
+
+    private WorkLogPollDAO dao;
+    private UpdateTrackerPersistentStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        dao = mock(WorkLogPollDAO.class);
+        store = mock(UpdateTrackerPersistentStore.class);
+    }
+
+    @Test
+    public void testPruneInBatches() throws Exception {
+        when(store.getLatestKey()).thenReturn(5000L);
+        when(dao.pruneEvents(4000, 0, 100, "archive")).thenReturn(100, 100, 40);
+        WorkLogRetention retention = new WorkLogRetention(dao, store, 1000, 100, 0, "archive");
+        retention.run();
+        verify(dao, times(3)).pruneEvents(4000, 0, 100, "archive");
+        assertEquals(240, retention.getPrunedEvents());
+    }
+
+    @Test
+    public void testKeepMargin() throws Exception {
+        when(store.getLatestKey()).thenReturn(500L);
+        WorkLogRetention retention = new WorkLogRetention(dao, store, 1000, 100, 0, null);
+        retention.run();
+        verify(dao, never()).pruneEvents(anyLong(), anyInt(), anyInt(), anyString());
+        assertEquals(0, retention.getPrunedEvents());
+    }
+
+    @Test
+    public void testKeepGaps() throws Exception {
+        when(store.getLatestKey()).thenReturn(5000L);
+        WorkLogGapTracker gapTracker = new WorkLogGapTracker(60000, 100);
+        //Key 3000 is missing from the page, and might still be committed
+        gapTracker.pageFetched(2998, events(2999, 3001));
+        when(dao.pruneEvents(2999, 60000, 100, null)).thenReturn(40);
+        WorkLogRetention retention = new WorkLogRetention(dao, store, 1000, 100, 0, null, gapTracker, 60000);
+        retention.run();
+        verify(dao).pruneEvents(2999, 60000, 100, null);
+        assertEquals(40, retention.getPrunedEvents());
+
+        gapTracker.filled(Collections.singletonList(3000L));
+        retention.run();
+        verify(dao).pruneEvents(4000, 60000, 100, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidArchiveTable() throws Exception {
+        new WorkLogRetention(dao, store, 1000, 100, 0, "archive; DROP TABLE updateTrackerLogs");
+    }
+}